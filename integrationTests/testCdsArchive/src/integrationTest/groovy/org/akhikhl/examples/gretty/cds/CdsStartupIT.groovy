@@ -0,0 +1,36 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.examples.gretty.cds
+
+import geb.spock.GebReportingSpec
+
+class CdsStartupIT extends GebReportingSpec {
+
+  private static String baseURI
+
+  void setupSpec() {
+    baseURI = System.getProperty('gretty.baseURI')
+  }
+
+  def 'should get expected static page'() {
+  when:
+    go "${baseURI}/index.html"
+  then:
+    $('h1').text() == 'Hello, world!'
+  }
+
+  def 'should start runner faster with AppCDS archive'() {
+  when:
+    long withoutCds = System.getProperty('gretty.runnerUptimeWithoutCds') as long
+    long withCds = System.getProperty('gretty.runnerUptimeWithCds') as long
+  then:
+    System.getProperty('gretty.cdsArchive')
+    withCds < withoutCds
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.examples.gretty.reload
+
+import spock.lang.Specification
+
+class ReloadBuildIT extends Specification {
+
+  private static String baseURI
+  private static File versionSource
+  private static String originalSource
+
+  void setupSpec() {
+    baseURI = System.getProperty('gretty.baseURI')
+    versionSource = new File(System.getProperty('gretty.versionSource'))
+    originalSource = versionSource.text
+  }
+
+  void cleanupSpec() {
+    if(originalSource != null && versionSource.text != originalSource)
+      versionSource.text = originalSource
+  }
+
+  def 'should recompile and restart webapp on source change'() {
+  expect:
+    awaitResponse('version 1')
+  when:
+    versionSource.text = originalSource.replace('version 1', 'version 2')
+  then:
+    awaitResponse('version 2')
+  when:
+    versionSource.text = originalSource
+  then:
+    awaitResponse('version 1')
+  }
+
+  private static boolean awaitResponse(String expected) {
+    long deadline = System.currentTimeMillis() + 120000L
+    while(System.currentTimeMillis() < deadline) {
+      try {
+        if(new URL("${baseURI}/version").text == expected)
+          return true
+      } catch(IOException ignored) {
+        // webapp is being restarted
+      }
+      Thread.sleep(500)
+    }
+    false
+  }
+}
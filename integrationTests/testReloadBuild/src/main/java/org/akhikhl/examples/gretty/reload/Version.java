@@ -0,0 +1,17 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.examples.gretty.reload;
+
+final class Version {
+
+  // method, not constant: constants are inlined into VersionServlet
+  static String text() {
+    return "version 1";
+  }
+}
@@ -35,4 +35,13 @@ class RequestResponseIT extends GebReportingSpec {
     $('p', 0).text() == /This is dynamic HTML page generated by servlet./
     $('p strong').text() == /The page actually comes from web-fragment./
   }
+
+  def 'should redirect request with malformed query'() {
+  when:
+    HttpURLConnection connection = (HttpURLConnection) new URL("${baseURI}/?q=%zz&r=%").openConnection()
+    connection.instanceFollowRedirects = false
+  then:
+    connection.responseCode == 302
+    connection.getHeaderField('Location').contains('/index.html')
+  }
 }
@@ -0,0 +1,228 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Compact binary encoding of the run configuration sent from gradle (or gretty starter) to gretty runner.
+ * <p>
+ * Encodes the same tree of maps, lists, strings, numbers and booleans, which was previously sent as JSON,
+ * so that server managers see exactly the same parameters.
+ * Strings are written once and referenced by index afterwards, which keeps the message small
+ * when many webapps share the same classpath entries.
+ * Numbers are decoded to the same types: Integer, Long, Double, BigInteger and BigDecimal.
+ */
+@CompileStatic
+final class RunConfigCodec {
+
+  static final int MAGIC = 0x47524300 // 'GRC\0'
+
+  static final int VERSION = 1
+
+  private static final int TAG_NULL = 0
+  private static final int TAG_TRUE = 1
+  private static final int TAG_FALSE = 2
+  private static final int TAG_INT = 3
+  private static final int TAG_LONG = 4
+  private static final int TAG_DOUBLE = 5
+  private static final int TAG_STRING = 6
+  private static final int TAG_STRING_REF = 7
+  private static final int TAG_LIST = 8
+  private static final int TAG_MAP = 9
+  private static final int TAG_DECIMAL = 10
+  private static final int TAG_BIG_INTEGER = 11
+
+  static byte[] encode(Map config) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096)
+    DataOutputStream out = new DataOutputStream(bytes)
+    out.writeInt(MAGIC)
+    out.writeByte(VERSION)
+    new Encoder(out).writeValue(config)
+    out.flush()
+    bytes.toByteArray()
+  }
+
+  static Map decode(byte[] data) {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))
+    if(input.readInt() != MAGIC)
+      throw new IOException('Not a gretty run config')
+    int version = input.readUnsignedByte()
+    if(version != VERSION)
+      throw new IOException("Unsupported run config version ${version}, expected ${VERSION}")
+    Object result = new Decoder(input).readValue()
+    if(!(result instanceof Map))
+      throw new IOException('Run config is not a map')
+    (Map) result
+  }
+
+  private static final class Encoder {
+
+    private final DataOutputStream out
+    private final Map<String, Integer> strings = new HashMap<String, Integer>()
+
+    Encoder(DataOutputStream out) {
+      this.out = out
+    }
+
+    void writeValue(Object value) {
+      if(value instanceof String)
+        writeString((String) value)
+      else if(value == null)
+        out.writeByte(TAG_NULL)
+      else if(value instanceof Boolean)
+        out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE)
+      else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        out.writeByte(TAG_INT)
+        writeVarInt(((Number) value).intValue())
+      }
+      else if(value instanceof Long) {
+        out.writeByte(TAG_LONG)
+        out.writeLong((Long) value)
+      }
+      else if(value instanceof Double || value instanceof Float) {
+        out.writeByte(TAG_DOUBLE)
+        out.writeDouble(((Number) value).doubleValue())
+      }
+      else if(value instanceof BigInteger) {
+        out.writeByte(TAG_BIG_INTEGER)
+        writeString(value.toString())
+      }
+      else if(value instanceof Number) {
+        out.writeByte(TAG_DECIMAL)
+        writeString(value.toString())
+      }
+      else if(value instanceof Map) {
+        Map map = (Map) value
+        out.writeByte(TAG_MAP)
+        writeVarInt(map.size())
+        for(Map.Entry entry in (Set<Map.Entry>) map.entrySet()) {
+          writeString(String.valueOf(entry.key))
+          writeValue(entry.value)
+        }
+      }
+      else if(value instanceof Collection) {
+        Collection list = (Collection) value
+        out.writeByte(TAG_LIST)
+        writeVarInt(list.size())
+        for(Object item in list)
+          writeValue(item)
+      }
+      else if(value instanceof Object[]) {
+        writeValue(Arrays.asList((Object[]) value))
+      }
+      else
+        writeString(String.valueOf(value))
+    }
+
+    private void writeString(String s) {
+      Integer index = strings.get(s)
+      if(index != null) {
+        out.writeByte(TAG_STRING_REF)
+        writeVarInt(index)
+        return
+      }
+      strings.put(s, strings.size())
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8)
+      out.writeByte(TAG_STRING)
+      writeVarInt(bytes.length)
+      out.write(bytes)
+    }
+
+    private void writeVarInt(int value) {
+      int v = (value << 1) ^ (value >> 31) // zigzag, keeps small negative numbers short
+      while((v & ~0x7F) != 0) {
+        out.writeByte((v & 0x7F) | 0x80)
+        v >>>= 7
+      }
+      out.writeByte(v)
+    }
+  }
+
+  private static final class Decoder {
+
+    private final DataInputStream input
+    private final List<String> strings = new ArrayList<String>()
+
+    Decoder(DataInputStream input) {
+      this.input = input
+    }
+
+    Object readValue() {
+      int tag = input.readUnsignedByte()
+      // plain int comparisons: groovy switch calls isCase with the boxed tag for every case
+      if(tag == TAG_STRING || tag == TAG_STRING_REF)
+        return readString(tag)
+      if(tag == TAG_MAP) {
+        int size = readVarInt()
+        Map map = new LinkedHashMap(size * 2)
+        for(int i = 0; i < size; i++) {
+          String key = readString()
+          map.put(key, readValue())
+        }
+        return map
+      }
+      if(tag == TAG_LIST) {
+        int size = readVarInt()
+        List list = new ArrayList(size)
+        for(int i = 0; i < size; i++)
+          list.add(readValue())
+        return list
+      }
+      if(tag == TAG_TRUE)
+        return Boolean.TRUE
+      if(tag == TAG_FALSE)
+        return Boolean.FALSE
+      if(tag == TAG_INT)
+        return readVarInt()
+      if(tag == TAG_NULL)
+        return null
+      if(tag == TAG_LONG)
+        return input.readLong()
+      if(tag == TAG_DOUBLE)
+        return input.readDouble()
+      if(tag == TAG_DECIMAL)
+        return new BigDecimal(readString())
+      if(tag == TAG_BIG_INTEGER)
+        return new BigInteger(readString())
+      throw new IOException("Unexpected tag ${tag} in run config")
+    }
+
+    private String readString() {
+      int tag = input.readUnsignedByte()
+      if(tag != TAG_STRING && tag != TAG_STRING_REF)
+        throw new IOException("Expected string in run config, got tag ${tag}")
+      readString(tag)
+    }
+
+    private String readString(int tag) {
+      if(tag == TAG_STRING_REF)
+        return strings.get(readVarInt())
+      byte[] bytes = new byte[readVarInt()]
+      input.readFully(bytes)
+      String s = new String(bytes, StandardCharsets.UTF_8)
+      strings.add(s)
+      s
+    }
+
+    private int readVarInt() {
+      int v = 0
+      int shift = 0
+      int b
+      while(((b = input.readUnsignedByte()) & 0x80) != 0) {
+        v |= (b & 0x7F) << shift
+        shift += 7
+      }
+      v |= b << shift
+      (v >>> 1) ^ -(v & 1)
+    }
+  }
+}
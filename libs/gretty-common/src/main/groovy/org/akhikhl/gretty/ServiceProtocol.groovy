@@ -8,73 +8,475 @@
  */
 package org.akhikhl.gretty
 
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.InvalidPathException
+import java.nio.channels.Channels
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.BlockingQueue
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Control protocol between gradle (or gretty starter) and gretty runner.
+ *
+ * Two wire formats are supported on the same port:
+ * <ul>
+ *   <li>legacy: one connection per message, text terminated by the '&lt;&lt;EOF&gt;&gt;' line;</li>
+ *   <li>framed: one long-lived connection, opened with {@link #FRAMED_MAGIC} and carrying
+ *   length-prefixed frames tagged with request id, so that replies can be matched to requests.
+ *   Frames carry either UTF-8 text or binary payload (see {@link RunConfigCodec}).</li>
+ * </ul>
+ * Reader detects the format of every accepted connection, so legacy clients
+ * (appStop, appRestart, product scripts) keep working when framed channel is in use.
+ * <p>
+ * Both formats run either over loopback TCP or over unix domain sockets.
+ * Addresses are passed around as strings: port number for TCP, 'unix:' followed by socket path otherwise.
+ */
 final class ServiceProtocol {
 
+  /**
+   * Legacy messages are plain text, so they never start with zero byte.
+   */
+  static final int FRAMED_MAGIC = 0x00475350
+
+  /**
+   * Request id of messages which do not expect a reply.
+   */
+  static final long NO_REPLY = 0L
+
+  static final String UNIX_ADDRESS_PREFIX = 'unix:'
+
+  private static final int FRAME_HEADER_SIZE = 13
+
+  /**
+   * Frames are commands, replies and run configs, longer frames mean corrupted stream or foreign peer.
+   */
+  private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024
+
+  private static final byte FRAME_TEXT = 0
+
+  private static final byte FRAME_BINARY = 1
+
   static Reader createReader(int port  = 0) {
-    final ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.loopbackAddress)
-    return new Reader(serverSocket)
+    final ServerSocketChannel serverChannel = ServerSocketChannel.open()
+    serverChannel.bind(new InetSocketAddress(InetAddress.loopbackAddress, port))
+    return new Reader(serverChannel, null)
+  }
+
+  /**
+   * Creates reader listening on unix domain socket when transport is 'unix',
+   * falls back to loopback TCP when unix domain sockets cannot be used (path too long, unsupported platform).
+   */
+  static Reader createReader(String transport, File socketFile) {
+    if(transport == 'unix') {
+      ServerSocketChannel serverChannel = null
+      try {
+        Files.deleteIfExists(socketFile.toPath())
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+        serverChannel.bind(UnixDomainSocketAddress.of(socketFile.toPath()))
+        return new Reader(serverChannel, socketFile)
+      } catch(IOException | UnsupportedOperationException | InvalidPathException ignored) {
+        serverChannel?.close()
+      }
+    }
+    return createReader()
+  }
+
+  static SocketAddress toSocketAddress(String address) {
+    if(address.startsWith(UNIX_ADDRESS_PREFIX))
+      return UnixDomainSocketAddress.of(address.substring(UNIX_ADDRESS_PREFIX.length()))
+    return new InetSocketAddress(InetAddress.loopbackAddress, Integer.parseInt(address))
+  }
+
+  static boolean isUnixAddress(String address) {
+    address.startsWith(UNIX_ADDRESS_PREFIX)
+  }
+
+  /**
+   * Stores address as '&lt;name&gt;Port' or '&lt;name&gt;Socket' property of the port properties file.
+   */
+  static void storeAddress(Properties props, String name, String address) {
+    if(isUnixAddress(address))
+      props.setProperty(name + 'Socket', address.substring(UNIX_ADDRESS_PREFIX.length()))
+    else
+      props.setProperty(name + 'Port', address)
+  }
+
+  static String loadAddress(Properties props, String name) {
+    String socketPath = props.getProperty(name + 'Socket')
+    socketPath ? UNIX_ADDRESS_PREFIX + socketPath : props.getProperty(name + 'Port')
+  }
+
+  static class Message {
+    final String text
+    final long requestId
+    private final Connection connection
+
+    /**
+     * Payload of binary frames, null for text messages.
+     */
+    final byte[] data
+
+    Message(String text, long requestId, Connection connection) {
+      this(text, null, requestId, connection)
+    }
+
+    Message(String text, byte[] data, long requestId, Connection connection) {
+      this.text = text
+      this.data = data
+      this.requestId = requestId
+      this.connection = connection
+    }
+
+    boolean getExpectsReply() {
+      connection != null && requestId != NO_REPLY
+    }
+
+    void reply(String response) {
+      connection.writeFrame(requestId, response)
+    }
+
+    boolean isBinary() {
+      data != null
+    }
+
+    void replyMayFail(String response) {
+      try {
+        reply(response)
+      } catch (e) {
+        e.printStackTrace()
+      }
+    }
   }
 
   static class Reader implements Closeable {
-    private final ServerSocket serverSocket
+    private static final Message CLOSED = new Message(null, NO_REPLY, null)
 
-    private Reader(final ServerSocket serverSocket) {
-      this.serverSocket = serverSocket
+    private final ServerSocketChannel serverChannel
+    private final File socketFile
+    private final BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>()
+    private final List<Connection> connections = new CopyOnWriteArrayList<Connection>()
+
+    private Reader(final ServerSocketChannel serverChannel, final File socketFile) {
+      this.serverChannel = serverChannel
+      this.socketFile = socketFile
+      Thread.startDaemon("gretty-service-reader-${address}".toString(), this.&acceptConnections)
     }
 
     CompletableFuture<String> readMessageAsync() {
       return CompletableFuture.supplyAsync(this.&readMessage)
     }
 
-    synchronized String readMessage() {
-      def data = new StringBuilder()
-      Socket acceptSocket = serverSocket.accept()
+    String readMessage() {
+      return readRequest().text
+    }
+
+    Message readRequest() {
+      return checkClosed(messages.take())
+    }
+
+    /**
+     * Returns null when no message arrived within the given time.
+     */
+    Message readRequest(long timeoutMillis) {
+      Message message = messages.poll(timeoutMillis, TimeUnit.MILLISECONDS)
+      return message == null ? null : checkClosed(message)
+    }
+
+    private Message checkClosed(Message message) {
+      if(message.is(CLOSED)) {
+        // let other waiting readers know, too
+        messages.offer(CLOSED)
+        throw new ClosedChannelException()
+      }
+      return message
+    }
+
+    private void acceptConnections() {
       try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(acceptSocket.getInputStream(), StandardCharsets.UTF_8))
+        while(serverChannel.isOpen()) {
+          SocketChannel socketChannel = serverChannel.accept()
+          // a slow or silent client must not hold up the following connections
+          Thread.startDaemon("gretty-service-connection-${address}".toString()) {
+            try {
+              serveConnection(socketChannel)
+            } catch(IOException e) {
+              socketChannel.close()
+              if(serverChannel.isOpen())
+                e.printStackTrace()
+            }
+          }
+        }
+      } catch(ClosedChannelException ignored) {
+        // reader was closed
+      } catch(IOException e) {
+        if(serverChannel.isOpen())
+          e.printStackTrace()
+      } finally {
+        messages.offer(CLOSED)
+      }
+    }
+
+    private void serveConnection(SocketChannel socketChannel) {
+      ByteBuffer prefix = ByteBuffer.allocate(4)
+      readFully(socketChannel, prefix)
+      prefix.flip()
+      if(prefix.remaining() == 4 && prefix.getInt(0) == FRAMED_MAGIC) {
+        Connection connection = new Connection(socketChannel)
+        connections.add(connection)
+        try {
+          Message message
+          while((message = connection.readFrame()) != null)
+            messages.offer(message)
+        } catch(IOException ignored) {
+          // peer went away, legacy clients are still served
+        } finally {
+          connections.remove(connection)
+          connection.close()
+        }
+        return
+      }
+      // legacy message: one connection, text lines up to <<EOF>>
+      try {
+        byte[] prefixBytes = new byte[prefix.remaining()]
+        prefix.get(prefixBytes)
+        InputStream input = new SequenceInputStream(new ByteArrayInputStream(prefixBytes), Channels.newInputStream(socketChannel))
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))
+        def data = new StringBuilder()
         while(true) {
           String line = reader.readLine()
-          if(line == '<<EOF>>')
+          if(line == null || line == '<<EOF>>')
             break
           data << line
         }
+        messages.offer(new Message(data.toString(), NO_REPLY, null))
       } finally {
-        acceptSocket.close()
+        socketChannel.close()
       }
-      return data
+    }
+
+    String getAddress() {
+      socketFile != null ? UNIX_ADDRESS_PREFIX + socketFile.absolutePath : String.valueOf(port)
     }
 
     int getPort() {
-      return serverSocket.localPort
+      return socketFile != null ? -1 : ((InetSocketAddress) serverChannel.localAddress).port
+    }
+
+    boolean isUnixDomain() {
+      socketFile != null
+    }
+
+    @Override
+    void close() {
+      serverChannel.close()
+      for(Connection connection in connections)
+        connection.close()
+      messages.offer(CLOSED)
+      if(socketFile != null)
+        Files.deleteIfExists(socketFile.toPath())
+    }
+  }
+
+  static class Connection implements Closeable {
+    private final SocketChannel socketChannel
+    private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE)
+
+    Connection(SocketChannel socketChannel) {
+      this.socketChannel = socketChannel
+    }
+
+    /**
+     * Reads next frame, returns null when the other side closed the connection.
+     * Closes the connection and throws IOException, when the frame length is invalid.
+     */
+    Message readFrame() {
+      header.clear()
+      readFully(socketChannel, header)
+      if(header.hasRemaining())
+        return null
+      header.flip()
+      int length = header.getInt()
+      long requestId = header.getLong()
+      byte kind = header.get()
+      if(length < 0 || length > MAX_FRAME_SIZE) {
+        close()
+        throw new IOException("Invalid frame length ${length}, connection closed")
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length)
+      readFully(socketChannel, payload)
+      if(payload.hasRemaining())
+        return null
+      if(kind == FRAME_BINARY)
+        return new Message(null, payload.array(), requestId, this)
+      return new Message(new String(payload.array(), StandardCharsets.UTF_8), requestId, this)
+    }
+
+    void writeFrame(long requestId, String text) {
+      writeFrame(requestId, FRAME_TEXT, text.getBytes(StandardCharsets.UTF_8))
+    }
+
+    synchronized void writeFrame(long requestId, byte kind, byte[] bytes) {
+      ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + bytes.length)
+      buffer.putInt(bytes.length).putLong(requestId).put(kind).put(bytes).flip()
+      writeFully(socketChannel, buffer)
+    }
+
+    synchronized void writeMagic() {
+      ByteBuffer buffer = ByteBuffer.allocate(4)
+      buffer.putInt(FRAMED_MAGIC).flip()
+      writeFully(socketChannel, buffer)
+    }
+
+    boolean isOpen() {
+      socketChannel.isOpen()
+    }
+
+    @Override
+    void close() {
+      socketChannel.close()
+    }
+  }
+
+  /**
+   * Opens persistent framed channel to the reader listening on the given port.
+   */
+  static Channel openChannel(int port) {
+    openChannel(String.valueOf(port))
+  }
+
+  /**
+   * Opens persistent framed channel to the reader listening on the given address.
+   */
+  static Channel openChannel(String address) {
+    SocketAddress socketAddress = toSocketAddress(address)
+    SocketChannel socketChannel = SocketChannel.open(socketAddress)
+    if(socketAddress instanceof InetSocketAddress)
+      socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true)
+    Connection connection = new Connection(socketChannel)
+    connection.writeMagic()
+    return new Channel(connection, address)
+  }
+
+  static class Channel implements Closeable {
+    private final Connection connection
+    private final String address
+    private final AtomicLong lastRequestId = new AtomicLong()
+    private final Map<Long, CompletableFuture<String>> pendingReplies = new ConcurrentHashMap<Long, CompletableFuture<String>>()
+
+    private Channel(Connection connection, String address) {
+      this.connection = connection
+      this.address = address
+      Thread.startDaemon("gretty-service-channel-${address}".toString(), this.&receiveReplies)
+    }
+
+    /**
+     * Sends command and returns the future reply to this very command.
+     */
+    CompletableFuture<String> request(final String command) {
+      sendRequest(FRAME_TEXT, command.getBytes(StandardCharsets.UTF_8))
+    }
+
+    /**
+     * Sends binary payload and returns the future reply to it.
+     */
+    CompletableFuture<String> request(final byte[] data) {
+      sendRequest(FRAME_BINARY, data)
+    }
+
+    private CompletableFuture<String> sendRequest(byte kind, byte[] payload) {
+      long requestId = lastRequestId.incrementAndGet()
+      CompletableFuture<String> reply = new CompletableFuture<String>()
+      pendingReplies.put(requestId, reply)
+      try {
+        connection.writeFrame(requestId, kind, payload)
+      } catch(IOException e) {
+        pendingReplies.remove(requestId)
+        reply.completeExceptionally(e)
+      }
+      return reply
+    }
+
+    /**
+     * Sends command, which does not expect a reply.
+     */
+    void send(final String command) {
+      connection.writeFrame(NO_REPLY, command)
+    }
+
+    String getAddress() {
+      return address
+    }
+
+    private void receiveReplies() {
+      try {
+        Message message
+        while((message = connection.readFrame()) != null)
+          pendingReplies.remove(message.requestId)?.complete(message.text)
+      } catch(IOException ignored) {
+        // channel closed
+      } finally {
+        ClosedChannelException closed = new ClosedChannelException()
+        for(CompletableFuture<String> reply in pendingReplies.values())
+          reply.completeExceptionally(closed)
+        pendingReplies.clear()
+        connection.close()
+      }
+    }
+
+    /**
+     * Returns false once the other side went away or the channel was closed.
+     */
+    boolean isOpen() {
+      connection.isOpen()
     }
 
     @Override
     void close() {
-      serverSocket.close()
+      connection.close()
     }
   }
 
+  private static void readFully(SocketChannel socketChannel, ByteBuffer buffer) {
+    while(buffer.hasRemaining())
+      if(socketChannel.read(buffer) < 0)
+        break
+  }
+
+  private static void writeFully(SocketChannel socketChannel, ByteBuffer buffer) {
+    while(buffer.hasRemaining())
+      socketChannel.write(buffer)
+  }
+
   static Writer createWriter(int port) {
-    return new Writer(port)
+    return new Writer(String.valueOf(port))
+  }
+
+  static Writer createWriter(String address) {
+    return new Writer(address)
   }
 
   static class Writer {
-    private final int port
+    private final String address
 
-    private Writer(final int port) {
-      this.port = port
+    private Writer(final String address) {
+      this.address = address
     }
 
     def write(final String command) {
-      Socket s = new Socket(InetAddress.loopbackAddress, port)
+      SocketChannel socketChannel = SocketChannel.open(toSocketAddress(address))
       try {
-        OutputStream out = s.getOutputStream()
-        out.write(("${command}\n<<EOF>>\n").getBytes(StandardCharsets.UTF_8))
-        out.flush()
+        writeFully(socketChannel, ByteBuffer.wrap(("${command}\n<<EOF>>\n").getBytes(StandardCharsets.UTF_8)))
       } finally {
-        s.close()
+        socketChannel.close()
       }
     }
 
@@ -86,8 +488,12 @@ final class ServiceProtocol {
       }
     }
 
+    String getAddress() {
+      return address
+    }
+
     int getPort() {
-      return port
+      return isUnixAddress(address) ? -1 : Integer.parseInt(address)
     }
   }
 }
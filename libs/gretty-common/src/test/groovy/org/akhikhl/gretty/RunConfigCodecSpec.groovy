@@ -0,0 +1,49 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import spock.lang.Specification
+
+class RunConfigCodecSpec extends Specification {
+
+  def 'should decode the same values of the same types'() {
+  given:
+    Map config = [
+      servletContainer: 'jetty11',
+      port: 8080,
+      negative: -1,
+      scanInterval: 5000000000L,
+      ratio: 0.5d,
+      big: new BigInteger('123456789012345678901234567890'),
+      decimal: new BigDecimal('3.14159265358979323846'),
+      enabled: true,
+      debug: false,
+      missing: null,
+      webApps: [
+        [ contextPath: '/a', webappClassPath: [ 'file:/lib/x.jar', 'file:/lib/y.jar' ] ],
+        [ contextPath: '/b', webappClassPath: [ 'file:/lib/x.jar', 'file:/lib/y.jar' ] ]
+      ]
+    ]
+  when:
+    Map decoded = RunConfigCodec.decode(RunConfigCodec.encode(config))
+  then:
+    decoded == config
+    decoded.big instanceof BigInteger
+    decoded.decimal instanceof BigDecimal
+    decoded.scanInterval instanceof Long
+    decoded.port instanceof Integer
+  }
+
+  def 'should reject data of another format'() {
+  when:
+    RunConfigCodec.decode('{"port":8080}'.getBytes('UTF-8'))
+  then:
+    thrown(IOException)
+  }
+}
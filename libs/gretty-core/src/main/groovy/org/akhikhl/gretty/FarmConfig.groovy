@@ -22,6 +22,15 @@ class FarmConfig {
   // list of projects or project paths
   protected final List integrationTestProjects_ = []
 
+  /**
+   * Number of runner JVMs the webapps of the farm are split to, 1 by default.
+   * Shards start in parallel, every shard is a separate server with its own heap, ports and jvm arguments.
+   */
+  Integer shards
+
+  // key is shard index, value is jvm arguments added to serverConfig.jvmArgs of the shard
+  protected final Map<Integer, List<String>> shardJvmArgs_ = [:]
+
   FarmConfig(Map options) {
     serverConfig = (ServerConfig) options.serverConfig ?: new ServerConfig()
     webAppRefs_ = [:]
@@ -37,6 +46,10 @@ class FarmConfig {
     integrationTestProjects_.asImmutable()
   }
 
+  Map<Integer, List<String>> getShardJvmArgs() {
+    shardJvmArgs_.asImmutable()
+  }
+
   Map getWebAppRefs() {
     webAppRefs_.asImmutable()
   }
@@ -45,6 +58,13 @@ class FarmConfig {
     integrationTestProjects_.add(project)
   }
 
+  void shardJvmArgs(int shard, String... args) {
+    List<String> list = shardJvmArgs_[shard]
+    if(list == null)
+      list = shardJvmArgs_[shard] = []
+    list.addAll(args)
+  }
+
   void setWebAppRefs(Map newValue) {
     if(!webAppRefs_.is(newValue)) {
       webAppRefs_.clear()
@@ -8,15 +8,18 @@
  */
 package org.akhikhl.gretty
 
-import groovy.json.JsonBuilder
+import groovy.json.JsonOutput
 import groovy.json.JsonSlurper
-import groovy.transform.CompileDynamic
 import groovy.transform.CompileStatic
 import org.apache.commons.io.IOUtils
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.nio.channels.ClosedChannelException
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 /**
  *
@@ -33,7 +36,18 @@ abstract class LauncherBase implements Launcher {
 
   protected ServiceProtocol.Reader reader
   protected ServiceProtocol.Writer writer
+  protected ServiceProtocol.Channel channel
   protected Map serverStartInfo
+  private boolean daemonRunnerBusy
+  // set when the launched runner reported its service address
+  protected volatile boolean runnerConnected
+
+  /**
+   * When true, the runner JVM dumps dynamic AppCDS archive of the classes it loaded on exit.
+   */
+  boolean cdsArchiveDump
+
+  protected File cdsArchiveFile
 
   LauncherBase(LauncherConfig config) {
     this.config = config
@@ -54,15 +68,19 @@ abstract class LauncherBase implements Launcher {
 
   @Override
   void beforeLaunch() {
-    reader = ServiceProtocol.createReader()
-    log.debug 'statusPort: {}', reader.port
-
     File portPropertiesFile = getPortPropertiesFile()
     portPropertiesFile.parentFile.mkdirs()
+
+    long connectStart = System.nanoTime()
+    reader = ServiceProtocol.createReader(sconfig.serviceTransport, getServiceSocketFile('status'))
+    if(sconfig.serviceTransport == 'unix' && !reader.unixDomain)
+      log.warn 'Unix domain sockets are not usable here, falling back to loopback TCP'
+    log.debug 'status address: {}, bound in {} ms', reader.address, (System.nanoTime() - connectStart) / 1000000.0d
   }
 
   @Override
   void dispose() {
+    channel?.with { IOUtils.closeQuietly(it) }
     reader?.with { IOUtils.closeQuietly(it) }
   }
 
@@ -72,12 +90,12 @@ abstract class LauncherBase implements Launcher {
 
   protected abstract File getPortPropertiesFile()
 
-  private JsonBuilder getRunConfigJson() {
-    def json = new JsonBuilder()
-    json {
-      this.writeRunConfigJson(delegate)
-    }
-    json
+  /**
+   * Unix domain socket files are placed next to the port properties file.
+   */
+  protected File getServiceSocketFile(String kind) {
+    File portPropertiesFile = getPortPropertiesFile()
+    new File(portPropertiesFile.parentFile, portPropertiesFile.name.replaceFirst(/\.properties$/, '') + "_${kind}.sock")
   }
 
   protected String getServerManagerFactory() {
@@ -94,6 +112,63 @@ abstract class LauncherBase implements Launcher {
     serverStartInfo
   }
 
+  /**
+   * Returns AppCDS archive file of the last launched runner, null when class data sharing is not supported.
+   */
+  File getCdsArchiveFile() {
+    cdsArchiveFile
+  }
+
+  /**
+   * Returns runner classpath, identifying AppCDS archive of the runner. Null disables class data sharing.
+   */
+  protected List<File> getRunnerClasspathFiles() {
+    null
+  }
+
+  /**
+   * AppCDS archives are placed next to the port properties file.
+   */
+  protected File getCdsArchiveDir() {
+    new File(getPortPropertiesFile().parentFile, 'gretty-cds')
+  }
+
+  /**
+   * Archive name carries a hash of JVM executable, runner and servlet container classpath,
+   * so that a changed JVM or jar never meets a stale archive.
+   */
+  protected File resolveCdsArchiveFile(JavaExecParams params) {
+    List<File> runnerClasspath = getRunnerClasspathFiles()
+    if(runnerClasspath == null)
+      return null
+    File jvmExecutable = new File(params.jvmExecutable ?: new File(System.getProperty('java.home'), File.separatorChar == (char) '\\' ? 'bin/java.exe' : 'bin/java').absolutePath)
+    List<File> files = [ jvmExecutable.canonicalFile ] + runnerClasspath + getServletContainerClasspath().collect { new File(it) }
+    String key = files.collect { File f -> "${f.absolutePath}|${f.length()}|${f.lastModified()}" }.join('\n').sha256()
+    new File(getCdsArchiveDir(), "runner_${getServletContainerId()}_${key.substring(0, 16)}.jsa")
+  }
+
+  protected void addCdsArgs(JavaExecParams params) {
+    List<String> jvmArgs = params.jvmArgs ?: []
+    // explicit class data sharing settings take precedence
+    if(jvmArgs.find { String arg -> arg.startsWith('-XX:SharedArchiveFile') || arg.startsWith('-XX:ArchiveClassesAtExit') || arg == '-Xshare:off' })
+      return
+    cdsArchiveFile = resolveCdsArchiveFile(params)
+    if(cdsArchiveFile == null)
+      return
+    if(cdsArchiveDump) {
+      cdsArchiveFile.parentFile.mkdirs()
+      // archives of changed runner or servlet container are of no use anymore
+      String prefix = "runner_${getServletContainerId()}_"
+      for(File f in cdsArchiveFile.parentFile.listFiles())
+        if(f.name.startsWith(prefix) && f.name.endsWith('.jsa'))
+          f.delete()
+      params.jvmArgs = jvmArgs + [ '-XX:ArchiveClassesAtExit=' + cdsArchiveFile.absolutePath ]
+    } else if(cdsArchiveFile.isFile()) {
+      params.jvmArgs = jvmArgs + [ '-XX:SharedArchiveFile=' + cdsArchiveFile.absolutePath ]
+      log.info 'Using AppCDS archive {}', cdsArchiveFile
+    }
+  }
+
   private void interactiveLoop() {
     def hint = 'Press \'q\' or \'Q\' to stop the server or any other key to restart.'
     System.out.println hint
@@ -111,12 +186,10 @@ abstract class LauncherBase implements Launcher {
             if (sconfig.interactiveMode == 'rebuildAndRestartOnKeyPress') {
               rebuildWebapps()
             }
-            log.debug 'Sending command: {}', 'restartWithEvent'
-            def futureResponse = reader.readMessageAsync()
-            writer.write('restartWithEvent')
             // Waiting for restart complete event
-            def status = futureResponse.get()
+            def status = sendCommandAndWait('restartWithEvent')
             log.debug "Received status: ${status}"
+            logStartTiming((Map) new JsonSlurper().parseText(status))
             System.out.println hint
             // dumping input
             while (System.in.available() > 0) {
@@ -167,8 +240,20 @@ abstract class LauncherBase implements Launcher {
     for(WebAppConfig wconfig in webAppConfigs)
       prepareToRun(wconfig)
 
+    JavaExecParams params = createRunnerExecParams()
+    ServiceProtocol.Channel daemonChannel = null
+    boolean spawnDaemon = false
+    if(isDaemonRunnerEnabled(params)) {
+      daemonChannel = attachToDaemonRunner(params)
+      spawnDaemon = daemonChannel == null && !daemonRunnerBusy
+      if(spawnDaemon)
+        addDaemonRunnerArgs(params)
+    }
+
     Thread thread
-    Future futureResponse = reader.readMessageAsync()
+    Future<String> futureResponse = daemonChannel == null ? reader.readMessageAsync().whenComplete({ String response, Throwable e ->
+      runnerConnected = response != null
+    }) : null
 
     thread = Thread.start {
       for(Closure c in sconfig.onStart) {
@@ -179,25 +264,14 @@ abstract class LauncherBase implements Launcher {
       try {
         beforeJavaExec()
         try {
-          JavaExecParams params = new JavaExecParams()
-          params.main = 'org.akhikhl.gretty.Runner'
-          params.args = ["--statusPort=${reader.port}".toString(), "--serverManagerFactory=${getServerManagerFactory()}".toString()]
-          if (log.isDebugEnabled()) {
-            params.args += "--debug"
-          }
-          params.debug = config.getDebug()
-          params.debugSuspend = config.getDebugSuspend()
-          params.debugPort = config.getDebugPort()
-          params.jvmExecutable = sconfig.jvmExecutable
-          params.jvmArgs = sconfig.jvmArgs
-          params.systemProperties = sconfig.systemProperties
-          if(!sconfig.secureRandom) {
-            // Speeding up tomcat startup, according to https://wiki.apache.org/tomcat/HowTo/FasterStartUp
-            // ATTENTION: replacing the blocking entropy source (/dev/random) with a non-blocking one
-            // actually reduces security because you are getting less-random data.
-            params.systemProperty 'java.security.egd', 'file:/dev/./urandom'
+          if(spawnDaemon) {
+            spawnDaemonRunner(params, getDaemonRunnerFile('log'))
+            futureResponse.join()
           }
-          javaExec(params)
+          if(spawnDaemon || daemonChannel != null)
+            waitForDaemonRunnerStop()
+          else
+            javaExec(params)
         } finally {
           afterJavaExec()
         }
@@ -210,29 +284,43 @@ abstract class LauncherBase implements Launcher {
       }
     }
 
-    def response = futureResponse.get()
-    log.debug "Response {}", response
-    if (response == 'started')
-      throw new RuntimeException('Web-server is already running.')
-
-    int servicePort = response.substring("init ".length()) as Integer
-    writer = ServiceProtocol.createWriter(servicePort)
+    String serviceAddress
+    if(daemonChannel != null) {
+      channel = daemonChannel
+      serviceAddress = daemonChannel.address
+    } else {
+      def response = futureResponse.get()
+      log.debug "Response {}", response
+      if (response == 'started')
+        throw new RuntimeException('Web-server is already running.')
+      serviceAddress = response.substring("init ".length())
+    }
+    writer = ServiceProtocol.createWriter(serviceAddress)
 
     Properties props = new Properties()
-    props.servicePort = servicePort as String
-    props.statusPort = reader.port as String
+    ServiceProtocol.storeAddress(props, 'service', serviceAddress)
+    ServiceProtocol.storeAddress(props, 'status', reader.address)
     portPropertiesFile.withWriter 'UTF-8', {
       props.store(it, null)
     }
 
-    futureResponse = reader.readMessageAsync()
-    def runConfigJson = getRunConfigJson()
-    log.debug 'Sending parameters to port {}', writer.port
-    log.debug runConfigJson.toPrettyString()
-    writer.write(runConfigJson.toString())
-    def status = futureResponse.get()
+    // daemon runner is always driven over framed channel, it is needed to attach to it
+    if(channel == null && (sconfig.serviceProtocol != 'legacy' || spawnDaemon)) {
+      long connectStart = System.nanoTime()
+      channel = ServiceProtocol.openChannel(serviceAddress)
+      log.info 'Service channel to {} connected in {} ms', serviceAddress, (System.nanoTime() - connectStart) / 1000000.0d
+    }
+
+    Map<String, Object> runConfig = createRunConfig()
+    log.debug 'Sending parameters to {}', writer.address
+    if(log.isDebugEnabled())
+      log.debug JsonOutput.prettyPrint(JsonOutput.toJson(runConfig))
+    def status = sendRunConfigAndWait(runConfig)
     log.debug 'Got start status: {}', status
     serverStartInfo = (Map) new JsonSlurper().parseText(status)
+    if(cdsArchiveFile?.isFile() && !cdsArchiveDump)
+      serverStartInfo.cdsArchive = cdsArchiveFile.absolutePath
+    logStartTiming(serverStartInfo)
 
     if(serverStartInfo.error)
       throw new Exception((String) serverStartInfo.errorMessage)
@@ -240,103 +328,383 @@ abstract class LauncherBase implements Launcher {
     thread
   }
 
+  protected JavaExecParams createRunnerExecParams() {
+    JavaExecParams params = new JavaExecParams()
+    params.main = 'org.akhikhl.gretty.Runner'
+    params.args = ["--statusAddress=${reader.address}".toString(), "--serverManagerFactory=${getServerManagerFactory()}".toString()]
+    if(reader.unixDomain)
+      params.args += "--serviceSocket=${getServiceSocketFile('service').absolutePath}".toString()
+    if (log.isDebugEnabled()) {
+      params.args += "--debug"
+    }
+    params.debug = config.getDebug()
+    params.debugSuspend = config.getDebugSuspend()
+    params.debugPort = config.getDebugPort()
+    params.jvmExecutable = sconfig.jvmExecutable
+    params.jvmArgs = sconfig.jvmArgs
+    params.systemProperties = sconfig.systemProperties
+    if(!sconfig.secureRandom) {
+      // Speeding up tomcat startup, according to https://wiki.apache.org/tomcat/HowTo/FasterStartUp
+      // ATTENTION: replacing the blocking entropy source (/dev/random) with a non-blocking one
+      // actually reduces security because you are getting less-random data.
+      params.systemProperty 'java.security.egd', 'file:/dev/./urandom'
+    }
+    addCdsArgs(params)
+    params
+  }
+
+  protected boolean isDaemonRunnerEnabled(JavaExecParams params) {
+    if(!sconfig.daemonRunner)
+      return false
+    if(!isDaemonRunnerSupported()) {
+      log.info 'Daemon runner is not supported by {}, starting runner in foreground', getClass().simpleName
+      return false
+    }
+    if(params.debug) {
+      log.info 'Daemon runner is not used in debug mode'
+      return false
+    }
+    true
+  }
+
+  /**
+   * Returns true, when runner of this launcher may be started as daemon, see {@link #spawnDaemonRunner}.
+   */
+  protected boolean isDaemonRunnerSupported() {
+    false
+  }
+
+  /**
+   * Starts runner JVM with the runner classpath, which outlives this launcher. Output of the runner goes to the given log file.
+   */
+  protected void spawnDaemonRunner(JavaExecParams params, File logFile) {
+    String jvmExecutable = params.jvmExecutable ?: new File(System.getProperty('java.home'), File.separatorChar == (char) '\\' ? 'bin/java.exe' : 'bin/java').absolutePath
+    List<String> command = [ jvmExecutable ]
+    command.addAll(params.jvmArgs ?: [])
+    params.systemProperties?.each { String key, String value ->
+      command.add("-D${key}=${value}".toString())
+    }
+    command.addAll([ '-cp', getRunnerClasspathFiles().collect { File file -> file.absolutePath }.join(File.pathSeparator), params.main ])
+    command.addAll(params.args)
+    log.debug 'Launching daemon runner process: {}', command.join(' ')
+    new ProcessBuilder(command)
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+      .start()
+  }
+
+  /**
+   * Daemon runner files (properties, log, unix socket) are placed next to the port properties file,
+   * one daemon per servlet container.
+   */
+  protected File getDaemonRunnerFile(String extension) {
+    new File(getPortPropertiesFile().parentFile, "gretty_daemon_${getServletContainerId()}.${extension}")
+  }
+
+  /**
+   * Daemon runner is reused only when it was started with the same JVM and servlet container settings.
+   */
+  protected String getDaemonRunnerKey(JavaExecParams params) {
+    List<String> parts = [ getServletContainerId(), params.jvmExecutable ?: '', params.jvmArgs?.join(' ') ?: '',
+      String.valueOf(new TreeMap(params.systemProperties ?: [:])), getServletContainerClasspath().join(File.pathSeparator) ]
+    parts.join('\n').sha256()
+  }
+
+  /**
+   * Returns channel to the idle daemon runner, which accepted this launcher, or null.
+   */
+  protected ServiceProtocol.Channel attachToDaemonRunner(JavaExecParams params) {
+    File daemonFile = getDaemonRunnerFile('properties')
+    if(!daemonFile.exists())
+      return null
+    Properties props = new Properties()
+    daemonFile.withReader 'UTF-8', {
+      props.load(it)
+    }
+    String daemonAddress = ServiceProtocol.loadAddress(props, 'service')
+    long startTime = System.nanoTime()
+    ServiceProtocol.Channel daemonChannel
+    try {
+      daemonChannel = ServiceProtocol.openChannel(daemonAddress)
+    } catch(IOException e) {
+      log.info 'Daemon runner at {} is not reachable ({}), starting new one', daemonAddress, e.toString()
+      daemonFile.delete()
+      return null
+    }
+    if(props.getProperty('daemonKey') != getDaemonRunnerKey(params)) {
+      replaceDaemonRunner(daemonChannel, daemonFile)
+      return null
+    }
+    String response
+    try {
+      response = daemonChannel.request("attach ${reader.address}".toString()).get(10, TimeUnit.SECONDS)
+    } catch(ExecutionException | TimeoutException e) {
+      response = e.toString()
+    }
+    if(response != 'attached') {
+      log.warn 'Daemon runner at {} cannot be used ({}), starting runner in foreground', daemonAddress, response
+      daemonRunnerBusy = true
+      daemonChannel.close()
+      return null
+    }
+    log.info 'Attached to daemon runner at {} in {} ms', daemonAddress, (System.nanoTime() - startTime).intdiv(1000000L)
+    daemonChannel
+  }
+
+  /**
+   * Daemon runner started with different settings is stopped only when it is idle. The daemon of a project
+   * may serve another launcher of the same project (e.g. appRun and appRunDebug), then this launcher
+   * runs the runner in foreground and the daemon is left alone.
+   */
+  private void replaceDaemonRunner(ServiceProtocol.Channel daemonChannel, File daemonFile) {
+    String status
+    try {
+      status = daemonChannel.request('status').get(10, TimeUnit.SECONDS)
+    } catch(ExecutionException | TimeoutException e) {
+      status = e.toString()
+    }
+    try {
+      if(status != 'idle') {
+        log.warn 'Daemon runner at {} was started with different settings and cannot be replaced ({}), starting runner in foreground', daemonChannel.address, status
+        daemonRunnerBusy = true
+        return
+      }
+      log.info 'Daemon runner at {} was started with different settings, replacing it', daemonChannel.address
+      daemonChannel.send('exit')
+      daemonFile.delete()
+    } finally {
+      daemonChannel.close()
+    }
+  }
+
+  protected void addDaemonRunnerArgs(JavaExecParams params) {
+    File daemonFile = getDaemonRunnerFile('properties')
+    params.args = params.args.findAll { !it.startsWith('--serviceSocket=') }
+    params.args += "--daemonFile=${daemonFile.absolutePath}".toString()
+    params.args += "--daemonKey=${getDaemonRunnerKey(params)}".toString()
+    params.args += "--daemonIdleTimeout=${sconfig.daemonRunnerIdleTimeout ?: 120}".toString()
+    if(reader.unixDomain)
+      params.args += "--serviceSocket=${getDaemonRunnerFile('sock').absolutePath}".toString()
+    log.info 'Starting daemon runner, its output goes to {}', getDaemonRunnerFile('log')
+  }
+
+  /**
+   * Daemon runner does not exit when the server stops, it notifies the launcher instead.
+   */
+  protected void waitForDaemonRunnerStop() {
+    try {
+      while(true) {
+        ServiceProtocol.Message message = reader.readRequest(1000L)
+        if(message?.text == 'stopped')
+          break
+        ServiceProtocol.Channel currentChannel = channel
+        if(message == null && currentChannel != null && !currentChannel.open) {
+          log.warn 'Lost connection to daemon runner'
+          break
+        }
+      }
+    } catch(ClosedChannelException ignored) {
+      // launcher is being disposed
+    }
+  }
+
   protected void prepareToRun(WebAppConfig wconfig) {
     wconfig.prepareToRun()
   }
 
   protected abstract void rebuildWebapps()
 
+  /**
+   * Sends command to the runner and waits for the reply to it.
+   * Uses framed channel when it is open, otherwise falls back to the legacy protocol.
+   */
+  protected String sendCommandAndWait(String command) {
+    log.debug 'Sending command: {}', command
+    long startTime = System.nanoTime()
+    String response
+    if(channel != null)
+      response = channel.request(command).get()
+    else {
+      Future<String> futureResponse = reader.readMessageAsync()
+      writer.write(command)
+      response = futureResponse.get()
+    }
+    log.info '{} round trip took {} ms ({} protocol)', command, (System.nanoTime() - startTime).intdiv(1000000L), channel != null ? 'framed' : 'legacy'
+    response
+  }
+
+  /**
+   * Sends run configuration to the runner and waits for the start status.
+   * Framed channel carries binary encoded config (see {@link RunConfigCodec}), legacy protocol carries JSON.
+   */
+  protected String sendRunConfigAndWait(Map<String, Object> runConfig) {
+    long startTime = System.nanoTime()
+    String response
+    int messageSize
+    if(channel != null) {
+      byte[] data = RunConfigCodec.encode(runConfig)
+      messageSize = data.length
+      response = channel.request(data).get()
+    } else {
+      String json = JsonOutput.toJson(runConfig)
+      messageSize = json.length()
+      Future<String> futureResponse = reader.readMessageAsync()
+      writer.write(json)
+      response = futureResponse.get()
+    }
+    log.info 'runConfig ({} webapps, {} bytes) round trip took {} ms ({} protocol)', webAppConfigs.size(), messageSize, (System.nanoTime() - startTime).intdiv(1000000L), channel != null ? 'framed' : 'legacy'
+    response
+  }
+
+  /**
+   * Start info carries (re)start latency measured by the runner.
+   */
+  protected void logStartTiming(Map startInfo) {
+    if(startInfo.startDuration != null)
+      log.info '{} took {} ms', startInfo.startMode, startInfo.startDuration
+    if(startInfo.runnerUptime != null)
+      log.info 'server started {} ms after runner JVM launch', startInfo.runnerUptime
+    startInfo.contextStartTimes?.each { contextPath, startTime ->
+      log.info '  {} started in {} ms', contextPath, startTime
+    }
+  }
+
+  /**
+   * Requests every webapp once over http, so that classes handling requests get loaded too.
+   */
+  void sendTrainingRequests() {
+    if(!serverStartInfo?.httpPort)
+      return
+    for(Object context in (List) serverStartInfo.contexts) {
+      String contextPath = (String) ((Map) context).contextPath
+      if(!contextPath.endsWith('/'))
+        contextPath += '/'
+      URL url = new URL("http://${serverStartInfo.host}:${serverStartInfo.httpPort}${contextPath}")
+      try {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection()
+        connection.connectTimeout = 10000
+        connection.readTimeout = 60000
+        int responseCode = connection.responseCode
+        InputStream input = responseCode < 400 ? connection.inputStream : connection.errorStream
+        input?.withStream { InputStream it -> it.bytes }
+        log.info 'Training request {} -> {}', url, responseCode
+      } catch(IOException e) {
+        log.info 'Training request {} failed: {}', url, e.toString()
+      }
+    }
+  }
+
   protected void stopServer() {
     log.debug 'Sending command: {}', 'stop'
-    writer.write('stop')
-  }
-
-  @CompileDynamic
-  protected void writeRunConfigJson(json) {
-    def self = this
-    json.with {
-      servletContainerId self.getServletContainerId()
-      servletContainerDescription self.getServletContainerDescription()
-      servletContainerClasspath self.getServletContainerClasspath()
-      if(sconfig.host)
-        host sconfig.host
-      if(sconfig.httpEnabled) {
-        httpEnabled sconfig.httpEnabled
-        if(sconfig.httpPort)
-          httpPort sconfig.httpPort
-        if(sconfig.httpIdleTimeout)
-          httpIdleTimeout sconfig.httpIdleTimeout
-      }
-      if(sconfig.httpsEnabled) {
-        httpsEnabled sconfig.httpsEnabled
-        if(sconfig.httpsPort)
-          httpsPort sconfig.httpsPort
-        if(sconfig.httpsIdleTimeout)
-          httpsIdleTimeout sconfig.httpsIdleTimeout
-        if(sconfig.sslKeyStorePath)
-          sslKeyStorePath self.fileToString(sconfig.sslKeyStorePath)
-        if(sconfig.sslKeyStorePassword)
-          sslKeyStorePassword sconfig.sslKeyStorePassword
-        if(sconfig.sslKeyManagerPassword)
-          sslKeyManagerPassword sconfig.sslKeyManagerPassword
-        if(sconfig.sslTrustStorePath)
-          sslTrustStorePath self.fileToString(sconfig.sslTrustStorePath)
-        if(sconfig.sslTrustStorePassword)
-          sslTrustStorePassword sconfig.sslTrustStorePassword
-        if(sconfig.sslNeedClientAuth)
-          sslNeedClientAuth sconfig.sslNeedClientAuth
-      }
-      if(sconfig.realm)
-        realm sconfig.realm
-      if(sconfig.realmConfigFile)
-        realmConfigFile self.fileToString(sconfig.realmConfigFile)
-      if(sconfig.serverConfigFile)
-        serverConfigFile self.fileToString(sconfig.serverConfigFile)
-      if(config.baseDir)
-        baseDir config.baseDir.absolutePath
-      if(sconfig.singleSignOn != null)
-        singleSignOn sconfig.singleSignOn
-      if(sconfig.enableNaming != null)
-        enableNaming sconfig.enableNaming
-      if(config.productMode)
-        productMode true
-      webApps webAppConfigs.collect { WebAppConfig wconfig ->
-        { ->
-          inplace wconfig.inplace
-          inplaceMode wconfig.inplaceMode
-          if(wconfig.springBoot)
-            springBoot true
-          self.writeWebAppClassPath(delegate, wconfig)
-          contextPath wconfig.contextPath
-          webXml wconfig.webXml
-          resourceBase self.fileToString(wconfig.resourceBase)
-          if(wconfig.extraResourceBases)
-            extraResourceBases wconfig.extraResourceBases.collect({ self.fileToString(it) })
-          if(wconfig.initParameters)
-            initParameters wconfig.initParameters
-          if(wconfig.realm)
-            realm wconfig.realm
-          if(wconfig.realmConfigFile)
-            realmConfigFile self.fileToString(wconfig.realmConfigFile)
-          if(wconfig.contextConfigFile)
-            contextConfigFile self.fileToString(wconfig.contextConfigFile)
-          if(wconfig.springBootMainClass)
-            springBootMainClass wconfig.springBootMainClass
-          if(wconfig.webInfIncludeJarPattern)
-            webInfIncludeJarPattern wconfig.webInfIncludeJarPattern
+    if(channel != null)
+      channel.send('stop')
+    else
+      writer.write('stop')
+  }
 
-        }
-      }
+  /**
+   * Creates run configuration of the server and webapps, as it is sent to the runner.
+   */
+  protected Map<String, Object> createRunConfig() {
+    Map<String, Object> json = [:]
+    json.servletContainerId = getServletContainerId()
+    json.servletContainerDescription = getServletContainerDescription()
+    json.servletContainerClasspath = getServletContainerClasspath()
+    if(sconfig.host)
+      json.host = sconfig.host
+    if(sconfig.httpEnabled) {
+      json.httpEnabled = sconfig.httpEnabled
+      if(sconfig.httpPort)
+        json.httpPort = sconfig.httpPort
+      if(sconfig.httpIdleTimeout)
+        json.httpIdleTimeout = sconfig.httpIdleTimeout
+    }
+    if(sconfig.httpsEnabled) {
+      json.httpsEnabled = sconfig.httpsEnabled
+      if(sconfig.httpsPort)
+        json.httpsPort = sconfig.httpsPort
+      if(sconfig.httpsIdleTimeout)
+        json.httpsIdleTimeout = sconfig.httpsIdleTimeout
+      if(sconfig.sslKeyStorePath)
+        json.sslKeyStorePath = fileToString(sconfig.sslKeyStorePath)
+      if(sconfig.sslKeyStorePassword)
+        json.sslKeyStorePassword = sconfig.sslKeyStorePassword
+      if(sconfig.sslKeyManagerPassword)
+        json.sslKeyManagerPassword = sconfig.sslKeyManagerPassword
+      if(sconfig.sslTrustStorePath)
+        json.sslTrustStorePath = fileToString(sconfig.sslTrustStorePath)
+      if(sconfig.sslTrustStorePassword)
+        json.sslTrustStorePassword = sconfig.sslTrustStorePassword
+      if(sconfig.sslNeedClientAuth)
+        json.sslNeedClientAuth = sconfig.sslNeedClientAuth
     }
+    if(sconfig.realm)
+      json.realm = sconfig.realm
+    if(sconfig.realmConfigFile)
+      json.realmConfigFile = fileToString(sconfig.realmConfigFile)
+    if(sconfig.serverConfigFile)
+      json.serverConfigFile = fileToString(sconfig.serverConfigFile)
+    if(config.baseDir)
+      json.baseDir = config.baseDir.absolutePath
+    if(sconfig.singleSignOn != null)
+      json.singleSignOn = sconfig.singleSignOn
+    if(sconfig.enableNaming != null)
+      json.enableNaming = sconfig.enableNaming
+    if(config.productMode)
+      json.productMode = true
+    if(sconfig.restartMode)
+      json.restartMode = sconfig.restartMode
+    if(sconfig.redeployMode == 'blueGreen') {
+      json.redeployMode = sconfig.redeployMode
+      json.redeployDrainTimeout = sconfig.redeployDrainTimeout
+    }
+    if(sconfig.contextStartupThreads != null && sconfig.contextStartupThreads > 1)
+      json.contextStartupThreads = sconfig.contextStartupThreads
+    if(sconfig.learnJarSkipList)
+      json.learnJarSkipList = true
+    if(sconfig.shareWebappLibs)
+      json.shareWebappLibs = true
+    json.webApps = webAppConfigs.collect { WebAppConfig wconfig -> createWebAppRunConfig(wconfig) }
+    json
+  }
+
+  protected Map<String, Object> createWebAppRunConfig(WebAppConfig wconfig) {
+    Map<String, Object> json = [:]
+    json.inplace = wconfig.inplace
+    json.inplaceMode = wconfig.inplaceMode
+    if(wconfig.springBoot)
+      json.springBoot = true
+    writeWebAppClassPath(json, wconfig)
+    json.contextPath = wconfig.contextPath
+    json.webXml = wconfig.webXml
+    json.resourceBase = fileToString(wconfig.resourceBase)
+    if(wconfig.extraResourceBases)
+      json.extraResourceBases = wconfig.extraResourceBases.collect({ fileToString(it) })
+    if(wconfig.initParameters)
+      json.initParameters = wconfig.initParameters
+    if(wconfig.realm)
+      json.realm = wconfig.realm
+    if(wconfig.realmConfigFile)
+      json.realmConfigFile = fileToString(wconfig.realmConfigFile)
+    if(wconfig.contextConfigFile)
+      json.contextConfigFile = fileToString(wconfig.contextConfigFile)
+    if(wconfig.springBootMainClass)
+      json.springBootMainClass = wconfig.springBootMainClass
+    if(wconfig.webInfIncludeJarPattern)
+      json.webInfIncludeJarPattern = wconfig.webInfIncludeJarPattern
+    if(wconfig.startupOrder != null)
+      json.startupOrder = wconfig.startupOrder
+    if(wconfig.unsharedLibs)
+      json.unsharedLibs = wconfig.unsharedLibs
+    json
   }
 
-  @CompileDynamic
-  protected void writeWebAppClassPath(json, WebAppConfig webAppConfig) {
+  protected void writeWebAppClassPath(Map<String, Object> json, WebAppConfig webAppConfig) {
     def classPathResolver = config.getWebAppClassPathResolver()
     if(classPathResolver) {
       def classPath = classPathResolver.resolveWebAppClassPath(webAppConfig)
       if(classPath)
-        json.webappClassPath classPath
+        json.webappClassPath = classPath.collect { it.toString() }
     }
   }
 }
@@ -59,11 +59,81 @@ class ServerConfig {
    */
   Boolean enableNaming
 
+  /**
+   * How changed webapps are reloaded: 'restart' restarts the server, 'redeploy' replaces the changed contexts,
+   * 'blueGreen' starts the replacement contexts next to the old ones, switches requests to them once they are started
+   * and stops the old contexts after their in-flight requests completed.
+   */
   String redeployMode
+
+  /**
+   * Seconds to wait for in-flight requests of the old contexts in 'blueGreen' redeployMode, before they are stopped anyway.
+   */
+  Integer redeployDrainTimeout
+
+  /**
+   * How 'restart' commands are executed: 'server' rebuilds the whole server,
+   * 'contexts' keeps server, connectors and thread pool running and replaces only webapp contexts.
+   */
+  String restartMode
+
+  /**
+   * Number of threads starting webapp contexts. When greater than 1, independent contexts
+   * (webapps with the same startupOrder) are created and started concurrently.
+   */
+  Integer contextStartupThreads
+
   String scanner
 
+  /**
+   * Milliseconds the 'watch' scanner waits for further file system events before handling a batch of changes.
+   */
+  Integer scanDebounce
+
+  /**
+   * Maximum number of directories the 'jdk' scanner registers for file system events
+   * (also bounded by half of inotify max_user_watches). Scan dirs beyond the limit are polled every scanInterval seconds.
+   */
+  Integer scanMaxWatchedDirs
+
   String portPropertiesFileName
 
+  /**
+   * Wire format of the control channel between gradle and runner:
+   * 'framed' (one persistent connection with request ids) or 'legacy' (one connection per message).
+   */
+  String serviceProtocol
+
+  /**
+   * Transport of the control channel: 'tcp' (loopback) or 'unix' (unix domain socket next to the port properties file).
+   * When unix domain sockets cannot be used, loopback TCP is used instead.
+   */
+  String serviceTransport
+
+  /**
+   * When true, the runner JVM stays alive after the server stops and is reused by the next run
+   * with the same servlet container and JVM settings. Not used in debug mode.
+   */
+  Boolean daemonRunner
+
+  /**
+   * Minutes an idle daemon runner waits for the next run before it exits.
+   */
+  Integer daemonRunnerIdleTimeout
+
+  /**
+   * Tomcat only: when true, jars found to have nothing to scan (no TLDs, web fragment, resources,
+   * servlet container initializers or annotations) are remembered in baseDir and skipped on next starts,
+   * until they change.
+   */
+  Boolean learnJarSkipList
+
+  /**
+   * When true, jars used in identical form (same name and checksum) by all webapps of the server
+   * are loaded once by a class loader shared by the webapps. See unsharedLibs of webapp for exceptions.
+   */
+  Boolean shareWebappLibs
+
   static ServerConfig getDefaultServerConfig(String serverName) {
     ServerConfig result = new ServerConfig()
     result.jvmArgs = []
@@ -74,8 +144,19 @@ class ServerConfig {
     result.interactiveMode = 'stopOnKeyPress'
     result.scanInterval = 1
     result.redeployMode = 'restart'
+    result.redeployDrainTimeout = 30
+    result.restartMode = 'server'
+    result.contextStartupThreads = 1
     result.scanner = 'jetty'
+    result.scanDebounce = 200
+    result.scanMaxWatchedDirs = 20000
     result.portPropertiesFileName = 'gretty_ports.properties'
+    result.serviceProtocol = 'framed'
+    result.serviceTransport = 'tcp'
+    result.daemonRunner = false
+    result.daemonRunnerIdleTimeout = 120
+    result.learnJarSkipList = false
+    result.shareWebappLibs = false
     return result
   }
 
@@ -58,6 +58,21 @@ class WebAppConfig {
   Boolean springBoot
   String springBootMainClass
 
+  /*
+   * Webapps with lower startupOrder are started before webapps with higher one, 0 by default
+   */
+  Integer startupOrder
+
+  /*
+   * With shareWebappLibs, file name patterns ('*' matches any characters) of jars, which are not shared with other webapps
+   */
+  List<String> unsharedLibs
+
+  /*
+   * Index of the runner JVM running the webapp in a farm split to shards. Webapps without it go to the least loaded shard
+   */
+  Integer shard
+
   private static void addClassPathEntries(Set<String> classPath, Object... args) {
     for(def arg in args) {
       if(arg != null) {
@@ -1,25 +1,44 @@
 package org.akhikhl.gretty
 
-import groovy.servlet.ServletCategory
 import groovyx.net.http.URIBuilder
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
 import jakarta.servlet.*
-import java.util.regex.Pattern
+import jakarta.servlet.http.HttpServletRequest
+import jakarta.servlet.http.HttpServletResponse
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchEvent
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import javax.management.MBeanServer
+import javax.management.MBeanServerDelegate
+import javax.management.MBeanServerNotification
+import javax.management.Notification
+import javax.management.NotificationListener
 import javax.management.ObjectName
+import org.codehaus.groovy.runtime.InvokerHelper
 import org.codehaus.groovy.control.customizers.ImportCustomizer
 import org.codehaus.groovy.control.CompilerConfiguration
 
-@CompileStatic(TypeCheckingMode.SKIP)
+@CompileStatic
 class RedirectFilter implements Filter {
 
-  private static enum FilterAction {
+  static enum FilterAction {
     CHAIN,
     REDIRECT,
     FORWARD
   }
 
-  private static URI buildURI(destination, URI defaultURI) {
+  @CompileStatic(TypeCheckingMode.SKIP)
+  static URI buildURI(destination, URI defaultURI) {
     if(destination instanceof URI)
       return destination
     if(destination instanceof URIBuilder)
@@ -51,142 +70,378 @@ class RedirectFilter implements Filter {
   }
 
   protected ServletContext servletContext
-  protected Integer httpPort
-  protected Integer httpsPort
+  protected volatile Integer httpPort
+  protected volatile Integer httpsPort
+  // false until connectors are looked up, reset when connectors change
+  protected volatile boolean portsDiscovered
   protected File webappDir
   protected URL filterConfigUrl
   protected long configFileLastModified = 0
-  protected Object filtersLock = new Object()
-  protected List filters = []
+  protected String configHash
+  // milliseconds between checks of filter.groovy for changes, when no file events arrive
+  protected long configCheckInterval = 1000
+  // milliseconds without file events, after which changed filter.groovy is reloaded
+  protected long configDebounce = 200
+  // replaced as a whole by the config watcher, when filter.groovy changes
+  protected volatile RedirectRules rules = RedirectRules.EMPTY
+
+  // characters allowed in URI besides letters, digits and escapes
+  private static final String URI_CHARS = ';/?:@&=+$,[]-_.!~*\'()'
+
+  /**
+   * Clients send query strings with characters, which are not allowed in URI (like '|', '{' or space),
+   * and with '%' not followed by two hex digits. These are percent-encoded, legal characters and escapes are kept as is.
+   */
+  static URI quoteRequestURI(String uri) throws URISyntaxException {
+    StringBuilder result = null
+    int length = uri.length()
+    for(int i = 0; i < length; i++) {
+      char c = uri.charAt(i)
+      boolean legal
+      if(c == (char) '%')
+        legal = i + 2 < length && Character.digit(uri.charAt(i + 1), 16) >= 0 && Character.digit(uri.charAt(i + 2), 16) >= 0
+      else if(c < (char) 128)
+        legal = Character.isLetterOrDigit(c) || URI_CHARS.indexOf((int) c) >= 0
+      else
+        legal = !Character.isISOControl(c) && !Character.isSpaceChar(c)
+      if(legal) {
+        result?.append(c)
+        continue
+      }
+      if(result == null)
+        result = new StringBuilder(length + 16).append(uri, 0, i)
+      int end = Character.isHighSurrogate(c) && i + 1 < length ? i + 2 : i + 1
+      for(byte b in uri.substring(i, end).getBytes('UTF-8'))
+        result.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)))
+      i = end - 1
+    }
+    new URI(result == null ? uri : result.toString())
+  }
+
+  /**
+   * Name of servlet context attribute holding Metrics of this filter.
+   */
+  static final String METRICS_ATTRIBUTE = 'org.akhikhl.gretty.RedirectFilter.metrics'
+
+  static final class Metrics {
+    volatile long reloadCount
+    volatile long compileCount
+    volatile long compileCacheHits
+    volatile long lastCompileMillis
+    volatile long totalCompileMillis
+    volatile long lastReloadTime
+
+    @Override
+    String toString() {
+      "reloads=$reloadCount, compiles=$compileCount, compileCacheHits=$compileCacheHits, lastCompileMillis=$lastCompileMillis, totalCompileMillis=$totalCompileMillis"
+    }
+  }
+
+  final Metrics metrics = new Metrics()
+
+  // content hash -> compiled filter.groovy, so that reverting the file does not compile it again
+  private final Map<String, Class> scriptCache = new LinkedHashMap<String, Class>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Class> eldest) {
+      size() > 8
+    }
+  }
+  private Thread configWatcher
+  private volatile WatchService watchService
+  private volatile boolean destroyed
+  private ConnectorListener connectorListener
 
   RedirectFilter() {
   }
 
   @Override
   public void destroy() {
+    destroyed = true
+    try {
+      watchService?.close()
+    } catch(IOException e) {
+    }
+    configWatcher?.interrupt()
+    configWatcher = null
+    connectorListener?.remove()
+    connectorListener = null
   }
 
   @Override
   public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
-    loadFilters()
-    Map result = [ action: FilterAction.CHAIN ]
-    def filterContext = new Expando()
-    filterContext.httpPort = httpPort
-    filterContext.httpsPort = httpsPort
-    filterContext.request = req
-    filterContext.response = resp
-    def uriBuilder = new URIBuilder(req.getRequestURL().toString())
-    uriBuilder.setRawQuery(req.getQueryString())
-    filterContext.requestURI = uriBuilder.toURI()
-    filterContext.contextPath = req.getContextPath()
-    filterContext.webappDir = webappDir
-    filterContext.redirect = { destination ->
-      result.action = FilterAction.REDIRECT
-      result.uri = buildURI(destination, filterContext.requestURI)
-      servletContext.log('rule redirects to: ' + result.uri)
-    }
-    filterContext.forward = { destination ->
-      result.action = FilterAction.FORWARD
-      result.uri = buildURI(destination, filterContext.requestURI)
-      servletContext.log('rule forwards to: ' + result.uri)
-    }
-    List filters = []
-    synchronized (filtersLock) {
-      for(def f in this.filters) {
-        Closure closure = f.closure.rehydrate(filterContext, f.owner, f.thisObject)
-        closure.resolveStrategy = Closure.DELEGATE_FIRST
-        filters.add([options: f.options, closure: closure])
-      }
+    RedirectRules rules = this.rules
+    HttpServletRequest httpReq = (HttpServletRequest) req
+    String contextPath = httpReq.getContextPath()
+    if(!rules.mayMatch(httpReq.getRequestURI(), contextPath, httpReq.getServerName())) {
+      chain.doFilter(req, resp)
+      return
     }
-    use(ServletCategory) {
-      while(true) {
-        filterContext.authority = filterContext.requestURI.authority
-        filterContext.fragment = filterContext.requestURI.fragment
-        filterContext.host = filterContext.requestURI.host
-        filterContext.path = filterContext.requestURI.path
-        filterContext.port = filterContext.requestURI.port
-        filterContext.query = filterContext.requestURI.query
-        filterContext.scheme = filterContext.requestURI.scheme
-        filterContext.userInfo = filterContext.requestURI.userInfo
-        filterContext.relPath = filterContext.path - filterContext.contextPath
-        if(!matchFilter(result, filters, filterContext, req, resp))
-          break
-        if(result.action == FilterAction.CHAIN || result.action == FilterAction.REDIRECT)
-          break
-        filterContext.requestURI = result.uri
-      }
+    RedirectFilterContext filterContext = new RedirectFilterContext(this, req, resp, contextPath)
+    filterContext.webappDir = webappDir
+    String queryString = httpReq.getQueryString()
+    String requestURL = httpReq.getRequestURL().toString()
+    try {
+      filterContext.requestURI = quoteRequestURI(queryString == null ? requestURL : requestURL + '?' + queryString)
+    } catch(URISyntaxException e) {
+      servletContext.log('doFilter passes request with invalid uri: ' + e.message)
+      chain.doFilter(req, resp)
+      return
     }
-    servletContext.log('doFilter result=' + result)
-    switch(result.action) {
-      case FilterAction.CHAIN:
-        chain.doFilter(req, resp)
-        break
-      case FilterAction.REDIRECT:
-        resp.sendRedirect(result.uri.toString())
+    while(true) {
+      // rules are applied again to the forwarded uri, the forward stands when no rule acts on it
+      FilterAction previousAction = filterContext.filterAction
+      URI previousURI = filterContext.resultURI
+      filterContext.filterAction = FilterAction.CHAIN
+      if(!rules.apply(filterContext)) {
+        filterContext.filterAction = previousAction
+        filterContext.resultURI = previousURI
         break
-      case FilterAction.FORWARD:
-        String forwardPath = result.uri.schemeSpecificPart - '//' - result.uri.authority
-        req.getRequestDispatcher(forwardPath).forward(req, resp)
+      }
+      if(filterContext.filterAction != FilterAction.FORWARD)
         break
+      filterContext.requestURI = filterContext.resultURI
     }
-  }
-
-  private boolean matchFilter(Map result, List filters, filterContext, ServletRequest req, ServletResponse resp) {
-    filters.find { filter ->
-      def matches = [:]
-      for(def option in filter.options) {
-        boolean matchResult = false
-        if (option.value instanceof String || option.value instanceof GString) {
-          if (filterContext[option.key] == option.value)
-            matchResult = true
-        } else if (option.value instanceof Pattern) {
-          def m = filterContext[option.key] =~ option.value
-          if (m) {
-            matches[option.key] = m[0].collect()
-            matchResult = true
-          }
-        }
-        if(!matchResult)
-          return false
-      }
-      filter.closure.call(matches)
-      return result.action != FilterAction.CHAIN // interrupt find, when not chaining
+    FilterAction action = filterContext.filterAction
+    if(action == FilterAction.CHAIN) {
+      chain.doFilter(req, resp)
+      return
+    }
+    URI uri = filterContext.resultURI
+    servletContext.log('doFilter result=' + [action: action, uri: uri])
+    if(action == FilterAction.REDIRECT)
+      ((HttpServletResponse) resp).sendRedirect(uri.toString())
+    else {
+      String forwardPath = RedirectFilterContext.minus(uri.schemeSpecificPart, '//')
+      if(uri.authority != null)
+        forwardPath = RedirectFilterContext.minus(forwardPath, uri.authority)
+      req.getRequestDispatcher(forwardPath).forward(req, resp)
     }
   }
 
   @Override
   public void init(FilterConfig config) throws ServletException {
     servletContext = config.getServletContext()
-    if(servletContext.hasProperty('contextHandler')) {
-      // jetty-specific
-      def server = servletContext.contextHandler.server
-      server.connectors.each { conn ->
-        if(conn.protocols.find { it.startsWith 'http/' } && !conn.protocols.find { it.startsWith 'ssl-http/' })
-          httpPort = conn.port instanceof Integer ? conn.port : Integer.parseInt(conn.port.toString(), 8080)
-        else if(conn.protocols.find { it.startsWith 'http/' } && conn.protocols.find { it.startsWith 'ssl-http/' })
-          httpsPort = conn.port instanceof Integer ? conn.port : Integer.parseInt(conn.port.toString(), 8443)
+    connectorListener = ConnectorListener.register(this)
+    String webappDirPath = servletContext.getRealPath('/')
+    webappDir = webappDirPath ? new File(webappDirPath) : null
+    filterConfigUrl = servletContext.getResource('/WEB-INF/filter.groovy')
+    servletContext.setAttribute(METRICS_ATTRIBUTE, metrics)
+    reloadFilters()
+    if(filterConfigUrl?.protocol == 'file')
+      startConfigWatcher(new File(filterConfigUrl.toURI()))
+  }
+
+  /**
+   * Port of http connector, looked up on first use and again after connectors change.
+   */
+  Integer getHttpPort() {
+    if(!portsDiscovered)
+      discoverPorts()
+    httpPort
+  }
+
+  /**
+   * Port of https connector, looked up on first use and again after connectors change.
+   */
+  Integer getHttpsPort() {
+    if(!portsDiscovered)
+      discoverPorts()
+    httpsPort
+  }
+
+  /**
+   * Forgets the discovered ports, so that they are looked up again on next use.
+   */
+  void refreshPorts() {
+    portsDiscovered = false
+  }
+
+  protected synchronized void discoverPorts() {
+    if(portsDiscovered)
+      return
+    Map<String, Integer> ports = [:]
+    // ports of connectors not started yet are unknown, they are looked up again on next use
+    boolean complete = servletContext.hasProperty('contextHandler') ? discoverJettyPorts(ports) : discoverTomcatPorts(ports)
+    if(httpPort != ports.http || httpsPort != ports.https) {
+      servletContext.log('found httpPort=' + ports.http)
+      servletContext.log('found httpsPort=' + ports.https)
+    }
+    httpPort = ports.http
+    httpsPort = ports.https
+    portsDiscovered = complete
+  }
+
+  @CompileStatic(TypeCheckingMode.SKIP)
+  protected boolean discoverJettyPorts(Map<String, Integer> ports) {
+    boolean complete = true
+    for(def conn in servletContext.contextHandler.server.connectors) {
+      boolean http = conn.protocols.find { it.startsWith 'http/' }
+      boolean ssl = conn.protocols.find { it.startsWith 'ssl-http/' }
+      if(!http)
+        continue
+      int port = conn.hasProperty('localPort') && conn.localPort > 0 ? conn.localPort : conn.port
+      if(port <= 0)
+        complete = false
+      ports.put(ssl ? 'https' : 'http', port > 0 ? port : null)
+    }
+    complete
+  }
+
+  protected boolean discoverTomcatPorts(Map<String, Integer> ports) {
+    boolean complete = true
+    MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer()
+    for(ObjectName connName in mbeans.queryNames(new ObjectName('Tomcat:type=Connector,*'), null)) {
+      Object scheme = mbeans.getAttribute(connName, 'scheme')
+      if(scheme != 'http' && scheme != 'https')
+        continue
+      int port = (Integer) mbeans.getAttribute(connName, 'port')
+      try {
+        int localPort = (Integer) mbeans.getAttribute(connName, 'localPort')
+        if(localPort > 0)
+          port = localPort
+      } catch(Exception e) {
+        // older tomcat
       }
+      if(port <= 0)
+        complete = false
+      ports.put((String) scheme, port > 0 ? port : null)
     }
-    else {
-      // tomcat-specific
-      def mbeans = java.lang.management.ManagementFactory.getPlatformMBeanServer()
-      for(def connName in mbeans.queryNames(new ObjectName('Tomcat:type=Connector,*'), null)) {
-        def conn = new GroovyMBean(mbeans, connName)
-        if(conn.scheme == 'http')
-          httpPort = conn.port
-        else if(conn.scheme == 'https')
-          httpsPort = conn.port
+    complete
+  }
+
+  /**
+   * Resets the discovered ports, when connectors are added or removed:
+   * listens to the bean events of jetty server or to the registrations of tomcat connector mbeans.
+   */
+  private static final class ConnectorListener implements InvocationHandler, NotificationListener {
+
+    private final RedirectFilter filter
+    private Object jettyServer
+    private Object jettyListener
+
+    private ConnectorListener(RedirectFilter filter) {
+      this.filter = filter
+    }
+
+    @CompileStatic(TypeCheckingMode.SKIP)
+    static ConnectorListener register(RedirectFilter filter) {
+      ConnectorListener result = new ConnectorListener(filter)
+      try {
+        if(filter.servletContext.hasProperty('contextHandler')) {
+          def server = filter.servletContext.contextHandler.server
+          ClassLoader classLoader = server.getClass().getClassLoader()
+          Class listenerClass = Class.forName('org.eclipse.jetty.util.component.Container$Listener', false, classLoader)
+          result.jettyListener = Proxy.newProxyInstance(classLoader, [ listenerClass ] as Class[], result)
+          server.addEventListener(result.jettyListener)
+          result.jettyServer = server
+        } else
+          ManagementFactory.getPlatformMBeanServer().addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, result, null, null)
+      } catch(Exception e) {
+        filter.servletContext.log('cannot listen to connector changes, ports are looked up once: ' + e)
+        return null
       }
+      result
     }
-    servletContext.log('found httpPort=' + httpPort)
-    servletContext.log('found httpsPort=' + httpsPort)
-    String webappDirPath = servletContext.getRealPath('/')
-    webappDir = webappDirPath ? new File(webappDirPath) : null
-    filterConfigUrl = servletContext.getResource('/WEB-INF/filter.groovy')
+
+    @CompileStatic(TypeCheckingMode.SKIP)
+    void remove() {
+      try {
+        if(jettyServer != null)
+          jettyServer.removeEventListener(jettyListener)
+        else
+          ManagementFactory.getPlatformMBeanServer().removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this)
+      } catch(Exception e) {
+        // server is already stopped
+      }
+    }
+
+    // jetty Container.Listener
+    @Override
+    Object invoke(Object proxy, Method method, Object[] args) {
+      switch(method.name) {
+        case 'beanAdded':
+        case 'beanRemoved':
+          filter.refreshPorts()
+          return null
+        case 'equals':
+          return proxy.is(args[0])
+        case 'hashCode':
+          return System.identityHashCode(proxy)
+        case 'toString':
+          return 'RedirectFilter connector listener'
+      }
+      null
+    }
+
+    @Override
+    void handleNotification(Notification notification, Object handback) {
+      if(notification instanceof MBeanServerNotification) {
+        ObjectName name = ((MBeanServerNotification) notification).getMBeanName()
+        if(name.domain == 'Tomcat' && name.getKeyProperty('type') == 'Connector')
+          filter.refreshPorts()
+      }
+    }
+  }
+
+  /**
+   * Watches filter.groovy on a background thread, so that requests never wait for compilation:
+   * they are served by the previous rules until the new ones are ready.
+   * File events are debounced, modification time is also checked every configCheckInterval,
+   * for file systems not delivering events.
+   */
+  protected void startConfigWatcher(File configFile) {
+    try {
+      watchService = FileSystems.getDefault().newWatchService()
+      configFile.parentFile.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE)
+    } catch(IOException e) {
+      servletContext.log('cannot watch ' + configFile + ', checking it every ' + configCheckInterval + ' ms: ' + e)
+      watchService = null
+    }
+    ClassLoader contextClassLoader = Thread.currentThread().contextClassLoader
+    configWatcher = new Thread({
+      try {
+        while(!destroyed) {
+          WatchService ws = watchService
+          if(ws == null) {
+            Thread.sleep(configCheckInterval)
+            reloadFilters()
+            continue
+          }
+          WatchKey key = ws.poll(configCheckInterval, TimeUnit.MILLISECONDS)
+          boolean changed = key != null && isConfigChanged(key, configFile.name)
+          while(changed && (key = ws.poll(configDebounce, TimeUnit.MILLISECONDS)) != null)
+            isConfigChanged(key, configFile.name)
+          reloadFilters()
+        }
+      } catch(InterruptedException | ClosedWatchServiceException e) {
+        // filter destroyed
+      }
+    } as Runnable, 'RedirectFilter config watcher')
+    configWatcher.contextClassLoader = contextClassLoader
+    configWatcher.daemon = true
+    configWatcher.start()
+  }
+
+  private static boolean isConfigChanged(WatchKey key, String configFileName) {
+    boolean result = false
+    for(WatchEvent<?> event in key.pollEvents())
+      if(event.kind() == StandardWatchEventKinds.OVERFLOW || event.context()?.toString() == configFileName)
+        result = true
+    key.reset()
+    result
   }
 
-  protected loadFilters() {
-    List newFilters = []
+  private void reloadFilters() {
+    try {
+      loadFilters()
+    } catch(Exception e) {
+      servletContext.log('failed to load ' + filterConfigUrl + ', keeping previous rules', e)
+    }
+  }
+
+  protected void loadFilters() {
+    if(filterConfigUrl == null)
+      return
     if (filterConfigUrl.protocol == 'jar' || filterConfigUrl.protocol == 'jndi') {
       if(configFileLastModified == 0) {
         String configText
@@ -194,50 +449,60 @@ class RedirectFilter implements Filter {
           if(filterConfigStream != null)
             configText = filterConfigStream.getText('UTF-8')
         }
-        if(configText) {
-          Binding binding = new Binding()
-          binding.filter = { Map options, Closure closure ->
-            newFilters.add([options: options, closure: closure])
-          }
-          def importCustomizer = new ImportCustomizer()
-          importCustomizer.addImport 'URIBuilder', 'groovyx.net.http.URIBuilder'
-          def configuration = new CompilerConfiguration()
-          configuration.addCompilationCustomizers(importCustomizer)
-          def shell = new GroovyShell(this.getClass().getClassLoader(), binding, configuration)
-          def script = shell.parse(configText)
-          script.run()
-        }
-        synchronized (filtersLock) {
-          configFileLastModified = new Date().getTime()
-          filters = newFilters
-        }
+        configFileLastModified = System.currentTimeMillis()
+        setRules(configText ? compileRules(configText) : RedirectRules.EMPTY)
       }
     } else if(filterConfigUrl.protocol == 'file') {
-      boolean configModified = true
-      long configFileLastModified = new Date().getTime()
       File configFile = new File(filterConfigUrl.toURI())
-      if(configFile.exists()) {
-        configModified = this.configFileLastModified != configFile.lastModified()
-        if(configModified) {
-          configFileLastModified = configFile.lastModified()
-          Binding binding = new Binding()
-          binding.filter = { Map options, Closure closure ->
-            newFilters.add([options: options, closure: closure])
-          }
-          def importCustomizer = new ImportCustomizer()
-          importCustomizer.addImport 'URIBuilder', 'groovyx.net.http.URIBuilder'
-          def configuration = new CompilerConfiguration()
-          configuration.addCompilationCustomizers(importCustomizer)
-          def shell = new GroovyShell(this.getClass().getClassLoader(), binding, configuration)
-          def script = shell.parse(configFile)
-          script.run()
-        }
-      }
-      if(configModified)
-        synchronized (filtersLock) {
-          this.configFileLastModified = configFileLastModified
-          filters = newFilters
-        }
+      long lastModified = configFile.lastModified() // 0 if file does not exist
+      if(lastModified == configFileLastModified)
+        return
+      configFileLastModified = lastModified
+      String configText = lastModified == 0 ? null : configFile.getText('UTF-8')
+      String hash = configText == null ? null : contentHash(configText)
+      if(hash == configHash)
+        return // touched, but not changed
+      configHash = hash
+      setRules(configText == null ? RedirectRules.EMPTY : compileRules(configText))
     }
   }
+
+  private void setRules(RedirectRules newRules) {
+    rules = newRules
+    metrics.reloadCount++
+    metrics.lastReloadTime = System.currentTimeMillis()
+    servletContext.log('loaded ' + newRules.size() + ' rules from ' + filterConfigUrl + ', ' + metrics)
+  }
+
+  private static String contentHash(String text) {
+    MessageDigest.getInstance('SHA-256').digest(text.getBytes('UTF-8')).encodeHex().toString()
+  }
+
+  protected RedirectRules compileRules(String configText) {
+    String hash = contentHash(configText)
+    Class scriptClass = scriptCache.get(hash)
+    if(scriptClass == null) {
+      long startTime = System.nanoTime()
+      def importCustomizer = new ImportCustomizer()
+      importCustomizer.addImport 'URIBuilder', 'groovyx.net.http.URIBuilder'
+      def configuration = new CompilerConfiguration()
+      configuration.addCompilationCustomizers(importCustomizer)
+      def shell = new GroovyShell(this.getClass().getClassLoader(), new Binding(), configuration)
+      scriptClass = shell.parse(configText).getClass()
+      scriptCache.put(hash, scriptClass)
+      metrics.lastCompileMillis = (System.nanoTime() - startTime).intdiv(1000000L).longValue()
+      metrics.totalCompileMillis += metrics.lastCompileMillis
+      metrics.compileCount++
+    } else
+      metrics.compileCacheHits++
+    List<RedirectRules.Rule> newRules = []
+    // servlet objects are reachable by rules only through request
+    boolean servletCategory = configText =~ /\brequest\b/
+    Binding binding = new Binding()
+    binding.setVariable('filter', { Map options, Closure closure ->
+      newRules.add(new RedirectRules.Rule(options, closure, servletCategory))
+    })
+    InvokerHelper.createScript(scriptClass, binding).run()
+    new RedirectRules(newRules, servletContext.getContextPath())
+  }
 }
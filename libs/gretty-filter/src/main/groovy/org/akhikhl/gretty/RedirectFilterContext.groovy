@@ -0,0 +1,177 @@
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+import jakarta.servlet.ServletRequest
+import jakarta.servlet.ServletResponse
+
+/**
+ * Delegate of the rule closures of filter.groovy: properties of the filtered request and redirect/forward actions.
+ * Like Expando, it allows rules to set their own properties and returns null for unknown ones.
+ */
+@CompileStatic
+class RedirectFilterContext {
+
+  // options which are looked up without metaclass
+  @PackageScope static final int AUTHORITY = 0
+  @PackageScope static final int FRAGMENT = 1
+  @PackageScope static final int HOST = 2
+  @PackageScope static final int PATH = 3
+  @PackageScope static final int PORT = 4
+  @PackageScope static final int QUERY = 5
+  @PackageScope static final int SCHEME = 6
+  @PackageScope static final int USER_INFO = 7
+  @PackageScope static final int REL_PATH = 8
+  @PackageScope static final int CONTEXT_PATH = 9
+  @PackageScope static final int REQUEST_URI = 10
+  @PackageScope static final int OTHER = -1
+
+  @PackageScope static int propertyId(String name) {
+    switch(name) {
+      case 'authority': return AUTHORITY
+      case 'fragment': return FRAGMENT
+      case 'host': return HOST
+      case 'path': return PATH
+      case 'port': return PORT
+      case 'query': return QUERY
+      case 'scheme': return SCHEME
+      case 'userInfo': return USER_INFO
+      case 'relPath': return REL_PATH
+      case 'contextPath': return CONTEXT_PATH
+      case 'requestURI': return REQUEST_URI
+    }
+    OTHER
+  }
+
+  /**
+   * Groovy's String.minus: removes the first occurrence.
+   */
+  @PackageScope static String minus(String s, String t) {
+    if(s == null || t == null)
+      return s
+    int i = s.indexOf(t)
+    i < 0 ? s : s.substring(0, i) + s.substring(i + t.length())
+  }
+
+  private final RedirectFilter filter
+  private Integer httpPort
+  private Integer httpsPort
+  private boolean portsAssigned
+
+  ServletRequest request
+  ServletResponse response
+  String contextPath
+  File webappDir
+
+  URI requestURI
+  String authority
+  String fragment
+  String host
+  String path
+  int port
+  String query
+  String scheme
+  String userInfo
+  String relPath
+
+  @PackageScope RedirectFilter.FilterAction filterAction = RedirectFilter.FilterAction.CHAIN
+  @PackageScope URI resultURI
+
+  private Map<String, Object> extraProperties
+
+  RedirectFilterContext(RedirectFilter filter, ServletRequest request, ServletResponse response, String contextPath) {
+    this.filter = filter
+    this.request = request
+    this.response = response
+    this.contextPath = contextPath
+  }
+
+  // ports are looked up by the filter only when a rule uses them
+
+  Integer getHttpPort() {
+    portsAssigned ? httpPort : filter.getHttpPort()
+  }
+
+  void setHttpPort(Integer httpPort) {
+    assignPorts()
+    this.httpPort = httpPort
+  }
+
+  Integer getHttpsPort() {
+    portsAssigned ? httpsPort : filter.getHttpsPort()
+  }
+
+  void setHttpsPort(Integer httpsPort) {
+    assignPorts()
+    this.httpsPort = httpsPort
+  }
+
+  private void assignPorts() {
+    if(!portsAssigned) {
+      httpPort = filter.getHttpPort()
+      httpsPort = filter.getHttpsPort()
+      portsAssigned = true
+    }
+  }
+
+  void setRequestURI(URI requestURI) {
+    this.requestURI = requestURI
+    authority = requestURI.authority
+    fragment = requestURI.fragment
+    host = requestURI.host
+    path = requestURI.path
+    port = requestURI.port
+    query = requestURI.query
+    scheme = requestURI.scheme
+    userInfo = requestURI.userInfo
+    relPath = minus(path, contextPath)
+  }
+
+  void redirect(destination) {
+    filterAction = RedirectFilter.FilterAction.REDIRECT
+    resultURI = RedirectFilter.buildURI(destination, requestURI)
+    filter.servletContext.log('rule redirects to: ' + resultURI)
+  }
+
+  void forward(destination) {
+    filterAction = RedirectFilter.FilterAction.FORWARD
+    resultURI = RedirectFilter.buildURI(destination, requestURI)
+    filter.servletContext.log('rule forwards to: ' + resultURI)
+  }
+
+  @PackageScope Object getOptionValue(int id, String name) {
+    if(id == PATH)
+      return path
+    if(id == REL_PATH)
+      return relPath
+    if(id == HOST)
+      return host
+    if(id == SCHEME)
+      return scheme
+    if(id == PORT)
+      return port
+    if(id == QUERY)
+      return query
+    if(id == AUTHORITY)
+      return authority
+    if(id == FRAGMENT)
+      return fragment
+    if(id == USER_INFO)
+      return userInfo
+    if(id == CONTEXT_PATH)
+      return contextPath
+    if(id == REQUEST_URI)
+      return requestURI
+    getProperty(name)
+  }
+
+  def propertyMissing(String name) {
+    extraProperties?.get(name)
+  }
+
+  def propertyMissing(String name, value) {
+    if(extraProperties == null)
+      extraProperties = new HashMap<String, Object>()
+    extraProperties.put(name, value)
+  }
+}
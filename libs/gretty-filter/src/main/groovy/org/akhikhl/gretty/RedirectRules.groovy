@@ -0,0 +1,281 @@
+package org.akhikhl.gretty
+
+import groovy.servlet.ServletCategory
+import groovy.transform.CompileStatic
+import org.codehaus.groovy.runtime.GroovyCategorySupport
+
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Rules of filter.groovy, compiled for matching. Immutable, shared by all requests.
+ * Rules having literal condition on path, relPath or host are looked up by the value of that property,
+ * other rules are checked one by one. Either way, rules are applied in the order of definition.
+ * Paths, path prefixes and hosts mentioned by the rules are also collected for mayMatch,
+ * which lets the filter pass unaffected requests without parsing their URL.
+ */
+@CompileStatic
+final class RedirectRules {
+
+  static final RedirectRules EMPTY = new RedirectRules([], null)
+
+  private static final int[] NONE = new int[0]
+
+  private final Rule[] rules
+  private final int[] scannedRules
+  private final Map<String, int[]> pathRules = new HashMap<>()
+  private final Map<String, int[]> relPathRules = new HashMap<>()
+  private final Map<String, int[]> hostRules = new HashMap<>()
+
+  // pre-check: every rule has a literal path or host, or a path prefix, which the request must have to match it
+  private final boolean guarded
+  private final String contextPath
+  private final boolean relPathGuards
+  private final Set<String> guardPaths = new HashSet<>()
+  private final Set<String> guardHosts = new HashSet<>()
+  private final String[] guardPathPrefixes
+
+  /**
+   * @param contextPath context path of the webapp, relPath conditions are turned to path conditions with it
+   */
+  RedirectRules(List<Rule> rules, String contextPath) {
+    this.rules = rules.toArray(new Rule[rules.size()])
+    this.contextPath = contextPath ?: ''
+    List<Integer> scanned = []
+    List<String> prefixes = []
+    boolean allGuarded = true
+    boolean relPathGuarded = false
+    for(int i = 0; i < this.rules.length; i++) {
+      Rule rule = this.rules[i]
+      String literal
+      if((literal = rule.getLiteral(RedirectFilterContext.PATH)) != null) {
+        index(pathRules, literal, i)
+        guardPaths.add(literal)
+      } else if((literal = rule.getLiteral(RedirectFilterContext.REL_PATH)) != null) {
+        index(relPathRules, literal, i)
+        guardPaths.add(this.contextPath + literal)
+        relPathGuarded = true
+      } else if((literal = rule.getLiteral(RedirectFilterContext.HOST)) != null) {
+        index(hostRules, literal, i)
+        guardHosts.add(literal)
+      } else {
+        scanned.add(i)
+        String prefix
+        if((prefix = rule.getPrefix(RedirectFilterContext.PATH)) != null)
+          prefixes.add(prefix)
+        else if((prefix = rule.getPrefix(RedirectFilterContext.REL_PATH)) != null) {
+          prefixes.add(this.contextPath + prefix)
+          relPathGuarded = true
+        } else
+          allGuarded = false
+      }
+    }
+    scannedRules = scanned as int[]
+    guardPathPrefixes = prefixes.toArray(new String[prefixes.size()])
+    guarded = allGuarded
+    relPathGuards = relPathGuarded
+  }
+
+  private static void index(Map<String, int[]> map, String key, int ruleIndex) {
+    int[] list = map.get(key) ?: NONE
+    list = Arrays.copyOf(list, list.length + 1)
+    list[list.length - 1] = ruleIndex
+    map.put(key, list)
+  }
+
+  int size() {
+    rules.length
+  }
+
+  /**
+   * Cheap necessary condition of apply, which does not allocate:
+   * returns false, when no rule can match a request with the given path and host.
+   *
+   * @param rawPath request path, not decoded, as returned by HttpServletRequest.getRequestURI
+   * @param requestContextPath context path of the request
+   * @param host server name of the request
+   */
+  boolean mayMatch(String rawPath, String requestContextPath, String host) {
+    if(!guarded || rawPath == null)
+      return true
+    if(host != null && !guardHosts.isEmpty() && (guardHosts.contains(host) || host.indexOf(':') >= 0))
+      return true // IPv6 host may be written differently in the request URL
+    if(rawPath.indexOf('%') >= 0)
+      return true // rules match the decoded path
+    if(relPathGuards && (requestContextPath != contextPath || !rawPath.startsWith(contextPath)))
+      return true
+    if(guardPaths.contains(rawPath))
+      return true
+    for(String prefix in guardPathPrefixes)
+      if(rawPath.startsWith(prefix))
+        return true
+    false
+  }
+
+  /**
+   * Calls closures of the matching rules in the order of definition, until one of them redirects or forwards.
+   * Returns true, when the filter action is not "chain" after the last called closure.
+   */
+  boolean apply(RedirectFilterContext context) {
+    int[] a = scannedRules
+    int[] b = lookup(pathRules, context.path)
+    int[] c = lookup(relPathRules, context.relPath)
+    int[] d = lookup(hostRules, context.host)
+    int ia = 0, ib = 0, ic = 0, id = 0
+    while(true) {
+      // merging the sorted candidate lists keeps the order of definition
+      int next = Integer.MAX_VALUE
+      if(ia < a.length && a[ia] < next)
+        next = a[ia]
+      if(ib < b.length && b[ib] < next)
+        next = b[ib]
+      if(ic < c.length && c[ic] < next)
+        next = c[ic]
+      if(id < d.length && d[id] < next)
+        next = d[id]
+      if(next == Integer.MAX_VALUE)
+        return false
+      if(ia < a.length && a[ia] == next)
+        ia++
+      else if(ib < b.length && b[ib] == next)
+        ib++
+      else if(ic < c.length && c[ic] == next)
+        ic++
+      else
+        id++
+      if(rules[next].apply(context))
+        return true
+    }
+  }
+
+  private static int[] lookup(Map<String, int[]> map, String key) {
+    if(map.isEmpty() || key == null)
+      return NONE
+    map.get(key) ?: NONE
+  }
+
+  static final class Rule {
+
+    private final Condition[] conditions
+    private final Closure closure
+    private final boolean servletCategory
+
+    /**
+     * @param servletCategory when true, closure is called with ServletCategory in use.
+     * Using a category invalidates call site caches of the whole JVM, so it is done only for rules that might need it.
+     */
+    Rule(Map options, Closure closure, boolean servletCategory) {
+      this.closure = closure
+      this.servletCategory = servletCategory
+      conditions = new Condition[options.size()]
+      int i = 0
+      for(Map.Entry option in (Set<Map.Entry>) options.entrySet())
+        conditions[i++] = new Condition(option.key.toString(), option.value)
+    }
+
+    private String getLiteral(int property) {
+      for(Condition condition in conditions)
+        if(condition.property == property && condition.literal != null)
+          return condition.literal
+      null
+    }
+
+    private String getPrefix(int property) {
+      for(Condition condition in conditions)
+        if(condition.property == property && condition.prefix != null)
+          return condition.prefix
+      null
+    }
+
+    private boolean apply(RedirectFilterContext context) {
+      Map matches = null
+      for(Condition condition in conditions) {
+        Object value = context.getOptionValue(condition.property, condition.key)
+        if(condition.literal != null) {
+          if(!(value instanceof CharSequence) || !condition.literal.equals(value.toString()))
+            return false
+        } else if(condition.pattern != null) {
+          Matcher m = condition.pattern.matcher(String.valueOf(value))
+          if(!m.find())
+            return false
+          if(matches == null)
+            matches = [:]
+          matches.put(condition.key, groups(m))
+        } else
+          return false
+      }
+      Closure rule = (Closure) closure.rehydrate(context, closure.owner, closure.thisObject)
+      rule.resolveStrategy = Closure.DELEGATE_FIRST
+      Map closureArg = matches ?: [:]
+      if(servletCategory)
+        GroovyCategorySupport.use(ServletCategory) {
+          rule.call(closureArg)
+        }
+      else
+        rule.call(closureArg)
+      context.filterAction != RedirectFilter.FilterAction.CHAIN
+    }
+
+    // same as (value =~ pattern)[0].collect()
+    private static List groups(Matcher m) {
+      List result
+      if(m.groupCount() == 0) {
+        String s = m.group()
+        result = new ArrayList(s.length())
+        for(int i = 0; i < s.length(); i++)
+          result.add(String.valueOf(s.charAt(i)))
+      } else {
+        result = new ArrayList(m.groupCount() + 1)
+        for(int i = 0; i <= m.groupCount(); i++)
+          result.add(m.group(i))
+      }
+      result
+    }
+  }
+
+  private static final class Condition {
+
+    final String key
+    final int property
+    final String literal
+    final Pattern pattern
+    // literal text, with which every string matching the pattern starts
+    final String prefix
+
+    Condition(String key, value) {
+      this.key = key
+      property = RedirectFilterContext.propertyId(key)
+      literal = value instanceof String || value instanceof GString ? value.toString() : null
+      pattern = value instanceof Pattern ? (Pattern) value : null
+      prefix = pattern == null ? null : literalPrefix(pattern)
+    }
+
+    /**
+     * Returns the literal prefix of pattern anchored with '^', like '/products/' of ~/^\/products\/(\d+)/,
+     * or null, when pattern does not have one.
+     */
+    private static String literalPrefix(Pattern pattern) {
+      String s = pattern.pattern()
+      if((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.LITERAL | Pattern.COMMENTS)) != 0 ||
+         !s.startsWith('^') || s.indexOf('|') >= 0)
+        return null
+      StringBuilder prefix = new StringBuilder()
+      int i = 1
+      while(i < s.length()) {
+        char c = s.charAt(i)
+        int next = i + 1
+        if(c == ((char) '\\')) {
+          if(next == s.length() || Character.isLetterOrDigit(s.charAt(next)))
+            break // character class, quotation or back reference
+          c = s.charAt(next++)
+        } else if('.[]()*+?{}$^'.indexOf((int) c) >= 0)
+          break
+        if(next < s.length() && '?*+{'.indexOf((int) s.charAt(next)) >= 0)
+          break // quantified character is optional or repeated
+        prefix.append(c)
+        i = next
+      }
+      prefix.length() == 0 ? null : prefix.toString()
+    }
+  }
+}
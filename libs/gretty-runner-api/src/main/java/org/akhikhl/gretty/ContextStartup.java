@@ -0,0 +1,135 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts webapp contexts of a server, either one by one or concurrently on a bounded thread pool.
+ * <p>
+ * Webapps are started in groups of ascending "startupOrder" (0 when not specified):
+ * all contexts of a group are started before the next group begins,
+ * so that webapps calling each other at startup can be ordered.
+ * Contexts are created on the calling thread, only starting them
+ * (annotation scanning, web.xml parsing, servlet initialization) runs concurrently.
+ */
+public final class ContextStartup {
+
+  /**
+   * Key of per-context start times (context path to milliseconds) in server start info.
+   */
+  public static final String CONTEXT_START_TIMES = "contextStartTimes";
+
+  public interface ContextFactory {
+    Object createContext(Map webapp) throws Exception;
+  }
+
+  public interface ContextStarter {
+    void startContext(Object context) throws Exception;
+  }
+
+  private ContextStartup() {
+  }
+
+  /**
+   * Creates and starts contexts of the given webapps, returns start time of every context in milliseconds.
+   * Failure of any context is rethrown after all contexts of its group have finished starting.
+   */
+  public static Map<String, Long> startContexts(List<Map> webApps, int threads, ContextFactory factory, ContextStarter starter) throws Exception {
+    Map<String, Long> startTimes = new ConcurrentHashMap<>();
+    Collection<List<Map>> groups = groupByStartupOrder(webApps);
+    if(threads <= 1 || webApps.size() <= 1) {
+      for(List<Map> group : groups)
+        for(Map webapp : group)
+          startContext(webapp, factory.createContext(webapp), starter, startTimes);
+    } else {
+      int poolSize = 1;
+      for(List<Map> group : groups)
+        poolSize = Math.max(poolSize, Math.min(threads, group.size()));
+      ExecutorService executor = createExecutor(poolSize);
+      try {
+        for(List<Map> group : groups)
+          startGroup(group, executor, factory, starter, startTimes);
+      } finally {
+        executor.shutdown();
+      }
+    }
+    Map<String, Long> result = new LinkedHashMap<>();
+    for(Map webapp : webApps) {
+      Long startTime = startTimes.get(String.valueOf(webapp.get("contextPath")));
+      if(startTime != null)
+        result.put(String.valueOf(webapp.get("contextPath")), startTime);
+    }
+    return result;
+  }
+
+  private static Collection<List<Map>> groupByStartupOrder(List<Map> webApps) {
+    TreeMap<Integer, List<Map>> groups = new TreeMap<>();
+    for(Map webapp : webApps) {
+      Object order = webapp.get("startupOrder");
+      int key = order instanceof Number ? ((Number) order).intValue() : 0;
+      groups.computeIfAbsent(key, k -> new ArrayList<>()).add(webapp);
+    }
+    return groups.values();
+  }
+
+  private static ExecutorService createExecutor(int poolSize) {
+    // runner sets servlet container class loader as context class loader, startup threads need the same
+    final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return Executors.newFixedThreadPool(poolSize, runnable -> {
+      Thread thread = new Thread(runnable, "gretty-context-startup-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setContextClassLoader(contextClassLoader);
+      return thread;
+    });
+  }
+
+  private static void startGroup(List<Map> group, ExecutorService executor, ContextFactory factory, ContextStarter starter, Map<String, Long> startTimes) throws Exception {
+    List<Future<?>> futures = new ArrayList<>(group.size());
+    for(Map webapp : group) {
+      Object context = factory.createContext(webapp);
+      futures.add(executor.submit(() -> {
+        startContext(webapp, context, starter, startTimes);
+        return null;
+      }));
+    }
+    Exception failure = null;
+    for(Future<?> future : futures) {
+      try {
+        future.get();
+      } catch(ExecutionException x) {
+        Throwable cause = x.getCause();
+        if(failure == null)
+          failure = cause instanceof Exception ? (Exception) cause : x;
+        else
+          failure.addSuppressed(cause);
+      }
+    }
+    if(failure != null)
+      throw failure;
+  }
+
+  private static void startContext(Map webapp, Object context, ContextStarter starter, Map<String, Long> startTimes) throws Exception {
+    long startTime = System.nanoTime();
+    starter.startContext(context);
+    startTimes.put(String.valueOf(webapp.get("contextPath")), (System.nanoTime() - startTime) / 1000000L);
+  }
+}
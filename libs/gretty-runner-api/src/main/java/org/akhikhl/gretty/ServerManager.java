@@ -23,4 +23,13 @@ interface ServerManager {
   void stopServer();
 
   void redeploy(List<String> webapps);
+
+  /**
+   * Replaces all webapp contexts, keeping the server, its connectors and thread pool running.
+   * Server managers, which cannot do that, restart the whole server.
+   */
+  default ServerStartEvent restartContexts() {
+    stopServer();
+    return startServer();
+  }
 }
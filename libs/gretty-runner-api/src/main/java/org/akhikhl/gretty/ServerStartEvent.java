@@ -17,6 +17,12 @@ import java.util.Map;
  */
 public class ServerStartEvent {
 
+  public static final String START_MODE = "startMode";
+
+  public static final String START_DURATION = "startDuration";
+
+  public static final String RUNNER_UPTIME = "runnerUptime";
+
   private final Map<String, String> serverStartInfo;
 
   public ServerStartEvent(Map<String, String> serverStartInfo) {
@@ -26,4 +32,38 @@ public class ServerStartEvent {
   public Map<String, String> getServerStartInfo() {
     return serverStartInfo;
   }
+
+  /**
+   * Returns how the server was (re)started: 'start', 'restart' or 'restartContexts', null when unknown.
+   */
+  public String getStartMode() {
+    return serverStartInfo.get(START_MODE);
+  }
+
+  /**
+   * Returns (re)start latency in milliseconds, -1 when unknown.
+   */
+  public long getStartDuration() {
+    String duration = serverStartInfo.get(START_DURATION);
+    return duration == null ? -1L : Long.parseLong(duration);
+  }
+
+  /**
+   * Returns copy of this event, recording how long the (re)start took.
+   */
+  public ServerStartEvent withStartTiming(String startMode, long startDuration) {
+    Map<String, String> info = new HashMap<>(serverStartInfo);
+    info.put(START_MODE, startMode);
+    info.put(START_DURATION, String.valueOf(startDuration));
+    return new ServerStartEvent(info);
+  }
+
+  /**
+   * Returns copy of this event, recording milliseconds from runner JVM launch to the server start.
+   */
+  public ServerStartEvent withRunnerUptime(long runnerUptime) {
+    Map<String, String> info = new HashMap<>(serverStartInfo);
+    info.put(RUNNER_UPTIME, String.valueOf(runnerUptime));
+    return new ServerStartEvent(info);
+  }
 }
@@ -0,0 +1,292 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Jars used in identical form by all webapps of a server, loaded once by a class loader, which is the parent
+ * of the webapp class loaders. Jars are identical, when they have the same file name and the same content:
+ * they are the same file or have the same SHA-256 checksum. Class directories are never shared.
+ * <p>
+ * Classes of the shared loader do not see jars of a single webapp. Jars, which depend on such jars
+ * or must not be shared for other reasons (static state, per-webapp configuration), are listed
+ * in "unsharedLibs" of the webapp as file name patterns with '*' wildcards, which keeps them out of the shared loader.
+ */
+public final class SharedWebappLibraries implements Closeable {
+
+  /**
+   * Key of the instance in server params.
+   */
+  public static final String PARAMS_KEY = "sharedWebappLibraries";
+
+  private static final class CountingClassLoader extends URLClassLoader {
+
+    static {
+      registerAsParallelCapable();
+    }
+
+    final AtomicInteger definedClasses = new AtomicInteger();
+
+    CountingClassLoader(URL[] urls, ClassLoader parent) {
+      super(urls, parent);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Class<?> result = super.findClass(name);
+      definedClasses.incrementAndGet();
+      return result;
+    }
+  }
+
+  private final Map<String, File> jarsByName;
+  private final Map<String, String> checksums;
+  private final CountingClassLoader classLoader;
+  private final int webappCount;
+  private final Map<String, AtomicInteger> contextClassCounts = new ConcurrentHashMap<>();
+  private final Map<String, Integer> contextOwnEntries = new ConcurrentHashMap<>();
+
+  private SharedWebappLibraries(Map<String, File> jarsByName, Map<String, String> checksums, ClassLoader parent, int webappCount) throws MalformedURLException {
+    this.jarsByName = jarsByName;
+    this.checksums = checksums;
+    this.webappCount = webappCount;
+    URL[] urls = new URL[jarsByName.size()];
+    int i = 0;
+    for(File jar : jarsByName.values())
+      urls[i++] = jar.toURI().toURL();
+    classLoader = new CountingClassLoader(urls, parent);
+  }
+
+  /**
+   * Returns null, when there are less than two webapps or no jar is used by all of them.
+   */
+  public static SharedWebappLibraries create(List<Map> webApps, ClassLoader parent) throws IOException {
+    if(webApps.size() < 2)
+      return null;
+    Map<String, String> checksums = new ConcurrentHashMap<>();
+    Map<String, File> shared = null;
+    for(Map webapp : webApps) {
+      Map<String, File> jars = getShareableJars(webapp);
+      if(shared == null) {
+        shared = jars;
+        continue;
+      }
+      shared.entrySet().removeIf(e -> !isSameJar(e.getValue(), jars.get(e.getKey()), checksums));
+      if(shared.isEmpty())
+        return null;
+    }
+    return new SharedWebappLibraries(shared, checksums, parent, webApps.size());
+  }
+
+  public ClassLoader getClassLoader() {
+    return classLoader;
+  }
+
+  public Collection<File> getJars() {
+    return jarsByName.values();
+  }
+
+  /**
+   * Returns the class path of the webapp without the shared jars,
+   * or null, when the webapp does not use all the shared jars (for example, after redeploy with updated jars)
+   * and should get its full class path without the shared loader.
+   */
+  public List<String> getOwnClassPath(Map webapp) throws IOException {
+    List<String> result = new ArrayList<>();
+    int sharedJars = 0;
+    for(Object entry : getWebappClassPath(webapp)) {
+      File file = toFile(entry.toString());
+      if(file != null && isSameJar(jarsByName.get(file.getName()), file, checksums))
+        sharedJars++;
+      else
+        result.add(entry.toString());
+    }
+    if(sharedJars != jarsByName.size())
+      return null;
+    contextOwnEntries.put(String.valueOf(webapp.get("contextPath")), result.size());
+    return result;
+  }
+
+  /**
+   * Returns true, when the file or jar url points to one of the shared jars.
+   */
+  public boolean isSharedJar(URL url) {
+    String s = url.toString();
+    if(s.startsWith("jar:")) {
+      s = s.substring(4);
+      int sep = s.indexOf("!/");
+      if(sep >= 0)
+        s = s.substring(0, sep);
+    }
+    File file = toFile(s);
+    return file != null && isSameJar(jarsByName.get(file.getName()), file, checksums);
+  }
+
+  /**
+   * Creates class loader of the webapp class path, which counts classes it defines.
+   */
+  public URLClassLoader createWebappClassLoader(String contextPath, URL[] urls) {
+    CountingClassLoader loader = new CountingClassLoader(urls, classLoader);
+    contextClassCounts.put(contextPath, loader.definedClasses);
+    return loader;
+  }
+
+  /**
+   * Creates class file transformer, which does not change classes, but counts classes defined by the webapp class loader.
+   */
+  public ClassFileTransformer createClassCounter(String contextPath) {
+    AtomicInteger counter = new AtomicInteger();
+    contextClassCounts.put(contextPath, counter);
+    return new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if(classBeingRedefined == null)
+          counter.incrementAndGet();
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Returns classes defined by every context and the shared loader,
+   * with estimate of metaspace saved from the average size of a loaded class.
+   */
+  public String getReport() {
+    int sharedClasses = classLoader.definedClasses.get();
+    StringBuilder sb = new StringBuilder();
+    sb.append(jarsByName.size()).append(" jars shared by ").append(webappCount).append(" webapps, ")
+      .append(sharedClasses).append(" classes loaded once instead of ").append(webappCount).append(" times");
+    long averageClassSize = getAverageClassSize();
+    if(averageClassSize > 0)
+      sb.append(", ~").append(sharedClasses * (webappCount - 1L) * averageClassSize / (1024 * 1024)).append(" MB metaspace saved");
+    for(Map.Entry<String, AtomicInteger> e : new TreeMap<>(contextClassCounts).entrySet()) {
+      sb.append(System.lineSeparator()).append("  ").append(e.getKey()).append(": ").append(e.getValue().get()).append(" own classes");
+      Integer ownEntries = contextOwnEntries.get(e.getKey());
+      if(ownEntries != null)
+        sb.append(" from ").append(ownEntries).append(" own classpath entries");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void close() throws IOException {
+    classLoader.close();
+  }
+
+  private static long getAverageClassSize() {
+    long loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if("Metaspace".equals(pool.getName()) && loadedClasses > 0)
+        return pool.getUsage().getUsed() / loadedClasses;
+    return 0L;
+  }
+
+  private static Map<String, File> getShareableJars(Map webapp) {
+    List<Pattern> unshared = new ArrayList<>();
+    Object unsharedLibs = webapp.get("unsharedLibs");
+    if(unsharedLibs instanceof Collection)
+      for(Object lib : (Collection) unsharedLibs)
+        unshared.add(Pattern.compile(globToRegex(lib.toString())));
+    Map<String, File> result = new LinkedHashMap<>();
+    for(Object entry : getWebappClassPath(webapp)) {
+      File file = toFile(entry.toString());
+      if(file == null || !file.isFile() || !file.getName().endsWith(".jar"))
+        continue;
+      boolean isUnshared = false;
+      for(Pattern pattern : unshared)
+        isUnshared |= pattern.matcher(file.getName()).matches();
+      // two jars with the same name in one webapp are ambiguous
+      if(!isUnshared && result.putIfAbsent(file.getName(), file) != null)
+        result.put(file.getName(), null);
+    }
+    result.values().removeIf(file -> file == null);
+    return result;
+  }
+
+  private static Collection getWebappClassPath(Map webapp) {
+    Object classPath = webapp.get("webappClassPath");
+    return classPath instanceof Collection ? (Collection) classPath : new ArrayList();
+  }
+
+  private static File toFile(String entry) {
+    try {
+      return entry.startsWith("file:") ? new File(new URI(entry)) : new File(entry);
+    } catch(Exception e) {
+      return null;
+    }
+  }
+
+  private static String globToRegex(String glob) {
+    List<String> parts = new ArrayList<>();
+    for(String part : glob.split("\\*", -1))
+      parts.add(Pattern.quote(part));
+    return String.join(".*", parts);
+  }
+
+  private static boolean isSameJar(File a, File b, Map<String, String> checksums) {
+    if(a == null || b == null)
+      return false;
+    try {
+      if(a.getCanonicalPath().equals(b.getCanonicalPath()))
+        return true;
+      return a.length() == b.length() && checksum(a, checksums).equals(checksum(b, checksums));
+    } catch(IOException e) {
+      return false;
+    }
+  }
+
+  private static String checksum(File file, Map<String, String> checksums) throws IOException {
+    String key = file.getCanonicalPath();
+    String result = checksums.get(key);
+    if(result == null) {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException e) {
+        throw new IOException(e);
+      }
+      try (InputStream input = Files.newInputStream(file.toPath())) {
+        byte[] buffer = new byte[65536];
+        int n;
+        while((n = input.read(buffer)) > 0)
+          digest.update(buffer, 0, n);
+      }
+      StringBuilder sb = new StringBuilder();
+      for(byte b : digest.digest())
+        sb.append(String.format("%02x", b));
+      result = sb.toString();
+      checksums.put(key, result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import jakarta.servlet.ServletRequestEvent
+import jakarta.servlet.ServletRequestListener
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Counts requests dispatched to a context, so that the context replaced by blue/green redeploy
+ * is stopped after they completed. Asynchronous requests are counted until their first dispatch returns.
+ */
+@CompileStatic
+class InFlightRequests implements ServletRequestListener {
+
+  private final AtomicInteger count = new AtomicInteger()
+
+  @Override
+  void requestInitialized(ServletRequestEvent event) {
+    count.incrementAndGet()
+  }
+
+  @Override
+  void requestDestroyed(ServletRequestEvent event) {
+    count.decrementAndGet()
+  }
+
+  int getCount() {
+    count.get()
+  }
+
+  /**
+   * Returns false, if there were still requests in flight after timeoutMillis.
+   */
+  boolean awaitNone(long timeoutMillis) {
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L
+    while(count.get() > 0) {
+      if(System.nanoTime() - deadline > 0)
+        return false
+      Thread.sleep(50)
+    }
+    true
+  }
+}
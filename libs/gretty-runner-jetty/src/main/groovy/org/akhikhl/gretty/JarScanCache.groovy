@@ -0,0 +1,252 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Persistent cache of annotation scan results of jar files, shared by all contexts and runner JVMs using the same directory.
+ * One file per jar, keyed by jar path and java platform. A cached result is valid, when the jar has the same size and
+ * modification time, or, failing that, the same content hash.
+ */
+@CompileStatic
+class JarScanCache {
+
+  private static final Logger log = LoggerFactory.getLogger(JarScanCache)
+
+  /**
+   * Name of the context attribute holding the cache of the context.
+   */
+  static final String CONTEXT_ATTRIBUTE = 'org.akhikhl.gretty.JarScanCache'
+
+  private static final int FORMAT_VERSION = 1
+
+  private static final Map<File, JarScanCache> instances = new ConcurrentHashMap<File, JarScanCache>()
+
+  static JarScanCache forDirectory(File dir) {
+    File key = dir.absoluteFile
+    JarScanCache cache = instances.get(key)
+    if(cache == null) {
+      instances.putIfAbsent(key, new JarScanCache(key))
+      cache = instances.get(key)
+    }
+    cache
+  }
+
+  static class ScannedMember {
+    String name
+    int access
+    String desc
+    String signature
+    String[] exceptions
+    List<String> annotations = []
+  }
+
+  static class ScannedClass {
+    String className
+    int version
+    int access
+    String signature
+    String superName
+    String[] interfaces
+    List<String> annotations = []
+    List<ScannedMember> methods = []
+    List<ScannedMember> fields = []
+  }
+
+  final File dir
+
+  private JarScanCache(File dir) {
+    this.dir = dir
+  }
+
+  /**
+   * Returns the classes of jarFile, as they were scanned before, or null, if there is no valid cached result.
+   */
+  List<ScannedClass> get(File jarFile, int javaPlatform) {
+    File cacheFile = getCacheFile(jarFile, javaPlatform)
+    if(!cacheFile.isFile())
+      return null
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 65536))
+      try {
+        if(input.readInt() != FORMAT_VERSION || input.readUTF() != jarFile.absolutePath || input.readInt() != javaPlatform)
+          return null
+        long size = input.readLong()
+        long lastModified = input.readLong()
+        String hash = input.readUTF()
+        if(size != jarFile.length())
+          return null
+        if(lastModified != jarFile.lastModified()) {
+          // touched or rebuilt, but maybe not changed
+          if(hash != contentHash(jarFile))
+            return null
+          List<ScannedClass> classes = readClasses(input)
+          write(jarFile, javaPlatform, classes, hash)
+          return classes
+        }
+        return readClasses(input)
+      } finally {
+        input.close()
+      }
+    } catch(IOException e) {
+      log.debug 'Cannot read {}: {}', cacheFile, e.toString()
+      null
+    }
+  }
+
+  void put(File jarFile, int javaPlatform, List<ScannedClass> classes) {
+    write(jarFile, javaPlatform, classes, contentHash(jarFile))
+  }
+
+  private void write(File jarFile, int javaPlatform, List<ScannedClass> classes, String hash) {
+    File cacheFile = getCacheFile(jarFile, javaPlatform)
+    // written to a temporary file and moved, so that other runner JVMs never read incomplete file
+    File tempFile = new File(dir, cacheFile.name + '.' + UUID.randomUUID() + '.tmp')
+    try {
+      dir.mkdirs()
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))
+      try {
+        output.writeInt(FORMAT_VERSION)
+        output.writeUTF(jarFile.absolutePath)
+        output.writeInt(javaPlatform)
+        output.writeLong(jarFile.length())
+        output.writeLong(jarFile.lastModified())
+        output.writeUTF(hash)
+        writeClasses(output, classes)
+      } finally {
+        output.close()
+      }
+      try {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } catch(AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+      }
+    } catch(IOException e) {
+      log.debug 'Cannot write {}: {}', cacheFile, e.toString()
+      tempFile.delete()
+    }
+  }
+
+  private File getCacheFile(File jarFile, int javaPlatform) {
+    String digest = MessageDigest.getInstance('SHA-1').digest((jarFile.absolutePath + '|' + javaPlatform).getBytes('UTF-8')).encodeHex().toString()
+    new File(dir, jarFile.name + '-' + digest.substring(0, 16) + '.scan')
+  }
+
+  private static String contentHash(File file) {
+    MessageDigest digest = MessageDigest.getInstance('SHA-256')
+    InputStream input = new FileInputStream(file)
+    try {
+      byte[] buffer = new byte[65536]
+      int n
+      while((n = input.read(buffer)) > 0)
+        digest.update(buffer, 0, n)
+    } finally {
+      input.close()
+    }
+    digest.digest().encodeHex().toString()
+  }
+
+  private static void writeClasses(DataOutputStream output, List<ScannedClass> classes) {
+    output.writeInt(classes.size())
+    for(ScannedClass c in classes) {
+      writeString(output, c.className)
+      output.writeInt(c.version)
+      output.writeInt(c.access)
+      writeString(output, c.signature)
+      writeString(output, c.superName)
+      writeStrings(output, c.interfaces)
+      writeStrings(output, c.annotations as String[])
+      writeMembers(output, c.methods)
+      writeMembers(output, c.fields)
+    }
+  }
+
+  private static List<ScannedClass> readClasses(DataInputStream input) {
+    int count = input.readInt()
+    List<ScannedClass> classes = new ArrayList<ScannedClass>(count)
+    for(int i = 0; i < count; i++) {
+      ScannedClass c = new ScannedClass()
+      c.className = readString(input)
+      c.version = input.readInt()
+      c.access = input.readInt()
+      c.signature = readString(input)
+      c.superName = readString(input)
+      c.interfaces = readStrings(input)
+      c.annotations = Arrays.asList(readStrings(input))
+      c.methods = readMembers(input)
+      c.fields = readMembers(input)
+      classes.add(c)
+    }
+    classes
+  }
+
+  private static void writeMembers(DataOutputStream output, List<ScannedMember> members) {
+    output.writeInt(members.size())
+    for(ScannedMember m in members) {
+      writeString(output, m.name)
+      output.writeInt(m.access)
+      writeString(output, m.desc)
+      writeString(output, m.signature)
+      writeStrings(output, m.exceptions)
+      writeStrings(output, m.annotations as String[])
+    }
+  }
+
+  private static List<ScannedMember> readMembers(DataInputStream input) {
+    int count = input.readInt()
+    List<ScannedMember> members = new ArrayList<ScannedMember>(count)
+    for(int i = 0; i < count; i++) {
+      ScannedMember m = new ScannedMember()
+      m.name = readString(input)
+      m.access = input.readInt()
+      m.desc = readString(input)
+      m.signature = readString(input)
+      m.exceptions = readStrings(input)
+      m.annotations = Arrays.asList(readStrings(input))
+      members.add(m)
+    }
+    members
+  }
+
+  private static void writeString(DataOutputStream output, String s) {
+    output.writeBoolean(s != null)
+    if(s != null)
+      output.writeUTF(s)
+  }
+
+  private static String readString(DataInputStream input) {
+    input.readBoolean() ? input.readUTF() : null
+  }
+
+  private static void writeStrings(DataOutputStream output, String[] strings) {
+    output.writeInt(strings == null ? -1 : strings.length)
+    if(strings != null)
+      for(String s in strings)
+        writeString(output, s)
+  }
+
+  private static String[] readStrings(DataInputStream input) {
+    int count = input.readInt()
+    if(count < 0)
+      return null
+    String[] strings = new String[count]
+    for(int i = 0; i < count; i++)
+      strings[i] = readString(input)
+    strings
+  }
+}
@@ -53,6 +53,8 @@ interface JettyConfigurer {
 
   void addHandlerToServer(server, handler)
 
+  void replaceHandlersOfServer(server, List oldHandlers, newHandler)
+
   def debug(String message, Object... args)
 
   def info(String message, Object... args)
@@ -268,17 +268,38 @@ abstract class JettyConfigurerBase implements JettyConfigurer {
   @Override
   void addHandlerToServer(server, handler) {
     def collection = findContextHandlerCollection(server.handler)
-    collection.addHandler(handler)
-
-    // we need to make new handler managed by the HandlerCollection
-    // so it is stopped automatically when the whole server is stopped
-    // or when handler is removed from collection.
-    collection.manage(handler)
+    // contexts may be added from several startup threads, see ContextStartup
+    synchronized(collection) {
+      collection.addHandler(handler)
+
+      // we need to make new handler managed by the HandlerCollection
+      // so it is stopped automatically when the whole server is stopped
+      // or when handler is removed from collection.
+      collection.manage(handler)
+    }
 
     // addHandler and manage don't start the context, so we need to do start it manually
     handler.start()
   }
 
+  /**
+   * Atomically replaces old handlers with the already started new handler.
+   * Old handlers are not stopped, the caller stops them.
+   */
+  @Override
+  void replaceHandlersOfServer(server, List oldHandlers, newHandler) {
+    def collection = findContextHandlerCollection(server.handler)
+    synchronized(collection) {
+      // removal of managed handler from collection would stop it
+      for(def handler in oldHandlers)
+        collection.unmanage(handler)
+      List handlers = collection.getHandlers().findAll { !oldHandlers.contains(it) }
+      handlers.add(newHandler)
+      collection.setHandlers(handlers as Handler[])
+      collection.manage(newHandler)
+    }
+  }
+
   @Override
   def debug(String message, Object... args) {
     log.debug(message, args)
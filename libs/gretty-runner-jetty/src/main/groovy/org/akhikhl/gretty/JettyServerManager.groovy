@@ -21,6 +21,10 @@ final class JettyServerManager implements ServerManager {
   private JettyConfigurer configurer
   protected Map params
 	protected server
+  // contexts replaced by blue/green redeploy, which are not stopped yet
+  private final List drainingContexts = Collections.synchronizedList([])
+  // threads stopping drainingContexts
+  private final List<Thread> drainThreads = Collections.synchronizedList([])
 
   JettyServerManager(JettyConfigurer configurer) {
     this.configurer = configurer
@@ -41,6 +45,7 @@ final class JettyServerManager implements ServerManager {
     server = serverConfigurer.createAndConfigureServer()
 
     boolean result = false
+    Map contextStartTimes
     try {
       /*
        * First we start jetty without any webapp and then add webapps one by one
@@ -49,32 +54,16 @@ final class JettyServerManager implements ServerManager {
        */
       server.start()
 
-      File baseDir = new File(params.baseDir)
-      for(Map webapp in params.webApps) {
-          def context = serverConfigurer.createContext(webapp, baseDir, server)
-          configurer.addHandlerToServer(server, context)
-      }
+      contextStartTimes = startContexts(serverConfigurer)
 
       result = true
     } catch(Throwable x) {
-      configurer.error 'Error starting server', x
-      if(x.getClass().getName() == 'org.eclipse.jetty.util.MultiException') {
-        for(Throwable xx in x.getThrowables())
-          log.error 'Error', xx
-      }
-
-      Map startInfo = new JettyServerStartInfo().getInfo(server, configurer, params)
-      startInfo.status = 'error starting server'
-      startInfo.error = true
-      startInfo.errorMessage = x.getMessage() ?: x.getClass().getName()
-      StringWriter sw = new StringWriter()
-      x.printStackTrace(new PrintWriter(sw))
-      startInfo.stackTrace = sw.toString()
-      return new ServerStartEvent(startInfo)
+      return createErrorStartEvent(x)
     }
 
     if(result) {
       Map startInfo = new JettyServerStartInfo().getInfo(server, configurer, params)
+      startInfo[ContextStartup.CONTEXT_START_TIMES] = contextStartTimes
       configurer.debug '{} started.', params.servletContainerDescription
       return new ServerStartEvent(startInfo)
     }
@@ -82,6 +71,90 @@ final class JettyServerManager implements ServerManager {
     throw new IllegalStateException()
   }
 
+  private ServerStartEvent createErrorStartEvent(Throwable x) {
+    configurer.error 'Error starting server', x
+    if(x.getClass().getName() == 'org.eclipse.jetty.util.MultiException') {
+      for(Throwable xx in x.getThrowables())
+        log.error 'Error', xx
+    }
+
+    Map startInfo = new JettyServerStartInfo().getInfo(server, configurer, params)
+    startInfo.status = 'error starting server'
+    startInfo.error = true
+    startInfo.errorMessage = x.getMessage() ?: x.getClass().getName()
+    StringWriter sw = new StringWriter()
+    x.printStackTrace(new PrintWriter(sw))
+    startInfo.stackTrace = sw.toString()
+    return new ServerStartEvent(startInfo)
+  }
+
+  /**
+   * Replaces webapp contexts, while server, connectors and thread pool keep running,
+   * so that jetty.xml is not parsed again and ports are not rebound.
+   */
+  @Override
+  ServerStartEvent restartContexts() {
+    if(server == null)
+      return startServer()
+    configurer.debug '{} restarting contexts.', params.servletContainerDescription
+    Map contextStartTimes
+    try {
+      List contextPaths = params.webApps.collect { it.contextPath }
+      for(def handler in configurer.getHandlersByContextPaths(server, contextPaths))
+        configurer.removeHandlerFromServer(server, handler)
+      contextStartTimes = startContexts(createServerConfigurer())
+    } catch(Throwable x) {
+      return createErrorStartEvent(x)
+    }
+    Map startInfo = new JettyServerStartInfo().getInfo(server, configurer, params)
+    startInfo[ContextStartup.CONTEXT_START_TIMES] = contextStartTimes
+    configurer.debug '{} contexts restarted.', params.servletContainerDescription
+    return new ServerStartEvent(startInfo)
+  }
+
+  /**
+   * With contextStartupThreads greater than 1, independent contexts are started concurrently.
+   */
+  private Map startContexts(JettyServerConfigurer serverConfigurer) {
+    File baseDir = new File(params.baseDir)
+    if(params.shareWebappLibs) {
+      // contexts replaced by blue/green redeploy may still serve requests with the previous shared loader
+      SharedWebappLibraries previous = params.remove(SharedWebappLibraries.PARAMS_KEY)
+      if(previous != null)
+        closeWhenDrained(previous)
+      params[SharedWebappLibraries.PARAMS_KEY] = SharedWebappLibraries.create(params.webApps, JettyServerManager.classLoader)
+    }
+    Map contextStartTimes = ContextStartup.startContexts(params.webApps, params.contextStartupThreads ?: 1,
+      { Map webapp -> createContext(serverConfigurer, webapp) },
+      { context -> configurer.addHandlerToServer(server, context) })
+    SharedWebappLibraries shared = params[SharedWebappLibraries.PARAMS_KEY]
+    if(shared != null)
+      configurer.info 'Shared webapp libraries: {}', shared.report
+    contextStartTimes
+  }
+
+  /**
+   * Closes the given shared libraries after the contexts, which are being drained now, stopped.
+   */
+  private void closeWhenDrained(SharedWebappLibraries shared) {
+    List<Thread> threads = new ArrayList(drainThreads)
+    if(threads.isEmpty()) {
+      shared.close()
+      return
+    }
+    Thread.startDaemon('gretty-shared-libs-close') {
+      threads*.join()
+      shared.close()
+    }
+  }
+
+  private createContext(JettyServerConfigurer serverConfigurer, Map webapp) {
+    def context = serverConfigurer.createContext(webapp, new File(params.baseDir), server)
+    if(params.redeployMode == 'blueGreen')
+      context.addEventListener(new InFlightRequests())
+    context
+  }
+
   private JettyServerConfigurer createServerConfigurer() {
     new JettyServerConfigurer(configurer, params)
   }
@@ -90,6 +163,8 @@ final class JettyServerManager implements ServerManager {
   void stopServer() {
     if(server != null) {
       configurer.debug '{} stopping.', params.servletContainerDescription
+      for(def context in new ArrayList(drainingContexts))
+        context.stop()
       server.stop()
       server = null
       configurer.debug '{} stopped.', params.servletContainerDescription
@@ -98,6 +173,10 @@ final class JettyServerManager implements ServerManager {
 
   @Override
   void redeploy(List<String> contextPaths) {
+    if(params.redeployMode == 'blueGreen') {
+      redeployBlueGreen(contextPaths)
+      return
+    }
     configurer.debug('redeploying {}.', contextPaths.join(' '))
     def handlers = configurer.getHandlersByContextPaths(server, contextPaths)
     handlers.each {
@@ -113,4 +192,59 @@ final class JettyServerManager implements ServerManager {
       context
     }
   }
+
+  /**
+   * Starts the replacement context next to the old one and switches requests to it, when it is available.
+   * The old context keeps serving until then, afterwards it is stopped, when its in-flight requests completed.
+   */
+  private void redeployBlueGreen(List<String> contextPaths) {
+    configurer.debug('redeploying {} blue/green.', contextPaths.join(' '))
+    JettyServerConfigurer serverConfigurer = createServerConfigurer()
+    for(String contextPath in contextPaths) {
+      Map webapp = params.webApps.find { it.contextPath == contextPath }
+      if(webapp == null)
+        continue
+      def context = createContext(serverConfigurer, webapp)
+      if(context.server == null)
+        context.server = server
+      boolean available = false
+      try {
+        context.start()
+        available = context.isAvailable()
+      } catch(Exception x) {
+        configurer.error("Error starting replacement of ${contextPath}", x)
+      }
+      if(!available) {
+        configurer.error('Replacement of {} is not available, old context keeps serving', contextPath)
+        context.stop()
+        continue
+      }
+      List oldContexts = configurer.getHandlersByContextPaths(server, [ contextPath ])
+      configurer.replaceHandlersOfServer(server, oldContexts, context)
+      for(def oldContext in oldContexts)
+        stopWhenDrained(oldContext)
+    }
+  }
+
+  private void stopWhenDrained(context) {
+    drainingContexts.add(context)
+    InFlightRequests inFlightRequests = context.getEventListeners().find { it instanceof InFlightRequests }
+    long timeout = (params.redeployDrainTimeout ?: 30) * 1000L
+    Thread thread = new Thread({
+      try {
+        if(inFlightRequests != null && !inFlightRequests.awaitNone(timeout))
+          configurer.warn('Stopping replaced context {} with {} requests in flight', context.contextPath, inFlightRequests.count)
+        context.stop()
+      } catch(Throwable x) {
+        configurer.error('Error stopping replaced context', x)
+      } finally {
+        drainingContexts.remove(context)
+        drainThreads.remove(Thread.currentThread())
+      }
+    }, 'gretty-redeploy-drain')
+    thread.daemon = true
+    // registered before start, so that closeWhenDrained does not miss it
+    drainThreads.add(thread)
+    thread.start()
+  }
 }
@@ -0,0 +1,47 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.eclipse.jetty.annotations.AnnotationConfiguration
+import org.eclipse.jetty.annotations.AnnotationParser
+import org.eclipse.jetty.webapp.WebAppContext
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * AnnotationConfiguration, which takes scan results of unchanged jars from JarScanCache instead of parsing their bytecode.
+ */
+@CompileStatic
+class AnnotationConfigurationEx extends AnnotationConfiguration {
+
+  private static final Logger log = LoggerFactory.getLogger(AnnotationConfigurationEx)
+
+  private JarScanCache scanCache
+  private CachingAnnotationParser parser
+
+  @Override
+  void configure(WebAppContext context) throws Exception {
+    scanCache = (JarScanCache) context.getAttribute(JarScanCache.CONTEXT_ATTRIBUTE)
+    long startTime = System.nanoTime()
+    super.configure(context)
+    if(parser != null)
+      log.info '{}: annotation scan of {} jars from cache, {} jars parsed, in {} ms', context.contextPath,
+        parser.cacheHits.get(), parser.cacheMisses.get(), (System.nanoTime() - startTime).intdiv(1000000L)
+    parser = null
+  }
+
+  @Override
+  protected AnnotationParser createAnnotationParser(int javaPlatform) {
+    if(scanCache == null)
+      return super.createAnnotationParser(javaPlatform)
+    parser = new CachingAnnotationParser(javaPlatform, scanCache)
+    parser
+  }
+}
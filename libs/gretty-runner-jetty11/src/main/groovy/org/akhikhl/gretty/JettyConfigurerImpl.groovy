@@ -10,7 +10,6 @@ package org.akhikhl.gretty
 
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
-import org.eclipse.jetty.annotations.AnnotationConfiguration
 import org.eclipse.jetty.logging.JettyLevel
 import org.eclipse.jetty.logging.JettyLogger
 import org.eclipse.jetty.plus.webapp.EnvConfiguration
@@ -119,9 +118,19 @@ class JettyConfigurerImpl extends JettyConfigurerBase {
     List<String> webappClassPath = webappParams.webappClassPath
     JettyWebAppContext context = new JettyWebAppContext()
     context.setThrowUnavailableOnStartupException(true)
+    SharedWebappLibraries shared = serverParams[SharedWebappLibraries.PARAMS_KEY]
+    List<String> ownClassPath = shared?.getOwnClassPath(webappParams)
+    if(ownClassPath != null) {
+      // shared jars stay in WEB-INF/lib and extra classpath for scanning, the class loader leaves them to the shared loader
+      WebAppClassLoader classLoader = new SharedLibsWebAppClassLoader(shared, context)
+      classLoader.addTransformer(shared.createClassCounter(webappParams.contextPath))
+      context.setClassLoader(classLoader)
+    }
     context.setWebInfLib(webappClassPath.findAll { it.endsWith('.jar') }.collect { new File(it) })
     context.setExtraClasspath(webappClassPath.collect { it.endsWith('.jar') ? it : (it.endsWith('/') ? it : it + '/') }.join(';'))
     context.setInitParameter('org.eclipse.jetty.servlet.Default.useFileMappedBuffer', serverParams.productMode ? 'true' : 'false')
+    if(serverParams.baseDir)
+      context.setAttribute(JarScanCache.CONTEXT_ATTRIBUTE, JarScanCache.forDirectory(new File(serverParams.baseDir, 'scan-cache')))
     context.setAttribute(MetaInfConfiguration.CONTAINER_JAR_PATTERN,
         '.*/[^/]*servlet-api-[^/]*\\.jar$|.*/javax.servlet.jsp.jstl-.*\\.jar$|.*/[^/]*taglibs.*\\.jar$');
 
@@ -155,7 +164,7 @@ class JettyConfigurerImpl extends JettyConfigurerBase {
       new FragmentConfiguration(),
       new EnvConfiguration(),
       new PlusConfiguration(),
-      new AnnotationConfiguration(),
+      new AnnotationConfigurationEx(),
       new JettyWebXmlConfiguration()
     ]
   }
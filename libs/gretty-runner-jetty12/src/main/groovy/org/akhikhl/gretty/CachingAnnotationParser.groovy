@@ -0,0 +1,141 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.eclipse.jetty.ee10.annotations.AnnotationParser
+import org.eclipse.jetty.util.resource.Resource
+
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * AnnotationParser, which records the scan results of jars to JarScanCache and replays them to the handlers,
+ * when the jar did not change. Class directories are always parsed.
+ */
+@CompileStatic
+class CachingAnnotationParser extends AnnotationParser {
+
+  private final int javaPlatform
+  private final JarScanCache scanCache
+
+  final AtomicInteger cacheHits = new AtomicInteger()
+  final AtomicInteger cacheMisses = new AtomicInteger()
+
+  CachingAnnotationParser(int javaPlatform, JarScanCache scanCache) {
+    super(javaPlatform)
+    this.javaPlatform = javaPlatform
+    this.scanCache = scanCache
+  }
+
+  @Override
+  void parse(Set<? extends AnnotationParser.Handler> handlers, Resource r) throws Exception {
+    Path path = r?.getPath()
+    File jarFile = path != null && path.getFileSystem() == FileSystems.getDefault() ? path.toFile() : null
+    if(jarFile == null || !jarFile.isFile() || !jarFile.name.toLowerCase().endsWith('.jar')) {
+      super.parse(handlers, r)
+      return
+    }
+    List<JarScanCache.ScannedClass> classes = scanCache.get(jarFile, javaPlatform)
+    if(classes != null) {
+      cacheHits.incrementAndGet()
+      replay(handlers, r, classes)
+      return
+    }
+    cacheMisses.incrementAndGet()
+    RecordingHandler recorder = new RecordingHandler()
+    Set<AnnotationParser.Handler> recordingHandlers = new LinkedHashSet<AnnotationParser.Handler>(handlers)
+    recordingHandlers.add(recorder)
+    super.parse(recordingHandlers, r)
+    scanCache.put(jarFile, javaPlatform, recorder.classes)
+  }
+
+  private static void replay(Set<? extends AnnotationParser.Handler> handlers, Resource r, List<JarScanCache.ScannedClass> classes) {
+    for(JarScanCache.ScannedClass c in classes) {
+      AnnotationParser.ClassInfo classInfo = new AnnotationParser.ClassInfo(r, c.className, c.version, c.access, c.signature, c.superName, c.interfaces)
+      for(AnnotationParser.Handler h in handlers)
+        h.handle(classInfo)
+      for(String annotation in c.annotations)
+        for(AnnotationParser.Handler h in handlers)
+          h.handle(classInfo, annotation)
+      for(JarScanCache.ScannedMember m in c.methods) {
+        AnnotationParser.MethodInfo methodInfo = new AnnotationParser.MethodInfo(classInfo, m.name, m.access, m.desc, m.signature, m.exceptions)
+        for(String annotation in m.annotations)
+          for(AnnotationParser.Handler h in handlers)
+            h.handle(methodInfo, annotation)
+      }
+      for(JarScanCache.ScannedMember f in c.fields) {
+        AnnotationParser.FieldInfo fieldInfo = new AnnotationParser.FieldInfo(classInfo, f.name, f.access, f.desc, f.signature, null)
+        for(String annotation in f.annotations)
+          for(AnnotationParser.Handler h in handlers)
+            h.handle(fieldInfo, annotation)
+      }
+    }
+  }
+
+  /**
+   * Records classes and annotated members of a jar, in the order reported by the parser.
+   */
+  private static class RecordingHandler extends AnnotationParser.AbstractHandler {
+
+    final List<JarScanCache.ScannedClass> classes = []
+    private final Map<String, JarScanCache.ScannedClass> classesByName = [:]
+    private final Map<AnnotationParser.MethodInfo, JarScanCache.ScannedMember> methods = new IdentityHashMap<AnnotationParser.MethodInfo, JarScanCache.ScannedMember>()
+    private final Map<AnnotationParser.FieldInfo, JarScanCache.ScannedMember> fields = new IdentityHashMap<AnnotationParser.FieldInfo, JarScanCache.ScannedMember>()
+
+    @Override
+    void handle(AnnotationParser.ClassInfo info) {
+      JarScanCache.ScannedClass c = new JarScanCache.ScannedClass()
+      c.className = info.className
+      c.version = info.version
+      c.access = info.access
+      c.signature = info.signature
+      c.superName = info.superName
+      c.interfaces = info.interfaces
+      classes.add(c)
+      classesByName.put(info.className, c)
+    }
+
+    @Override
+    void handle(AnnotationParser.ClassInfo info, String annotationName) {
+      classesByName.get(info.className)?.annotations?.add(annotationName)
+    }
+
+    @Override
+    void handle(AnnotationParser.MethodInfo info, String annotationName) {
+      JarScanCache.ScannedMember m = methods.get(info)
+      if(m == null) {
+        JarScanCache.ScannedClass c = classesByName.get(info.classInfo.className)
+        if(c == null)
+          return
+        m = new JarScanCache.ScannedMember(name: info.methodName, access: info.access, desc: info.desc,
+          signature: info.signature, exceptions: info.exceptions)
+        c.methods.add(m)
+        methods.put(info, m)
+      }
+      m.annotations.add(annotationName)
+    }
+
+    @Override
+    void handle(AnnotationParser.FieldInfo info, String annotationName) {
+      JarScanCache.ScannedMember f = fields.get(info)
+      if(f == null) {
+        JarScanCache.ScannedClass c = classesByName.get(info.classInfo.className)
+        if(c == null)
+          return
+        f = new JarScanCache.ScannedMember(name: info.fieldName, access: info.access, desc: info.fieldType,
+          signature: info.signature)
+        c.fields.add(f)
+        fields.put(info, f)
+      }
+      f.annotations.add(annotationName)
+    }
+  }
+}
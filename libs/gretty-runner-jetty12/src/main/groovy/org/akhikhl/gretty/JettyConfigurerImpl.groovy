@@ -10,7 +10,6 @@ package org.akhikhl.gretty
 
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
-import org.eclipse.jetty.ee10.annotations.AnnotationConfiguration
 import org.eclipse.jetty.logging.JettyLevel
 import org.eclipse.jetty.logging.JettyLogger
 import org.eclipse.jetty.ee10.plus.webapp.EnvConfiguration
@@ -146,6 +145,14 @@ class JettyConfigurerImpl extends JettyConfigurerBase {
     List<String> webappClassPath = webappParams.webappClassPath
     JettyWebAppContext context = new JettyWebAppContext()
     context.setThrowUnavailableOnStartupException(true)
+    SharedWebappLibraries shared = serverParams[SharedWebappLibraries.PARAMS_KEY]
+    List<String> ownClassPath = shared?.getOwnClassPath(webappParams)
+    if(ownClassPath != null) {
+      // shared jars stay in WEB-INF/lib and extra classpath for scanning, the class loader leaves them to the shared loader
+      WebAppClassLoader classLoader = new SharedLibsWebAppClassLoader(shared, context)
+      classLoader.addTransformer(shared.createClassCounter(webappParams.contextPath))
+      context.setClassLoader(classLoader)
+    }
     context.setWebInfLib(webappClassPath.findAll { it.endsWith('.jar') }.collect { new File(it) })
     // Convert file:// URLs to paths, filter existing paths, add trailing slash to directories
     context.setExtraClasspath(webappClassPath.collect {
@@ -157,6 +164,8 @@ class JettyConfigurerImpl extends JettyConfigurerBase {
     }.join(','))
 
     context.setInitParameter('org.eclipse.jetty.servlet.Default.useFileMappedBuffer', serverParams.productMode ? 'true' : 'false')
+    if(serverParams.baseDir)
+      context.setAttribute(JarScanCache.CONTEXT_ATTRIBUTE, JarScanCache.forDirectory(new File(serverParams.baseDir, 'scan-cache')))
     context.setAttribute(MetaInfConfiguration.CONTAINER_JAR_PATTERN,
         '.*/[^/]*servlet-api-[^/]*\\.jar$|.*/javax.servlet.jsp.jstl-.*\\.jar$|.*/[^/]*taglibs.*\\.jar$');
 
@@ -213,7 +222,7 @@ class JettyConfigurerImpl extends JettyConfigurerBase {
       new FragmentConfiguration(),
       new EnvConfiguration(),
       new PlusConfiguration(),
-      new AnnotationConfiguration(),
+      new AnnotationConfigurationEx(),
       new JettyWebXmlConfiguration()
     ]
   }
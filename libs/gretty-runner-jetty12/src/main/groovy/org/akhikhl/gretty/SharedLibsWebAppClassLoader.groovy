@@ -0,0 +1,34 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.eclipse.jetty.ee10.webapp.WebAppClassLoader
+
+/**
+ * Webapp class loader, child of the shared class loader, which does not load classes of the shared jars itself.
+ * The shared jars remain in WEB-INF/lib of the context, so that jetty still scans them
+ * for annotations, web-fragment.xml, TLDs and META-INF/resources.
+ */
+@CompileStatic
+class SharedLibsWebAppClassLoader extends WebAppClassLoader {
+
+  private final SharedWebappLibraries shared
+
+  SharedLibsWebAppClassLoader(SharedWebappLibraries shared, WebAppClassLoader.Context context) {
+    super(shared.classLoader, context)
+    this.shared = shared
+  }
+
+  @Override
+  protected void addURL(URL url) {
+    if(shared == null || !shared.isSharedJar(url))
+      super.addURL(url)
+  }
+}
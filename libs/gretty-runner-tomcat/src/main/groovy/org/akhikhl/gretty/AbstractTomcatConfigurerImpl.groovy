@@ -10,6 +10,9 @@ package org.akhikhl.gretty
 
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
+import org.apache.catalina.Context
+import org.apache.catalina.Lifecycle
+import org.apache.catalina.LifecycleEvent
 import org.apache.catalina.WebResourceRoot
 import org.apache.catalina.core.StandardContext
 import org.apache.catalina.startup.ContextConfig
@@ -17,6 +20,9 @@ import org.apache.catalina.startup.Tomcat
 import org.apache.catalina.webresources.StandardRoot
 import org.apache.tomcat.JarScanner
 import org.apache.tomcat.util.descriptor.web.WebXml
+
+import jakarta.servlet.ServletContainerInitializer
+import jakarta.servlet.annotation.HandlesTypes
 /**
  *
  * @author akhikhl
@@ -25,12 +31,115 @@ import org.apache.tomcat.util.descriptor.web.WebXml
 abstract class AbstractTomcatConfigurerImpl implements TomcatConfigurer {
 
   @Override
-  ContextConfig createContextConfig(URL[] classpathUrls) {
+  ContextConfig createContextConfig(URL[] classpathUrls, TomcatJarScanCache scanCache) {
 
     new ContextConfig() {
 
+      @Override
+      void lifecycleEvent(LifecycleEvent event) {
+        if(scanCache != null && event.type == Lifecycle.CONFIGURE_START_EVENT)
+          scanCache.resetStats(((Context) event.lifecycle).name)
+        super.lifecycleEvent(event)
+        if(scanCache != null && event.type == Lifecycle.AFTER_START_EVENT)
+          scanCache.save()
+      }
+
+      // skips unchanged jars, which had no effect last time with the same @HandlesTypes
+      @CompileStatic
+      protected void processAnnotationsJar(URL url, WebXml fragment, boolean handlesTypesOnly, Map javaClassCache) {
+        File jarFile = scanCache == null ? null : TomcatJarScanCache.toJarFile(url)
+        // annotations may be merged into the declarations of web-fragment.xml, effect of such jars is not tracked
+        if(jarFile == null || !isEmptyFragment(fragment)) {
+          super.processAnnotationsJar(url, fragment, handlesTypesOnly, javaClassCache)
+          return
+        }
+        TomcatJarScanCache.Stats stats = scanCache.getStats(context.getName())
+        String handlesTypesKey = (handlesTypesOnly ? 'handlesTypesOnly:' : 'all:') + getHandlesTypesNames()
+        TomcatJarScanCache.Entry entry = scanCache.get(jarFile)
+        if(entry != null && entry.inertFor == handlesTypesKey) {
+          stats.hits.incrementAndGet()
+          stats.savedMillis.addAndGet(entry.annotationMillis)
+          if(!handlesTypesOnly)
+            scanCache.learn(jarFile)
+          return
+        }
+        int initializerClassCount = countInitializerClasses()
+        long startTime = System.nanoTime()
+        super.processAnnotationsJar(url, fragment, handlesTypesOnly, javaClassCache)
+        long millis = (System.nanoTime() - startTime).intdiv(1000000L).longValue()
+        stats.misses.incrementAndGet()
+        entry = scanCache.getForUpdate(jarFile)
+        entry.inertFor = isEmptyFragment(fragment) && countInitializerClasses() == initializerClassCount ? handlesTypesKey : null
+        entry.annotationMillis = millis
+        if(entry.inertFor != null && !handlesTypesOnly)
+          scanCache.learn(jarFile)
+      }
+
+      // known empty jars are learned for the current @HandlesTypes, they might not be empty for others
+      @Override
+      @CompileStatic
+      protected void processServletContainerInitializers() {
+        super.processServletContainerInitializers()
+        if(scanCache != null && scanCache.learning) {
+          int forgotten = scanCache.forgetKnownEmpty('all:' + getHandlesTypesNames())
+          if(forgotten != 0)
+            context.getLogger().warn("${forgotten} jars learned as empty for other @HandlesTypes were not scanned, they will be scanned on next start")
+        }
+      }
+
+      @CompileStatic
+      private String getHandlesTypesNames() {
+        typeInitializerMap.keySet().collect { Class c -> c.getName() }.sort().join(',')
+      }
+
+      /**
+       * Key of @HandlesTypes of all initializers visible to the webapp, as getHandlesTypesNames returns it after
+       * processServletContainerInitializers without excluded fragments. Known empty jars do not declare initializers,
+       * so skipping them does not change it. Returns null, when an initializer cannot be loaded.
+       */
+      @CompileStatic
+      private String getInitializersHandlesTypesKey() {
+        ClassLoader classLoader = context.getLoader()?.getClassLoader()
+        if(classLoader == null)
+          return null
+        Set<String> names = new TreeSet<String>()
+        try {
+          for(URL url in Collections.list(classLoader.getResources('META-INF/services/' + ServletContainerInitializer.getName())))
+            for(String line in url.getText('UTF-8').readLines()) {
+              String className = line.replaceFirst('#.*', '').trim()
+              if(!className)
+                continue
+              HandlesTypes handlesTypes = Class.forName(className, false, classLoader).getAnnotation(HandlesTypes)
+              if(handlesTypes != null)
+                for(Class c in handlesTypes.value())
+                  names.add(c.getName())
+            }
+        } catch(Exception | LinkageError e) {
+          context.getLogger().debug("Cannot determine @HandlesTypes of initializers: ${e}")
+          return null
+        }
+        'all:' + names.join(',')
+      }
+
+      @CompileStatic
+      private boolean isEmptyFragment(WebXml fragment) {
+        fragment.getServlets().isEmpty() && fragment.getFilters().isEmpty() && fragment.getListeners().isEmpty()
+      }
+
+      @CompileStatic
+      private int countInitializerClasses() {
+        int result = 0
+        for(Set<Class<?>> classes in initializerClassMap.values())
+          result += classes.size()
+        result
+      }
+
       @CompileStatic
       protected Map<String,WebXml> processJarsForWebFragments(WebXml application) {
+        // known empty jars are skipped by the jar scanner of fragments, they are learned for @HandlesTypes of all initializers
+        JarScanner jarScanner = context.getJarScanner()
+        if(scanCache != null && scanCache.learning && jarScanner instanceof SkipPatternJarScanner)
+          ((SkipPatternJarScanner) jarScanner).skipPatterns.handlesTypesKey = getInitializersHandlesTypesKey()
         def fragments = super.processJarsForWebFragments(application)
         // here we enable annotation processing for non-jar urls on the classpath
         for(URL url in classpathUrls.findAll { !it.path.endsWith('.jar') && new File(it.path).exists() }) {
@@ -0,0 +1,83 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.apache.tomcat.JarScanType
+import org.apache.tomcat.JarScanner
+import org.apache.tomcat.JarScannerCallback
+import org.apache.tomcat.util.scan.StandardJarScanner
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * StandardJarScanner, which does not open unchanged jars known to contain no TLDs during TLD scan.
+ * Other scan types are performed as usual.
+ */
+@CompileStatic
+class CachingJarScanner extends StandardJarScanner {
+
+  protected final TomcatJarScanCache scanCache
+  protected final String contextName
+
+  CachingJarScanner(JarScanner jarScanner, TomcatJarScanCache scanCache, String contextName) {
+    this.scanCache = scanCache
+    this.contextName = contextName
+    if(jarScanner instanceof StandardJarScanner) {
+      StandardJarScanner s = (StandardJarScanner) jarScanner
+      setScanClassPath(s.isScanClassPath())
+      setScanManifest(s.isScanManifest())
+      setScanAllFiles(s.isScanAllFiles())
+      setScanAllDirectories(s.isScanAllDirectories())
+      setScanBootstrapClassPath(s.isScanBootstrapClassPath())
+      setJarScanFilter(s.getJarScanFilter())
+    }
+  }
+
+  @Override
+  protected void process(JarScanType scanType, JarScannerCallback callback, URL url, String webappPath, boolean isWebapp, Deque<URL> classPathUrlsToProcess) throws IOException {
+    File jarFile = scanType == JarScanType.TLD ? TomcatJarScanCache.toJarFile(url) : null
+    // manifest class-path of non-webapp jars must still be followed
+    if(jarFile == null || (!isWebapp && isScanManifest() && classPathUrlsToProcess != null)) {
+      super.process(scanType, callback, url, webappPath, isWebapp, classPathUrlsToProcess)
+      return
+    }
+    TomcatJarScanCache.Stats stats = scanCache.getStats(contextName)
+    TomcatJarScanCache.Entry entry = scanCache.get(jarFile)
+    if(entry != null && entry.hasTlds == Boolean.FALSE) {
+      stats.hits.incrementAndGet()
+      stats.savedMillis.addAndGet(entry.tldMillis)
+      return
+    }
+    long startTime = System.nanoTime()
+    super.process(scanType, callback, url, webappPath, isWebapp, classPathUrlsToProcess)
+    long millis = (System.nanoTime() - startTime).intdiv(1000000L).longValue()
+    stats.misses.incrementAndGet()
+    entry = scanCache.getForUpdate(jarFile)
+    entry.hasTlds = hasTlds(jarFile)
+    entry.tldMillis = millis
+  }
+
+  // same condition as TldScanner uses
+  private static boolean hasTlds(File jarFile) {
+    ZipFile zip = new ZipFile(jarFile)
+    try {
+      Enumeration<? extends ZipEntry> entries = zip.entries()
+      while(entries.hasMoreElements()) {
+        String name = entries.nextElement().name
+        if(name.startsWith('META-INF/') && name.endsWith('.tld'))
+          return true
+      }
+      false
+    } finally {
+      zip.close()
+    }
+  }
+}
@@ -8,7 +8,12 @@
  */
 package org.akhikhl.gretty
 
+import java.util.regex.Pattern
+
 /**
+ * Glob patterns of jar names, which are not scanned by tomcat.
+ * Patterns are compiled on first match: names without wildcards go to a hash set,
+ * patterns like 'prefix*suffix' go to a prefix trie, only the rest is matched one by one.
  *
  * @author akhikhl
  */
@@ -75,6 +80,20 @@ class JarSkipPatterns {
     'velocity-*.jar' ]
 
   private final Set<String> patterns = new LinkedHashSet<String>()
+  private volatile CompiledPatterns compiled
+
+  /**
+   * When set, jars known to have nothing to scan are skipped too.
+   */
+  TomcatJarScanCache learnedJars
+  String contextName
+  /**
+   * Key of @HandlesTypes of the context, known empty jars are skipped only when they were learned for the same key.
+   * It is set before jars are scanned, known empty jars are not skipped while it is null.
+   */
+  volatile String handlesTypesKey
+  // jar name -> jar file of the context classpath, null for names of several jars
+  private volatile Map<String, File> learnedJarFiles = [:]
 
   JarSkipPatterns() {
     for(String pattern in defaultPatterns)
@@ -90,6 +109,7 @@ class JarSkipPatterns {
   void add(String pattern) {
     assert pattern != null
     this.patterns.add(pattern)
+    compiled = null
   }
   
   void addPatterns(String patterns) {
@@ -97,10 +117,104 @@ class JarSkipPatterns {
       StringTokenizer tokenizer = new StringTokenizer(patterns, ',')
       while (tokenizer.hasMoreElements())
         this.patterns.add(tokenizer.nextToken())
+      compiled = null
+    }
+  }
+
+  /**
+   * Returns true, when the jar with the given file name should not be scanned.
+   */
+  boolean matches(String jarName) {
+    CompiledPatterns c = compiled
+    if(c == null)
+      compiled = c = new CompiledPatterns(patterns)
+    if(c.matches(jarName))
+      return true
+    if(learnedJars != null && isKnownEmpty(jarName)) {
+      learnedJars.getStats(contextName).knownEmptySkips.incrementAndGet()
+      return true
     }
+    false
+  }
+
+  /**
+   * Jars of the given classpath are candidates for skipping as known empty, tomcat filters jars by name only.
+   */
+  void setClassPath(URL[] classpathUrls) {
+    Map<String, File> result = [:]
+    for(URL url in classpathUrls) {
+      File jarFile = TomcatJarScanCache.toJarFile(url)
+      if(jarFile != null)
+        result.put(jarFile.name, result.containsKey(jarFile.name) && result.get(jarFile.name) != jarFile ? null : jarFile)
+    }
+    learnedJarFiles = result
+  }
+
+  private boolean isKnownEmpty(String jarName) {
+    String key = handlesTypesKey
+    File jarFile = key == null ? null : learnedJarFiles.get(jarName)
+    jarFile != null && learnedJars.isKnownEmpty(jarFile, key)
   }
 
   public Set<String> asSet() {
     return Collections.unmodifiableSet(this.patterns)
   }
+
+  private static final class CompiledPatterns {
+
+    private final Set<String> names = new HashSet<String>()
+    private final TrieNode prefixes = new TrieNode()
+    private final List<Pattern> others = []
+
+    CompiledPatterns(Collection<String> patterns) {
+      for(String pattern in patterns) {
+        int star = pattern.indexOf('*')
+        if(pattern.indexOf('?') >= 0 || (star >= 0 && pattern.indexOf('*', star + 1) >= 0))
+          others.add(Pattern.compile(pattern.split('\\*', -1).collect { String part ->
+            part.split('\\?', -1).collect { Pattern.quote(it) }.join('.')
+          }.join('.*')))
+        else if(star < 0)
+          names.add(pattern)
+        else {
+          TrieNode node = prefixes
+          for(int i = 0; i < star; i++)
+            node = node.child(pattern.charAt(i))
+          node.suffixes.add(pattern.substring(star + 1))
+        }
+      }
+    }
+
+    boolean matches(String name) {
+      if(names.contains(name))
+        return true
+      TrieNode node = prefixes
+      int i = 0
+      while(node != null) {
+        for(String suffix in node.suffixes)
+          if(name.length() - i >= suffix.length() && name.endsWith(suffix))
+            return true
+        node = i < name.length() ? node.children?.get(name.charAt(i)) : null
+        i++
+      }
+      for(Pattern pattern in others)
+        if(pattern.matcher(name).matches())
+          return true
+      false
+    }
+  }
+
+  private static final class TrieNode {
+
+    Map<Character, TrieNode> children
+    final List<String> suffixes = []
+
+    TrieNode child(char c) {
+      if(children == null)
+        children = new HashMap<Character, TrieNode>()
+      TrieNode node = children.get(c)
+      if(node == null)
+        children.put(c, node = new TrieNode())
+      node
+    }
+  }
 }
@@ -20,7 +20,6 @@ import org.apache.tomcat.JarScannerCallback
 import org.apache.tomcat.util.scan.StandardJarScanFilter
 import org.apache.tomcat.util.scan.StandardJarScanner
 import org.apache.tomcat.JarScanType
-import org.apache.tomcat.util.file.Matcher;
 
 /**
  *
@@ -66,7 +65,7 @@ class SkipPatternJarScanner extends StandardJarScanner {
 
   protected boolean checkJar(String path) {
     String name = path.substring(path.lastIndexOf('/') + 1)
-    boolean result = !Matcher.matchName(skipPatterns.asSet(), name)
+    boolean result = !skipPatterns.matches(name)
     log.debug "filter jar: ${name} -> ${result}"
     result
   }
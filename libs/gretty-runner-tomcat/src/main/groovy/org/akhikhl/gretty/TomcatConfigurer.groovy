@@ -20,7 +20,7 @@ import org.apache.tomcat.JarScanner
  */
 interface TomcatConfigurer {
 
-  ContextConfig createContextConfig(URL[] classpathUrls)
+  ContextConfig createContextConfig(URL[] classpathUrls, TomcatJarScanCache scanCache)
 
   JarScanner createJarScanner(JarScanner jarScanner, JarSkipPatterns skipPatterns)
 
@@ -0,0 +1,295 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.apache.juli.logging.Log
+import org.apache.juli.logging.LogFactory
+
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * Persistent per-jar results of tomcat jar scanning, shared by all contexts and runner JVMs using the same directory.
+ * Jars are identified by path, size and modification time. For every jar it remembers, whether it contains TLDs,
+ * and for which set of @HandlesTypes annotation processing of the jar had no effect, so that unchanged jars
+ * are not opened again for nothing. When learning is enabled, jars having nothing to scan at all
+ * are remembered as known empty and skipped on later starts with the same @HandlesTypes, until their checksum changes.
+ */
+@CompileStatic
+class TomcatJarScanCache {
+
+  private static final Log log = LogFactory.getLog(TomcatJarScanCache)
+
+  private static final String FILE_NAME = 'tomcat-jars.txt'
+
+  private static final Map<File, TomcatJarScanCache> instances = new ConcurrentHashMap<File, TomcatJarScanCache>()
+
+  static TomcatJarScanCache forDirectory(File dir) {
+    File key = dir.absoluteFile
+    TomcatJarScanCache cache = instances.get(key)
+    if(cache == null) {
+      instances.putIfAbsent(key, new TomcatJarScanCache(key))
+      cache = instances.get(key)
+    }
+    cache
+  }
+
+  static class Entry {
+    long size
+    long lastModified
+    Boolean hasTlds
+    long tldMillis
+    // key of @HandlesTypes, for which annotation processing of the jar had no effect
+    String inertFor
+    long annotationMillis
+    // no TLDs, web-fragment.xml, META-INF/resources, servlet container initializers and annotations
+    boolean knownEmpty
+    String hash
+  }
+
+  static class Stats {
+    final AtomicInteger hits = new AtomicInteger()
+    final AtomicInteger misses = new AtomicInteger()
+    final AtomicLong savedMillis = new AtomicLong()
+    final AtomicInteger knownEmptySkips = new AtomicInteger()
+
+    @Override
+    String toString() {
+      "${hits.get()} jars skipped, ${misses.get()} jars scanned, ${knownEmptySkips.get()} known empty jar scans skipped, ~${savedMillis.get()} ms saved"
+    }
+  }
+
+  final File dir
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>()
+  private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>()
+
+  /**
+   * When true, jars which have nothing to scan are learned as known empty.
+   */
+  volatile boolean learning
+  private volatile boolean loaded
+  private volatile boolean modified
+
+  private TomcatJarScanCache(File dir) {
+    this.dir = dir
+  }
+
+  /**
+   * Returns the entry of jarFile, if jarFile did not change since it was stored.
+   */
+  Entry get(File jarFile) {
+    load()
+    Entry entry = entries.get(jarFile.absolutePath)
+    entry != null && entry.size == jarFile.length() && entry.lastModified == jarFile.lastModified() ? entry : null
+  }
+
+  /**
+   * Returns the entry of jarFile for update, a new one, if jarFile changed. Call save to persist the changes.
+   */
+  synchronized Entry getForUpdate(File jarFile) {
+    Entry entry = get(jarFile)
+    if(entry == null) {
+      entry = new Entry(size: jarFile.length(), lastModified: jarFile.lastModified())
+      entries.put(jarFile.absolutePath, entry)
+    }
+    modified = true
+    entry
+  }
+
+  /**
+   * Returns true, if jarFile was learned as known empty for the given @HandlesTypes and did not change since then:
+   * it has the same size and modification time, or the same content.
+   */
+  boolean isKnownEmpty(File jarFile, String handlesTypesKey) {
+    load()
+    Entry entry = entries.get(jarFile.absolutePath)
+    if(entry == null || !entry.knownEmpty || entry.inertFor != handlesTypesKey)
+      return false
+    if(jarFile.isFile() && entry.size == jarFile.length()) {
+      if(entry.lastModified == jarFile.lastModified())
+        return true
+      if(entry.hash == contentHash(jarFile)) {
+        synchronized(this) {
+          entry.lastModified = jarFile.lastModified()
+          modified = true
+        }
+        return true
+      }
+    }
+    synchronized(this) {
+      entry.knownEmpty = false
+      modified = true
+    }
+    false
+  }
+
+  /**
+   * Called for jars which had no effect on annotation processing, learns them as known empty,
+   * if they also do not have any resources tomcat looks for.
+   */
+  void learn(File jarFile) {
+    if(!learning)
+      return
+    Entry entry = get(jarFile)
+    if(entry == null || entry.knownEmpty)
+      return
+    if(hasScannedResources(jarFile))
+      return
+    String hash = contentHash(jarFile)
+    synchronized(this) {
+      entry.knownEmpty = true
+      entry.hash = hash
+      modified = true
+    }
+  }
+
+  /**
+   * Forgets known empty jars learned for another set of @HandlesTypes, returns their number.
+   */
+  synchronized int forgetKnownEmpty(String handlesTypesKey) {
+    load()
+    int result = 0
+    for(Map.Entry<String, Entry> e in entries.entrySet())
+      if(e.value.knownEmpty && e.value.inertFor != handlesTypesKey) {
+        e.value.knownEmpty = false
+        modified = true
+        result++
+      }
+    result
+  }
+
+  private static boolean hasScannedResources(File jarFile) {
+    ZipFile zip = new ZipFile(jarFile)
+    try {
+      Enumeration<? extends ZipEntry> zipEntries = zip.entries()
+      while(zipEntries.hasMoreElements()) {
+        String name = zipEntries.nextElement().name
+        if(name.startsWith('META-INF/') && (name.endsWith('.tld') || name == 'META-INF/web-fragment.xml' ||
+           name.startsWith('META-INF/resources/') || name == 'META-INF/services/jakarta.servlet.ServletContainerInitializer'))
+          return true
+      }
+      false
+    } finally {
+      zip.close()
+    }
+  }
+
+  private static String contentHash(File file) {
+    MessageDigest digest = MessageDigest.getInstance('SHA-256')
+    InputStream input = new FileInputStream(file)
+    try {
+      byte[] buffer = new byte[65536]
+      int n
+      while((n = input.read(buffer)) > 0)
+        digest.update(buffer, 0, n)
+    } finally {
+      input.close()
+    }
+    digest.digest().encodeHex().toString()
+  }
+
+  Stats getStats(String contextName) {
+    Stats result = stats.get(contextName)
+    if(result == null) {
+      stats.putIfAbsent(contextName, new Stats())
+      result = stats.get(contextName)
+    }
+    result
+  }
+
+  void resetStats(String contextName) {
+    stats.put(contextName, new Stats())
+  }
+
+  private void load() {
+    if(!loaded)
+      loadFile()
+  }
+
+  private synchronized void loadFile() {
+    if(loaded)
+      return
+    loaded = true
+    File file = new File(dir, FILE_NAME)
+    if(!file.isFile())
+      return
+    try {
+      file.eachLine('UTF-8') { String line ->
+        String[] fields = line.split('\t', -1)
+        if(fields.length == 9) {
+          Entry entry = new Entry(size: fields[1] as long, lastModified: fields[2] as long,
+            hasTlds: fields[3] ? Boolean.valueOf(fields[3]) : null, tldMillis: fields[4] as long,
+            inertFor: fields[5] ?: null, annotationMillis: fields[6] as long,
+            knownEmpty: Boolean.valueOf(fields[7]), hash: fields[8] ?: null)
+          entries.put(fields[0], entry)
+        }
+      }
+    } catch(IOException | NumberFormatException e) {
+      log.debug("Cannot read ${file}: ${e}")
+      entries.clear()
+    }
+  }
+
+  synchronized void save() {
+    if(!modified)
+      return
+    modified = false
+    File file = new File(dir, FILE_NAME)
+    // written to a temporary file and moved, so that other runner JVMs never read incomplete file
+    File tempFile = new File(dir, FILE_NAME + '.' + UUID.randomUUID() + '.tmp')
+    try {
+      dir.mkdirs()
+      tempFile.withWriter('UTF-8') { Writer writer ->
+        for(Map.Entry<String, Entry> e in entries.entrySet()) {
+          Entry entry = e.value
+          writer.write([ e.key, entry.size, entry.lastModified, entry.hasTlds == null ? '' : entry.hasTlds,
+            entry.tldMillis, entry.inertFor ?: '', entry.annotationMillis, entry.knownEmpty, entry.hash ?: '' ].join('\t'))
+          writer.write('\n')
+        }
+      }
+      try {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } catch(AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+      }
+    } catch(IOException e) {
+      log.debug("Cannot write ${file}: ${e}")
+      tempFile.delete()
+    }
+  }
+
+  /**
+   * Returns the local file of a jar url, like file:/x/y.jar or jar:file:/x/y.jar!/, or null for other urls.
+   */
+  static File toJarFile(URL url) {
+    String s = url.toString()
+    if(s.startsWith('jar:')) {
+      s = s.substring(4)
+      int sep = s.indexOf('!/')
+      if(sep >= 0)
+        s = s.substring(0, sep)
+    }
+    if(!s.startsWith('file:') || !s.toLowerCase().endsWith('.jar'))
+      return null
+    try {
+      File file = new File(new URI(s))
+      file.isFile() ? file : null
+    } catch(URISyntaxException | IllegalArgumentException e) {
+      null
+    }
+  }
+}
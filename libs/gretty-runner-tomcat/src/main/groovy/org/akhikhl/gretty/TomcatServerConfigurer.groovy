@@ -218,13 +218,28 @@ class TomcatServerConfigurer {
     configurer.setResourceBase(context, webapp)
     // context.setLogEffectiveWebXml(true) // enable for debugging webxml merge
     URL[] classpathUrls = (webapp.webappClassPath ?: []).collect { new URL(it) } as URL[]
-    URLClassLoader classLoader = new URLClassLoader(classpathUrls, params.parentClassLoader ?: this.getClass().getClassLoader())
+    URLClassLoader classLoader
+    SharedWebappLibraries shared = params[SharedWebappLibraries.PARAMS_KEY]
+    List<String> ownClassPath = shared?.getOwnClassPath(webapp)
+    if(ownClassPath != null)
+      classLoader = shared.createWebappClassLoader(webapp.contextPath, ownClassPath.collect { new URL(it) } as URL[])
+    else
+      classLoader = new URLClassLoader(classpathUrls, params.parentClassLoader ?: this.getClass().getClassLoader())
     if (webapp.springBoot) {
       context.addParameter('GRETTY_SPRING_BOOT_MAIN_CLASS', webapp.springBootMainClass)
     }
     context.addLifecycleListener(new SpringloadedCleanup())
     context.setParentClassLoader(classLoader)
-    context.setJarScanner(configurer.createJarScanner(context.getJarScanner(), new JarSkipPatterns()))
+    TomcatJarScanCache scanCache = params.baseDir ? TomcatJarScanCache.forDirectory(new File(params.baseDir, 'scan-cache')) : null
+    def jarScanner = scanCache ? new CachingJarScanner(context.getJarScanner(), scanCache, context.name) : context.getJarScanner()
+    JarSkipPatterns skipPatterns = new JarSkipPatterns()
+    if(scanCache && params.learnJarSkipList) {
+      scanCache.learning = true
+      skipPatterns.learnedJars = scanCache
+      skipPatterns.contextName = context.name
+      skipPatterns.setClassPath(classpathUrls)
+    }
+    context.setJarScanner(configurer.createJarScanner(jarScanner, skipPatterns))
     context.setParentClassLoader(classLoader)
 
     webapp.initParameters?.each { key, value ->
@@ -246,7 +261,7 @@ class TomcatServerConfigurer {
     if (context.configFile)
       context.logger.info "Configuring ${webapp.contextPath} with ${context.configFile}"
 
-    context.addLifecycleListener(configurer.createContextConfig(classpathUrls))
+    context.addLifecycleListener(configurer.createContextConfig(classpathUrls, scanCache))
 
     if (configureContext) {
       configureContext.delegate = this
@@ -10,6 +10,7 @@ package org.akhikhl.gretty
 
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
+import org.apache.catalina.Context
 import org.apache.catalina.core.StandardContext
 import org.apache.catalina.startup.Tomcat
 import org.apache.juli.logging.Log
@@ -30,6 +31,10 @@ class TomcatServerManager implements ServerManager {
   private TomcatConfigurer configurer
   protected Map params
 	protected Tomcat tomcat
+  // version of the latest context deployed in parallel to the old one
+  private int deploymentVersion
+  // threads removing contexts replaced by blue/green redeploy
+  private final List<Thread> drainThreads = Collections.synchronizedList([])
 
   TomcatServerManager(TomcatConfigurer configurer) {
     this.configurer = configurer
@@ -68,6 +73,7 @@ class TomcatServerManager implements ServerManager {
     tomcat = serverConfigurer.createAndConfigureServer()
 
     boolean result = false
+    Map contextStartTimes
     try {
       /*
        * First we start tomcat without any webapp and then add webapps one by one
@@ -76,26 +82,16 @@ class TomcatServerManager implements ServerManager {
        */
       tomcat.start()
 
-      for(Map webapp in params.webApps) {
-        StandardContext context = serverConfigurer.createContext(webapp, tomcat)
-        tomcat.host.addChild(context)
-      }
+      contextStartTimes = startContexts(serverConfigurer)
 
       result = true
     } catch(Throwable x) {
-      log.error 'Error starting server', x
-      Map startInfo = new TomcatServerStartInfo().getInfo(tomcat, null, params)
-      startInfo.status = 'error starting server'
-      startInfo.error = true
-      startInfo.errorMessage = x.getMessage() ?: x.getClass().getName()
-      StringWriter sw = new StringWriter()
-      x.printStackTrace(new PrintWriter(sw))
-      startInfo.stackTrace = sw.toString()
-      return new ServerStartEvent(startInfo)
+      return createErrorStartEvent(x)
     }
 
     if(result) {
       Map startInfo = new TomcatServerStartInfo().getInfo(tomcat, null, params)
+      startInfo[ContextStartup.CONTEXT_START_TIMES] = contextStartTimes
       log.debug "${params.servletContainerDescription} started."
       return new ServerStartEvent(startInfo)
     }
@@ -103,6 +99,78 @@ class TomcatServerManager implements ServerManager {
     throw new IllegalStateException()
   }
 
+  private ServerStartEvent createErrorStartEvent(Throwable x) {
+    log.error 'Error starting server', x
+    Map startInfo = new TomcatServerStartInfo().getInfo(tomcat, null, params)
+    startInfo.status = 'error starting server'
+    startInfo.error = true
+    startInfo.errorMessage = x.getMessage() ?: x.getClass().getName()
+    StringWriter sw = new StringWriter()
+    x.printStackTrace(new PrintWriter(sw))
+    startInfo.stackTrace = sw.toString()
+    return new ServerStartEvent(startInfo)
+  }
+
+  /**
+   * Replaces webapp contexts, while server, connectors and executor keep running,
+   * so that server.xml is not parsed again and ports are not rebound.
+   */
+  @Override
+  ServerStartEvent restartContexts() {
+    if(tomcat == null)
+      return startServer()
+    log.debug "${params.servletContainerDescription} restarting contexts."
+    Map contextStartTimes
+    try {
+      // removeChild stops and destroys the context
+      for(def child in tomcat.host.findChildren().findAll { it instanceof StandardContext })
+        tomcat.host.removeChild(child)
+      contextStartTimes = startContexts(createServerConfigurer())
+    } catch(Throwable x) {
+      return createErrorStartEvent(x)
+    }
+    Map startInfo = new TomcatServerStartInfo().getInfo(tomcat, null, params)
+    startInfo[ContextStartup.CONTEXT_START_TIMES] = contextStartTimes
+    log.debug "${params.servletContainerDescription} contexts restarted."
+    return new ServerStartEvent(startInfo)
+  }
+
+  /**
+   * With contextStartupThreads greater than 1, independent contexts are started concurrently.
+   * Host.addChild starts the context and is safe to call from several threads.
+   */
+  private Map startContexts(TomcatServerConfigurer serverConfigurer) {
+    if(params.shareWebappLibs) {
+      // contexts replaced by blue/green redeploy may still serve requests with the previous shared loader
+      SharedWebappLibraries previous = params.remove(SharedWebappLibraries.PARAMS_KEY)
+      if(previous != null)
+        closeWhenDrained(previous)
+      params[SharedWebappLibraries.PARAMS_KEY] = SharedWebappLibraries.create(params.webApps, params.parentClassLoader ?: TomcatServerConfigurer.classLoader)
+    }
+    Map contextStartTimes = ContextStartup.startContexts(params.webApps, params.contextStartupThreads ?: 1,
+      { Map webapp -> serverConfigurer.createContext(webapp, tomcat) },
+      { context -> tomcat.host.addChild(context) })
+    SharedWebappLibraries shared = params[SharedWebappLibraries.PARAMS_KEY]
+    if(shared != null)
+      log.info "Shared webapp libraries: ${shared.report}"
+    contextStartTimes
+  }
+
+  /**
+   * Closes the given shared libraries after the contexts, which are being removed now, stopped.
+   */
+  private void closeWhenDrained(SharedWebappLibraries shared) {
+    List<Thread> threads = new ArrayList(drainThreads)
+    if(threads.isEmpty()) {
+      shared.close()
+      return
+    }
+    Thread.startDaemon('gretty-shared-libs-close') {
+      threads*.join()
+      shared.close()
+    }
+  }
+
   @Override
   void stopServer() {
     if(tomcat != null) {
@@ -117,7 +185,9 @@ class TomcatServerManager implements ServerManager {
 
   @Override
   void redeploy(List<String> webapps) {
-    if(tomcat != null) {
+    if(tomcat != null && params.redeployMode == 'blueGreen')
+      redeployBlueGreen(webapps)
+    else if(tomcat != null) {
       log.debug "redeploying ${webapps.join(", ")}."
       def containers = webapps.collect { TomcatServerConfigurer.getEffectiveContextPath(it) }.collect { tomcat.host.findChild(it) }
       //
@@ -128,4 +198,60 @@ class TomcatServerManager implements ServerManager {
       }
     }
   }
+
+  /**
+   * Uses tomcat parallel deployment: the replacement context gets a newer version of the same path,
+   * so that the mapper switches requests to it, as soon as it is started. The old context keeps serving until then,
+   * afterwards it is removed, waiting up to redeployDrainTimeout for its in-flight requests.
+   */
+  private void redeployBlueGreen(List<String> webapps) {
+    log.debug "redeploying ${webapps.join(", ")} blue/green."
+    TomcatServerConfigurer serverConfigurer = createServerConfigurer()
+    for(String contextPath in webapps) {
+      Map webapp = params.webApps.find { it.contextPath == contextPath }
+      if(webapp == null)
+        continue
+      String path = TomcatServerConfigurer.getEffectiveContextPath(contextPath)
+      List oldContexts = tomcat.host.findChildren().findAll { it instanceof Context && it.path == path }
+      def context = serverConfigurer.createContext(webapp, tomcat)
+      // versions are compared as strings
+      String version = String.format('%06d', ++deploymentVersion)
+      context.name = path + '##' + version
+      context.webappVersion = version
+      boolean available = false
+      try {
+        tomcat.host.addChild(context)
+        available = context.state.isAvailable()
+      } catch(IllegalStateException x) {
+        log.error "Error starting replacement of ${contextPath}", x
+      }
+      if(!available) {
+        log.error "Replacement of ${contextPath} is not available, old context keeps serving"
+        if(context.parent != null)
+          tomcat.host.removeChild(context)
+        continue
+      }
+      for(def oldContext in oldContexts)
+        removeWhenDrained(oldContext)
+    }
+  }
+
+  private void removeWhenDrained(context) {
+    def host = tomcat.host
+    // stopping context waits up to unloadDelay for servlets still serving requests
+    context.unloadDelay = (params.redeployDrainTimeout ?: 30) * 1000L
+    Thread thread = new Thread({
+      try {
+        host.removeChild(context)
+      } catch(Throwable x) {
+        log.error 'Error removing replaced context', x
+      } finally {
+        drainThreads.remove(Thread.currentThread())
+      }
+    }, 'gretty-redeploy-drain')
+    thread.daemon = true
+    // registered before start, so that closeWhenDrained does not miss it
+    drainThreads.add(thread)
+    thread.start()
+  }
 }
@@ -38,6 +38,8 @@ class TomcatServerStartInfo {
     Connector httpsConn = connectors.find { it.scheme == 'https' }
 
     List contextInfo = []
+    Map jarScanInfo = [:]
+    TomcatJarScanCache scanCache = params.baseDir ? TomcatJarScanCache.forDirectory(new File(params.baseDir, 'scan-cache')) : null
 
     String host = tomcat.hostname == '0.0.0.0' ? 'localhost' : tomcat.hostname
 
@@ -63,6 +65,11 @@ class TomcatServerStartInfo {
           baseURI: "https://${host}:${httpsConn.localPort}${context.path}"
         ])
       }
+      if(scanCache) {
+        def scanStats = scanCache.getStats(context.name)
+        log.info "  jar scan cache: ${scanStats}"
+        jarScanInfo[context.path] = [ skippedJars: scanStats.hits.get(), scannedJars: scanStats.misses.get(), savedMillis: scanStats.savedMillis.get() ]
+      }
     }
 
     def serverStartInfo = [ status: 'successfully started' ]
@@ -76,6 +83,9 @@ class TomcatServerStartInfo {
       serverStartInfo.httpsPort = httpsConn.localPort
 
     serverStartInfo.contexts = contextInfo
+
+    if(jarScanInfo)
+      serverStartInfo.jarScanCache = jarScanInfo
     serverStartInfo
   }
 }
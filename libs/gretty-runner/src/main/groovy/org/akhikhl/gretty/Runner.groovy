@@ -14,6 +14,11 @@ import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
 
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationTargetException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
 /**
  *
  * @author akhikhl
@@ -27,11 +32,18 @@ final class Runner {
     def cli = new CliBuilder()
     cli.with {
       d longOpt: 'debug', type: Boolean, 'enable debug logging'
-      st longOpt: 'statusPort', required: true, args: 1, argName: 'statusPort', type: Integer, 'status port'
+      st longOpt: 'statusAddress', required: true, args: 1, argName: 'statusAddress', type: String, 'status address: port number or unix:<socket path>'
+      ss longOpt: 'serviceSocket', args: 1, argName: 'serviceSocket', type: String, 'unix domain socket path of the service reader'
       smf longOpt: 'serverManagerFactory', required: true, args: 1, argName: 'serverManagerFactory', type: String, 'server manager factory'
+      df longOpt: 'daemonFile', args: 1, argName: 'daemonFile', type: String, 'stay alive between runs, advertising service address in the given properties file'
+      dk longOpt: 'daemonKey', args: 1, argName: 'daemonKey', type: String, 'key of the runner configuration, advertised in daemon file'
+      dit longOpt: 'daemonIdleTimeout', args: 1, argName: 'daemonIdleTimeout', type: Integer, 'minutes to wait for the next run before daemon exits'
+      crf longOpt: 'cracRestoreFile', args: 1, argName: 'cracRestoreFile', type: String, 'properties file, from which runner restored from CRaC checkpoint takes the status address'
     }
     def options = cli.parse(args)
-    Map params = [statusPort: options.statusPort as int, serverManagerFactory: options.serverManagerFactory, debug: options.debug]
+    Map params = [statusAddress: options.statusAddress, serviceSocket: options.serviceSocket ?: null, serverManagerFactory: options.serverManagerFactory, debug: options.debug,
+                  daemonFile: options.daemonFile ?: null, daemonKey: options.daemonKey ?: null, daemonIdleTimeout: options.daemonIdleTimeout ?: null,
+                  cracRestoreFile: options.cracRestoreFile ?: null]
     new Runner(params).run()
   }
 
@@ -42,26 +54,65 @@ final class Runner {
   private void run() {
     boolean paramsLoaded = false
     def serverManager = null
-    final def reader = ServiceProtocol.createReader()
-    final def writer = ServiceProtocol.createWriter(params.statusPort)
+    final Map runnerParams = new LinkedHashMap(params)
+    // daemon runner survives 'stop' and waits for the next launcher to attach
+    final File daemonFile = params.daemonFile ? new File(params.daemonFile) : null
+    final long daemonIdleTimeout = (params.daemonIdleTimeout ?: 120) * 60000L
+    def reader = createServiceReader()
+    String serviceAddress = reader.address
+    def commands = new RunnerCommandQueue(reader, daemonFile ? 'idle' : null)
+    def writer = ServiceProtocol.createWriter(params.statusAddress)
     def cl = null
+    def clClasspath = null
     try {
-      writer.write("init ${reader.port}")
+      if(daemonFile)
+        writeDaemonFile(daemonFile, serviceAddress)
+      writer.write("init ${serviceAddress}")
       while(true) {
-        def data = reader.readMessage()
+        // pending restarts and redeploys come coalesced into one command
+        def command = daemonFile && !paramsLoaded ? commands.take(daemonIdleTimeout) : commands.take()
+        if(command == null)
+          break // daemon was idle for too long
+        def request = command.request
+        def data = command.text
         if(!paramsLoaded) {
-          params << new JsonSlurper().parseText(data)
+          if(daemonFile && data?.startsWith('attach ')) {
+            writer = ServiceProtocol.createWriter(data.substring('attach '.length()))
+            respond(writer, request, 'attached')
+            continue
+          }
+          if(daemonFile && data == 'status') {
+            respond(writer, request, 'idle')
+            continue
+          }
+          if(data == 'exit')
+            break
+          params.clear()
+          params << runnerParams
+          params << (request.binary ? RunConfigCodec.decode(request.data) : new JsonSlurper().parseText(data))
           paramsLoaded = true
 
-          cl = createClassLoader()
+          // warm daemon keeps servlet container classes loaded between runs
+          if(cl == null || clClasspath != params.servletContainerClasspath) {
+            if(cl instanceof Closeable)
+              cl.close()
+            cl = createClassLoader()
+            clClasspath = params.servletContainerClasspath
+          }
           ClassLoader oldClassLoader = Thread.currentThread().getContextClassLoader()
           Thread.currentThread().setContextClassLoader(cl)
           try {
             def ServerManagerFactory = Class.forName(params.serverManagerFactory, true, cl)
             serverManager = ServerManagerFactory.createServerManager()
             serverManager.setParams(params)
+            long startTime = System.nanoTime()
             def event = serverManager.startServer()
-            onServerStarted(writer, event.getServerStartInfo())
+            event = event.withStartTiming('start', (System.nanoTime() - startTime).intdiv(1000000L))
+            // includes JVM startup and class loading, not meaningful for daemon runner launched by an earlier run
+            if(!daemonFile)
+              event = event.withRunnerUptime(ManagementFactory.getRuntimeMXBean().getUptime())
+            onServerStarted(writer, request, event.getServerStartInfo())
+            commands.status = 'started'
           }
           finally {
             Thread.currentThread().setContextClassLoader(oldClassLoader)
@@ -72,29 +123,53 @@ final class Runner {
           continue
         }
         if(data == 'status')
-          writer.write('started')
+          respond(writer, request, 'started')
         else if(data == 'stop') {
           serverManager.stopServer()
+          if(!daemonFile)
+            break
+          serverManager = null
+          paramsLoaded = false
+          commands.status = 'idle'
+          writer.writeMayFail('stopped')
+        }
+        else if(data == 'exit') {
+          serverManager.stopServer()
+          writer.writeMayFail('stopped')
           break
         }
-        else if(data == 'restart') {
+        else if(data?.startsWith('attach '))
+          respond(writer, request, 'busy')
+        else if(data == 'checkpoint' && params.cracRestoreFile) {
           serverManager.stopServer()
-          ClassLoader oldClassLoader = Thread.currentThread().getContextClassLoader()
-          Thread.currentThread().setContextClassLoader(cl)
+          serverManager = null
+          paramsLoaded = false
+          commands.status = null
+          // open sockets prevent checkpoint
+          reader.close()
           try {
-            serverManager.startServer()
+            checkpointRestore()
+          } catch(Exception e) {
+            writer.writeMayFail("checkpointFailed ${e}")
+            break
           }
-          finally {
-            Thread.currentThread().setContextClassLoader(oldClassLoader)
+          // restored by another launcher, which left its status address in the restore file
+          Properties props = new Properties()
+          new File(params.cracRestoreFile).withReader 'UTF-8', {
+            props.load(it)
           }
+          writer = ServiceProtocol.createWriter(ServiceProtocol.loadAddress(props, 'status'))
+          reader = createServiceReader()
+          serviceAddress = reader.address
+          commands = new RunnerCommandQueue(reader, null)
+          writer.write("init ${serviceAddress}")
         }
-        else if(data == 'restartWithEvent') {
-          serverManager.stopServer()
+        else if(data == 'restart' || data == 'restartWithEvent') {
           ClassLoader oldClassLoader = Thread.currentThread().getContextClassLoader()
           Thread.currentThread().setContextClassLoader(cl)
           try {
-            def event = serverManager.startServer()
-            onServerStarted(writer, event.getServerStartInfo())
+            def event = restartServer(serverManager)
+            command.respond(writer, toJson(event.getServerStartInfo()))
           }
           finally {
             Thread.currentThread().setContextClassLoader(oldClassLoader)
@@ -106,7 +181,7 @@ final class Runner {
           try {
             List<String> webappList = data.replace('redeploy ', '').split(' ').toList()
             serverManager.redeploy(webappList)
-            writer.writeMayFail('redeployed')
+            command.respond(writer, 'redeployed')
           } finally {
             Thread.currentThread().setContextClassLoader(oldClassLoader)
           }
@@ -114,9 +189,74 @@ final class Runner {
       }
     } finally {
       reader.close()
+      // runner may run in the starter JVM, which outlives it
+      if(cl instanceof Closeable)
+        cl.close()
+      if(daemonFile)
+        deleteDaemonFile(daemonFile, serviceAddress)
     }
   }
 
+  private createServiceReader() {
+    params.serviceSocket ? ServiceProtocol.createReader('unix', new File(params.serviceSocket)) : ServiceProtocol.createReader()
+  }
+
+  /**
+   * Takes CRaC checkpoint of this JVM, which is terminated then. Returns in the JVM restored from the checkpoint.
+   */
+  private static void checkpointRestore() {
+    try {
+      Class.forName('jdk.crac.Core').getMethod('checkpointRestore').invoke(null)
+    } catch(InvocationTargetException e) {
+      throw e.cause
+    }
+  }
+
+  private void writeDaemonFile(File daemonFile, String serviceAddress) {
+    Properties props = new Properties()
+    ServiceProtocol.storeAddress(props, 'service', serviceAddress)
+    if(params.daemonKey)
+      props.daemonKey = params.daemonKey
+    props.pid = String.valueOf(ProcessHandle.current().pid())
+    File tempFile = new File(daemonFile.parentFile, daemonFile.name + '.tmp')
+    tempFile.withWriter 'UTF-8', {
+      props.store(it, null)
+    }
+    Files.move(tempFile.toPath(), daemonFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+  }
+
+  /**
+   * Another daemon may have taken over the file in the meantime, it is left alone then.
+   */
+  private static void deleteDaemonFile(File daemonFile, String serviceAddress) {
+    if(!daemonFile.exists())
+      return
+    Properties props = new Properties()
+    daemonFile.withReader 'UTF-8', {
+      props.load(it)
+    }
+    if(ServiceProtocol.loadAddress(props, 'service') == serviceAddress)
+      daemonFile.delete()
+  }
+
+  /**
+   * With restartMode 'contexts' only webapp contexts are replaced, server and connectors keep running.
+   */
+  private restartServer(serverManager) {
+    long startTime = System.nanoTime()
+    def event
+    String startMode
+    if(params.restartMode == 'contexts') {
+      event = serverManager.restartContexts()
+      startMode = 'restartContexts'
+    } else {
+      serverManager.stopServer()
+      event = serverManager.startServer()
+      startMode = 'restart'
+    }
+    event.withStartTiming(startMode, (System.nanoTime() - startTime).intdiv(1000000L))
+  }
+
   private ClassLoader createClassLoader() {
     URL[] urls = new URL[params.servletContainerClasspath.size()]
     for (int index = 0; index < params.servletContainerClasspath.size(); index++) {
@@ -133,9 +273,24 @@ final class Runner {
     bootClassLoader
   }
 
-  private onServerStarted(ServiceProtocol.Writer writer, Map<String, String> serverStartInfo) {
+  private onServerStarted(ServiceProtocol.Writer writer, ServiceProtocol.Message request, Map<String, String> serverStartInfo) {
+    respond(writer, request, toJson(serverStartInfo))
+  }
+
+  private static String toJson(Map<String, String> serverStartInfo) {
     JsonBuilder json = new JsonBuilder()
     json serverStartInfo
-    writer.writeMayFail(json.toString())
+    json.toString()
+  }
+
+  /**
+   * Replies over the framed channel the request came from,
+   * otherwise sends the reply to the status port as before.
+   */
+  private static void respond(ServiceProtocol.Writer writer, ServiceProtocol.Message request, String response) {
+    if(request.expectsReply)
+      request.replyMayFail(response)
+    else
+      writer.writeMayFail(response)
   }
 }
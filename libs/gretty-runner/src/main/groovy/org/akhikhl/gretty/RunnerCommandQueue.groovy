@@ -0,0 +1,133 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+
+import java.nio.channels.ClosedChannelException
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+/**
+ * Commands sent to the runner, read from the service reader by a separate thread.
+ * 'status' requests expecting a reply are answered at once, while the runner is busy with another command.
+ * Pending restart and redeploy commands are coalesced, when the runner takes them: redeploys merge their context paths,
+ * restarts collapse into one restart, which also covers the pending redeploys.
+ * Every coalesced request expecting a reply still gets its own reply, tagged with its request id.
+ */
+@CompileStatic
+class RunnerCommandQueue {
+
+  private static final ServiceProtocol.Message CLOSED = new ServiceProtocol.Message(null, ServiceProtocol.NO_REPLY, null)
+
+  private static final String REDEPLOY_PREFIX = 'redeploy '
+
+  static class Command {
+
+    final String text
+
+    /**
+     * The first of the coalesced requests.
+     */
+    final ServiceProtocol.Message request
+
+    final List<ServiceProtocol.Message> requests
+
+    Command(String text, List<ServiceProtocol.Message> requests) {
+      this.text = text
+      this.request = requests[0]
+      this.requests = requests
+    }
+
+    boolean isCoalesced() {
+      requests.size() > 1
+    }
+
+    /**
+     * Replies to every request: redeploys absorbed by restart get 'redeployed', others the given response.
+     * Requests not expecting a reply are answered once over the status writer, except 'restart', which never was.
+     */
+    void respond(ServiceProtocol.Writer writer, String response) {
+      Set<String> written = new HashSet<String>()
+      for(ServiceProtocol.Message r in requests) {
+        String reply = r.text?.startsWith(REDEPLOY_PREFIX) ? 'redeployed' : response
+        if(r.expectsReply)
+          r.replyMayFail(reply)
+        else if(r.text != 'restart' && written.add(reply))
+          writer.writeMayFail(reply)
+      }
+    }
+  }
+
+  private final ServiceProtocol.Reader reader
+  private final LinkedBlockingDeque<ServiceProtocol.Message> messages = new LinkedBlockingDeque<ServiceProtocol.Message>()
+
+  /**
+   * Immediate answer to 'status', null when 'status' is to be handled by the runner in turn.
+   */
+  volatile String status
+
+  RunnerCommandQueue(ServiceProtocol.Reader reader, String status) {
+    this.reader = reader
+    this.status = status
+    Thread.startDaemon("gretty-runner-commands-${reader.address}".toString(), this.&readMessages)
+  }
+
+  private void readMessages() {
+    try {
+      while(true) {
+        ServiceProtocol.Message message = reader.readRequest()
+        String currentStatus = status
+        if(currentStatus != null && message.text == 'status' && message.expectsReply)
+          message.replyMayFail(currentStatus)
+        else
+          messages.put(message)
+      }
+    } catch(ClosedChannelException ignored) {
+      // reader was closed
+    } finally {
+      messages.put(CLOSED)
+    }
+  }
+
+  Command take() {
+    coalesce(messages.take())
+  }
+
+  /**
+   * Returns null when no command arrived within the given time.
+   */
+  Command take(long timeoutMillis) {
+    ServiceProtocol.Message message = messages.poll(timeoutMillis, TimeUnit.MILLISECONDS)
+    message == null ? null : coalesce(message)
+  }
+
+  private Command coalesce(ServiceProtocol.Message first) {
+    if(first.is(CLOSED)) {
+      messages.put(CLOSED)
+      throw new ClosedChannelException()
+    }
+    List<ServiceProtocol.Message> requests = [ first ]
+    if(!isCoalescible(first))
+      return new Command(first.text, requests)
+    // the runner thread is the only one taking messages, so the peeked one is polled
+    while(messages.peekFirst() != null && isCoalescible(messages.peekFirst()))
+      requests.add(messages.pollFirst())
+    if(requests.any { ServiceProtocol.Message r -> !r.text.startsWith(REDEPLOY_PREFIX) })
+      return new Command(requests.any { ServiceProtocol.Message r -> r.text == 'restartWithEvent' } ? 'restartWithEvent' : 'restart', requests)
+    Set<String> contextPaths = new LinkedHashSet<String>()
+    for(ServiceProtocol.Message r in requests)
+      contextPaths.addAll(r.text.substring(REDEPLOY_PREFIX.length()).split(' ').findAll { String s -> s })
+    new Command(REDEPLOY_PREFIX + contextPaths.join(' '), requests)
+  }
+
+  private static boolean isCoalescible(ServiceProtocol.Message message) {
+    !message.binary && (message.text == 'restart' || message.text == 'restartWithEvent' || message.text?.startsWith(REDEPLOY_PREFIX))
+  }
+}
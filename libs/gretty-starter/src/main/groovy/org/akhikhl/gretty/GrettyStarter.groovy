@@ -95,6 +95,12 @@ class GrettyStarter {
 
     ConfigUtils.complementProperties(sconfig, ServerConfig.getDefaultServerConfig(config.productName))
     
+    // training runs must not conflict with a running product
+    if(command == 'cdsArchive' || command == 'checkpoint') {
+      sconfig.httpPort = ServerConfig.RANDOM_FREE_PORT
+      sconfig.httpsPort = ServerConfig.RANDOM_FREE_PORT
+    }
+
     for(String arg in specialArgs) {
       def (key, value) = arg.split('=')
       if(key.matches(~'.*Port') || key.matches(~'.*IdleTimeout'))
@@ -127,8 +133,7 @@ class GrettyStarter {
       portPropertiesFile.withReader 'UTF-8', {
         portProps.load(it)
       }
-      int servicePort = portProps.servicePort as int
-      ServiceProtocol.createWriter(servicePort).write(command)
+      ServiceProtocol.createWriter(ServiceProtocol.loadAddress(portProps, 'service')).write(command)
       return
     }
 
@@ -168,7 +173,7 @@ class GrettyStarter {
       }
 
       boolean getInteractive() {
-        command != 'start'
+        command == 'run'
       }
 
       boolean getManagedClassReload() {
@@ -217,11 +222,63 @@ class GrettyStarter {
       }
     }
 
-    Launcher launcher = new StarterLauncher(basedir, config, launcherConfig)
+    StarterLauncher launcher = new StarterLauncher(basedir, config, launcherConfig)
     try {
-      launcher.launch()
+      if(command == 'cdsArchive')
+        createCdsArchive(launcher)
+      else if(command == 'checkpoint')
+        createCheckpoint(launcher)
+      else {
+        launcher.inProcess = config.singleJvm as boolean
+        launcher.cracRestore = config.crac as boolean
+        launcher.launch()
+      }
     } finally {
       launcher.dispose()
     }
   }
+
+  /**
+   * Training run, after which the runner JVM leaves AppCDS archive in 'cds' directory.
+   * The archive is bound to the location of the product and to the JDK.
+   */
+  private static void createCdsArchive(StarterLauncher launcher) {
+    launcher.cdsArchiveDump = true
+    launcher.beforeLaunch()
+    try {
+      Thread thread = launcher.launchThread()
+      launcher.sendTrainingRequests()
+      launcher.stopServer()
+      thread.join()
+    } finally {
+      launcher.afterLaunch()
+    }
+    File archiveFile = launcher.getCdsArchiveFile()
+    if(archiveFile == null || !archiveFile.isFile())
+      throw new Exception("Runner JVM did not write AppCDS archive ${archiveFile ?: ''}, it requires JDK 13 or newer")
+    println "AppCDS archive ${archiveFile} written, server started ${launcher.serverStartInfo.runnerUptime} ms after runner JVM launch without it"
+  }
+
+  /**
+   * Training run, after which the runner JVM saves CRaC checkpoint in 'crac' directory,
+   * the server is stopped in the checkpoint. Requires a JDK with CRaC support.
+   */
+  private static void createCheckpoint(StarterLauncher launcher) {
+    launcher.cracCheckpointDir.deleteDir()
+    launcher.cracCheckpoint = true
+    String error
+    launcher.beforeLaunch()
+    try {
+      Thread thread = launcher.launchThread()
+      launcher.sendTrainingRequests()
+      error = launcher.checkpointRunner(thread)
+    } finally {
+      launcher.afterLaunch()
+    }
+    if(error) {
+      launcher.cracCheckpointDir.deleteDir()
+      throw new Exception("Runner JVM did not save CRaC checkpoint: ${error}")
+    }
+    println "CRaC checkpoint saved to ${launcher.cracCheckpointDir}, run and start restore the runner from it"
+  }
 }
@@ -13,6 +13,9 @@ import groovy.transform.TypeCheckingMode
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationTargetException
+
 /**
  *
  * @author akhikhl
@@ -29,6 +32,23 @@ class StarterLauncher extends LauncherBase {
   private final File basedir
   private final Map starterConfig
 
+  /**
+   * When true, the runner is launched so that it can save CRaC checkpoint, see {@link #checkpointRunner}.
+   */
+  boolean cracCheckpoint
+
+  /**
+   * When true, the runner is restored from CRaC checkpoint, when there is one, and launched normally otherwise.
+   */
+  boolean cracRestore
+
+  /**
+   * When true, the runner runs in the starter JVM, in a class loader isolated from the starter,
+   * writing directly to the console. JVM arguments of the runner, except system properties,
+   * do not apply then, they should be passed to the starter JVM.
+   */
+  boolean inProcess
+
   StarterLauncher(File basedir, Map starterConfig, LauncherConfig config) {
     super(config)
     this.basedir = basedir
@@ -40,6 +60,54 @@ class StarterLauncher extends LauncherBase {
     return getPortPropertiesFile(basedir)
   }
 
+  File getCracCheckpointDir() {
+    new File(basedir, 'crac')
+  }
+
+  /**
+   * Runner restored from checkpoint keeps the command line of the checkpoint, it takes the status address from this file.
+   */
+  protected File getCracRestoreFile() {
+    new File(basedir, 'temp/gretty_crac_restore.properties')
+  }
+
+  @Override
+  protected File getCdsArchiveDir() {
+    new File(basedir, 'cds')
+  }
+
+  @Override
+  protected JavaExecParams createRunnerExecParams() {
+    JavaExecParams params = super.createRunnerExecParams()
+    if(cracCheckpoint) {
+      params.jvmArgs = (params.jvmArgs ?: []) + [ "-XX:CRaCCheckpointTo=${cracCheckpointDir.absolutePath}".toString() ]
+      params.args += "--cracRestoreFile=${cracRestoreFile.absolutePath}".toString()
+    }
+    params
+  }
+
+  /**
+   * Asks the started runner to stop the server and save CRaC checkpoint, waits until the runner exits.
+   * Returns null on success, otherwise the error reported by the runner.
+   */
+  String checkpointRunner(Thread launchThread) {
+    log.debug 'Sending command: {}', 'checkpoint'
+    if(channel != null)
+      channel.send('checkpoint')
+    else
+      writer.write('checkpoint')
+    launchThread.join()
+    ServiceProtocol.Message message = reader.readRequest(0L)
+    if(message?.text?.startsWith('checkpointFailed '))
+      return message.text.substring('checkpointFailed '.length())
+    cracCheckpointDir.list() ? null : 'runner exited without checkpoint'
+  }
+
+  @Override
+  protected List<File> getRunnerClasspathFiles() {
+    new File(basedir, 'runner').listFiles()?.toList()?.sort()
+  }
+
   @Override
   protected String getServletContainerId() {
     starterConfig.servletContainer.id
@@ -63,6 +131,17 @@ class StarterLauncher extends LauncherBase {
       return javaPath
     })
 
+    if(inProcess) {
+      runInProcess(params)
+      return
+    }
+
+    if(cracRestore && cracCheckpointDir.list()) {
+      if(restoreRunner(jvmExecutable))
+        return
+      log.warn 'Could not restore runner from CRaC checkpoint {}, starting it normally', cracCheckpointDir
+    }
+
     def classPath = [ new File(basedir, 'runner/*') ]
     classPath = classPath.collect { it.absolutePath }.join(System.getProperty('path.separator'))
     // Note that JavaExecParams debugging properties are intentionally ignored.
@@ -73,6 +152,52 @@ class StarterLauncher extends LauncherBase {
     proc.waitForProcessOutput(System.out, System.err)
   }
 
+  private void runInProcess(JavaExecParams params) {
+    List<String> starterJvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments()
+    for(String arg in params.jvmArgs) {
+      if(arg.startsWith('-D')) {
+        int sep = arg.indexOf('=')
+        System.setProperty(sep > 0 ? arg.substring(2, sep) : arg.substring(2), sep > 0 ? arg.substring(sep + 1) : '')
+      } else if(!starterJvmArgs.contains(arg) && !arg.startsWith('-XX:SharedArchiveFile='))
+        log.warn 'Runner JVM argument {} is ignored, because the runner runs in the starter JVM', arg
+    }
+    System.setProperty('grettyProduct', 'true')
+    params.systemProperties.each { k, v ->
+      System.setProperty(k.toString(), v.toString())
+    }
+    URL[] urls = getRunnerClasspathFiles().findAll { it.name.endsWith('.jar') }.collect { it.toURI().toURL() } as URL[]
+    URLClassLoader classLoader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())
+    Thread thread = Thread.currentThread()
+    ClassLoader oldClassLoader = thread.getContextClassLoader()
+    thread.setContextClassLoader(classLoader)
+    try {
+      log.debug 'Running runner in process: {} {}', params.main, params.args.join(' ')
+      Class.forName(params.main, true, classLoader).getMethod('main', String[]).invoke(null, [ params.args as String[] ] as Object[])
+    } catch(InvocationTargetException e) {
+      throw e.cause
+    } finally {
+      thread.setContextClassLoader(oldClassLoader)
+      classLoader.close()
+    }
+  }
+
+  /**
+   * Returns false, when the runner exited without connecting to this launcher, that is, restore failed.
+   */
+  private boolean restoreRunner(String jvmExecutable) {
+    Properties props = new Properties()
+    ServiceProtocol.storeAddress(props, 'status', reader.address)
+    cracRestoreFile.parentFile.mkdirs()
+    cracRestoreFile.withWriter 'UTF-8', {
+      props.store(it, null)
+    }
+    def procParams = [ jvmExecutable, "-XX:CRaCRestoreFrom=${cracCheckpointDir.absolutePath}" ]
+    log.debug 'Restoring runner process: {}', procParams.join(' ')
+    Process proc = procParams.execute()
+    proc.waitForProcessOutput(System.out, System.err)
+    runnerConnected
+  }
+
   @Override
   protected void rebuildWebapps() {
     println 'Cannot rebuild application in StarterLauncher'
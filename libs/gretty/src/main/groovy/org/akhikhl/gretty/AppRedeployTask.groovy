@@ -19,4 +19,10 @@ class AppRedeployTask extends AppServiceTask {
   String getCommand() {
     return "redeploy ${webapps.join(' ')}"
   }
+
+  @Internal
+  @Override
+  boolean getWaitForReply() {
+    true
+  }
 }
@@ -8,6 +8,7 @@
  */
 package org.akhikhl.gretty
 
+import org.gradle.api.tasks.Internal
 import org.gradle.work.DisableCachingByDefault
 
 /**
@@ -20,4 +21,10 @@ class AppRestartTask extends AppServiceTask {
   String getCommand() {
     'restart'
   }
+
+  @Internal
+  @Override
+  boolean getWaitForReply() {
+    true
+  }
 }
@@ -18,6 +18,10 @@ import org.gradle.work.DisableCachingByDefault
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
 /**
  * Gradle task for control over jetty
  *
@@ -29,6 +33,12 @@ abstract class AppServiceTask extends DefaultTask {
 
   private static Logger log = LoggerFactory.getLogger(AppServiceTask)
 
+  /**
+   * Seconds to wait for the runner to complete the command, when the task waits for reply.
+   */
+  @Internal
+  int replyTimeout = 300
+
   @TaskAction
   void action() {
     String command = getCommand()
@@ -44,12 +54,34 @@ abstract class AppServiceTask extends DefaultTask {
     portPropertiesFile.withReader 'UTF-8', {
       portProps.load(it)
     }
-    int servicePort = portProps.servicePort as int
+    String serviceAddress = ServiceProtocol.loadAddress(portProps, 'service')
 
-    log.debug 'Sending command {} to port {}', command, servicePort
-    ServiceProtocol.createWriter(servicePort).write(command)
+    log.debug 'Sending command {} to {}', command, serviceAddress
+    if(getWaitForReply()) {
+      // the reply is tagged with the id of this request, so it is not confused with replies to other clients
+      ServiceProtocol.Channel channel = ServiceProtocol.openChannel(serviceAddress)
+      try {
+        String reply = channel.request(command).get(replyTimeout, TimeUnit.SECONDS)
+        log.debug 'Command {} completed: {}', command, reply
+      } catch(TimeoutException e) {
+        throw new GradleException("Gretty did not complete command '$command' within ${replyTimeout} seconds, see replyTimeout of task ${name}.")
+      } catch(ExecutionException e) {
+        throw new GradleException("Gretty stopped before completing command '$command'.", e.cause)
+      } finally {
+        channel.close()
+      }
+    } else
+      ServiceProtocol.createWriter(serviceAddress).write(command)
   }
 
   @Internal
   abstract String getCommand()
+
+  /**
+   * When true, the task waits until the runner completed the command.
+   */
+  @Internal
+  boolean getWaitForReply() {
+    false
+  }
 }
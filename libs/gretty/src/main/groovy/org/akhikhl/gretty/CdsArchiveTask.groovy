@@ -0,0 +1,67 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeCheckingMode
+import org.gradle.api.GradleException
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.TaskAction
+import org.gradle.work.DisableCachingByDefault
+
+/**
+ * Does a training run of the server: starts it, requests every webapp once and stops it.
+ * The runner JVM dumps dynamic AppCDS archive of the classes it loaded, which is used by next starts
+ * with the same JVM, runner and servlet container classpath. Requires JDK 13 or newer for the runner.
+ */
+@CompileStatic(TypeCheckingMode.SKIP)
+@DisableCachingByDefault
+class CdsArchiveTask extends AppStartTask {
+
+  @Internal
+  File cdsArchiveFile
+
+  CdsArchiveTask() {
+    interactive = false
+    scanInterval = 0
+    daemonRunner = false
+  }
+
+  @Override
+  protected boolean getManagedClassReload(ServerConfig sconfig) {
+    // agent classes must not get into the archive
+    false
+  }
+
+  @TaskAction
+  @Override
+  void action() {
+    DefaultLauncher launcher = new DefaultLauncher(project, getLauncherConfig(), execOperations)
+    launcher.cdsArchiveDump = true
+    try {
+      launcher.beforeLaunch()
+      try {
+        Thread thread = launcher.launchThread()
+        serverStartInfo = launcher.getServerStartInfo()
+        launcher.sendTrainingRequests()
+        launcher.stopServer()
+        thread.join()
+      } finally {
+        launcher.afterLaunch()
+      }
+    } finally {
+      launcher.dispose()
+    }
+    cdsArchiveFile = launcher.getCdsArchiveFile()
+    if(cdsArchiveFile == null || !cdsArchiveFile.isFile())
+      throw new GradleException("Runner JVM did not write AppCDS archive ${cdsArchiveFile ?: ''}, it requires JDK 13 or newer")
+    logger.lifecycle 'AppCDS archive {} written ({} KB), server started {} ms after runner JVM launch without it',
+      cdsArchiveFile, cdsArchiveFile.length().intdiv(1024), serverStartInfo.runnerUptime
+  }
+}
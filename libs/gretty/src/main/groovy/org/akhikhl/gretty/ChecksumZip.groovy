@@ -0,0 +1,104 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeCheckingMode
+import org.apache.commons.compress.archivers.zip.UnixStat
+import org.apache.commons.compress.archivers.zip.Zip64Mode
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
+import org.gradle.api.internal.file.copy.CopyAction
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.WorkResults
+import org.gradle.api.tasks.bundling.Zip
+import org.gradle.api.tasks.bundling.ZipEntryCompression
+import org.gradle.work.DisableCachingByDefault
+
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+
+/**
+ * Zip task, which computes MD5 checksum of the archive while writing it, and saves it to ${archiveFile}.MD5,
+ * in the same format as ant checksum task does. Archives with stored (uncompressed) entries are written by Zip
+ * and checksummed afterwards.
+ */
+@CompileStatic(TypeCheckingMode.SKIP)
+@DisableCachingByDefault
+abstract class ChecksumZip extends Zip {
+
+  // the same as Zip uses, when file timestamps are not preserved
+  private static final long CONSTANT_TIME_FOR_ZIP_ENTRIES = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+
+  ChecksumZip() {
+    outputs.file({ getChecksumFile() })
+  }
+
+  @Internal
+  File getChecksumFile() {
+    new File(archiveFile.get().asFile.path + '.MD5')
+  }
+
+  @Override
+  protected CopyAction createCopyAction() {
+    if(entryCompression == ZipEntryCompression.STORED) {
+      CopyAction zipAction = super.createCopyAction()
+      return { stream ->
+        def result = zipAction.execute(stream)
+        writeChecksum(computeChecksum(archiveFile.get().asFile))
+        result
+      } as CopyAction
+    }
+    File archive = archiveFile.get().asFile
+    boolean preserveFileTimestamps = preserveFileTimestamps
+    String encoding = metadataCharset ?: 'UTF-8'
+    boolean zip64 = zip64
+    return { stream ->
+      MessageDigest digest = MessageDigest.getInstance('MD5')
+      ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(archive), digest), 65536))
+      try {
+        zip.encoding = encoding
+        zip.useZip64 = zip64 ? Zip64Mode.AsNeeded : Zip64Mode.Never
+        stream.process { details ->
+          String name = details.relativePath.pathString
+          ZipArchiveEntry entry = new ZipArchiveEntry(details.directory ? name + '/' : name)
+          entry.time = preserveFileTimestamps ? details.lastModified : CONSTANT_TIME_FOR_ZIP_ENTRIES
+          entry.unixMode = (details.directory ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG) | getUnixMode(details)
+          if(!details.directory)
+            entry.size = details.size // lets zip64 extensions be written only where needed
+          zip.putArchiveEntry(entry)
+          if(!details.directory)
+            details.copyTo(zip)
+          zip.closeArchiveEntry()
+        }
+      } finally {
+        zip.close()
+      }
+      writeChecksum(digest.digest())
+      WorkResults.didWork(true)
+    } as CopyAction
+  }
+
+  protected static int getUnixMode(details) {
+    // permissions replaced mode in newer gradle versions
+    details.metaClass.respondsTo(details, 'getPermissions') ? details.permissions.toUnixNumeric() : details.mode
+  }
+
+  protected static byte[] computeChecksum(File file) {
+    MessageDigest digest = MessageDigest.getInstance('MD5')
+    file.eachByte(65536) { byte[] buffer, int n ->
+      digest.update(buffer, 0, n)
+    }
+    digest.digest()
+  }
+
+  protected void writeChecksum(byte[] checksum) {
+    getChecksumFile().text = checksum.encodeHex().toString() + System.lineSeparator()
+  }
+}
@@ -13,8 +13,6 @@ import groovy.transform.CompileStatic
 import org.gradle.api.Project
 import org.gradle.process.ExecOperations
 import org.gradle.process.JavaExecSpec
-import org.gradle.tooling.GradleConnector
-import org.gradle.tooling.ProjectConnection
 
 import java.util.concurrent.Future
 
@@ -40,6 +38,8 @@ class DefaultLauncher extends LauncherBase {
 
   ScannerManager scannerManager
 
+  private final ProjectBuilds projectBuilds = new ProjectBuilds()
+
   DefaultLauncher(Project project, LauncherConfig config, ExecOperations execOperations) {
     super(config)
     this.project = project
@@ -63,10 +63,28 @@ class DefaultLauncher extends LauncherBase {
     project.file("${project.buildDir}/gretty_ports")
   }
 
+  @Override
+  void dispose() {
+    projectBuilds.close()
+    super.dispose()
+  }
+
+  @Override
+  Thread launchThread() {
+    Thread thread = super.launchThread()
+    scannerManager?.serviceChannel = channel
+    thread
+  }
+
   protected File getPortPropertiesFile() {
     getPortPropertiesFile(project, sconfig)
   }
 
+  @Override
+  protected List<File> getRunnerClasspathFiles() {
+    runnerClasspath.collect { URL url -> new File(url.toURI()) }
+  }
+
   @Override
   protected String getServletContainerId() {
     sconfig.servletContainer
@@ -130,6 +148,17 @@ class DefaultLauncher extends LauncherBase {
     }
   }
 
+  @Override
+  protected boolean isDaemonRunnerSupported() {
+    true
+  }
+
+  @Override
+  protected String getDaemonRunnerKey(JavaExecParams params) {
+    // new plugin version means new runner classes
+    (super.getDaemonRunnerKey(params) + runnerClasspath.join(File.pathSeparator)).sha256()
+  }
+
   @Override
   protected void prepareToRun(WebAppConfig wconfig) {
     ProjectUtils.prepareToRun(project, wconfig)
@@ -140,12 +169,7 @@ class DefaultLauncher extends LauncherBase {
     webAppConfigs.each { WebAppConfig wconfig ->
       if(wconfig.projectPath) {
         def proj = project.project(wconfig.projectPath)
-        ProjectConnection connection = GradleConnector.newConnector().useInstallation(proj.gradle.gradleHomeDir).forProjectDirectory(proj.projectDir).connect()
-        try {
-          connection.newBuild().forTasks(wconfig.inplace ? 'prepareInplaceWebApp' : 'prepareArchiveWebApp').run()
-        } finally {
-          connection.close()
-        }
+        projectBuilds.run(proj, wconfig.inplace ? 'prepareInplaceWebApp' : 'prepareArchiveWebApp')
       }
     }
   }
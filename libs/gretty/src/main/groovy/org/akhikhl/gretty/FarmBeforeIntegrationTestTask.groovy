@@ -133,10 +133,6 @@ class FarmBeforeIntegrationTestTask extends FarmStartTask {
 
   protected void passSystemPropertiesToIntegrationTestTask(Task integrationTestTask, JavaForkOptions javaForkOptions) {
 
-    def host = serverStartInfo.host
-
-    javaForkOptions.systemProperty 'gretty.host', host
-
     String contextPath
     if(integrationTestTask.ext.has('contextPath') && integrationTestTask.ext.contextPath != null) {
       contextPath = integrationTestTask.ext.contextPath
@@ -153,6 +149,13 @@ class FarmBeforeIntegrationTestTask extends FarmStartTask {
       }
     }
 
+    // in a farm split to shards, host and ports are those of the shard running the context
+    Map serverStartInfo = ShardedLauncher.findShardStartInfo(serverStartInfo, contextPath)
+
+    def host = serverStartInfo.host
+
+    javaForkOptions.systemProperty 'gretty.host', host
+
     javaForkOptions.systemProperty 'gretty.contextPath', contextPath
 
     String preferredProtocol
@@ -186,5 +189,7 @@ class FarmBeforeIntegrationTestTask extends FarmStartTask {
       javaForkOptions.systemProperty 'gretty.preferredBaseURI', preferredBaseURI
 
     javaForkOptions.systemProperty 'gretty.farm', (farmName ?: 'default')
+    if(this.serverStartInfo.shards)
+      javaForkOptions.systemProperty 'gretty.shards', this.serverStartInfo.shards.size()
   }
 }
@@ -40,7 +40,13 @@ class FarmConfigurer {
       mergeWebAppRefMaps(dstFarm.webAppRefs_, f.webAppRefs)
       dstFarm.integrationTestProjects_.addAll(f.integrationTestProjects)
       dstFarm.includes_.addAll(f.includes)
+      f.shardJvmArgs.each { shard, args ->
+        if(!dstFarm.shardJvmArgs_.containsKey(shard))
+          dstFarm.shardJvmArgs_[shard] = new ArrayList(args)
+      }
     }
+    if(dstFarm.shards == null)
+      dstFarm.shards = srcFarms.findResult { it.shards }
     if(!dstFarm.webAppRefs && !dstFarm.includes)
       dstFarm.webAppRefs = getDefaultWebAppRefMap()
     if(dstFarm.integrationTestTask == null)
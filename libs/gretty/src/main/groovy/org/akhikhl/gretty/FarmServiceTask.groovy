@@ -36,17 +36,25 @@ abstract class FarmServiceTask extends DefaultTask {
     FarmExtension farm = new FarmExtension(project)
     configurer.configureFarm(farm, configurer.getProjectFarm(farmName))
     //
-    File portPropertiesFile = DefaultLauncher.getPortPropertiesFile(project, farm.serverConfig)
-    if(!portPropertiesFile.exists())
+    // every shard of the farm gets the command
+    List<File> portPropertiesFiles = (0..<(farm.shards ?: 1)).collect { int shard ->
+      ShardedLauncher.getShardPortPropertiesFile(project, farm.serverConfig, shard)
+    }.findAll { it.exists() }
+    if(!portPropertiesFiles)
       throw new GradleException("Gretty seems to be not running, cannot send command '$command' to it.")
+    for(File portPropertiesFile in portPropertiesFiles)
+      sendCommand(portPropertiesFile, command)
+  }
+
+  private static void sendCommand(File portPropertiesFile, String command) {
     Properties portProps = new Properties()
     portPropertiesFile.withReader 'UTF-8', {
       portProps.load(it)
     }
-    int servicePort = portProps.servicePort as int
+    String serviceAddress = ServiceProtocol.loadAddress(portProps, 'service')
     //
-    log.debug 'Sending command {} to port {}', command, servicePort
-    ServiceProtocol.createWriter(servicePort).write(command)
+    log.debug 'Sending command {} to {}', command, serviceAddress
+    ServiceProtocol.createWriter(serviceAddress).write(command)
   }
 
   @Input @Optional
@@ -86,6 +86,28 @@ class FarmStartTask extends StartBaseTask implements TaskWithServerConfig {
     }
   }
 
+  /**
+   * Farm with more than one shard runs in several runner JVMs, see {@link FarmConfig#shards}.
+   */
+  @Override
+  protected Launcher createLauncher(LauncherConfig config) {
+    FarmConfigurer configurer = new FarmConfigurer(project)
+    FarmExtension farm = new FarmExtension(project)
+    configurer.configureFarm(farm, configurer.getProjectFarm(farmName))
+    List<WebAppConfig> wconfigs = config.getWebAppConfigs().toList()
+    int shards = Math.min(farm.shards ?: 1, wconfigs.size())
+    if(shards <= 1)
+      return super.createLauncher(config)
+    List<List<WebAppConfig>> shardWebApps = ShardedLauncher.assignShards(wconfigs, shards)
+    List<DefaultLauncher> launchers = []
+    for(int shard = 0; shard < shards; shard++)
+      if(shardWebApps[shard]) {
+        LauncherConfig shardConfig = ShardedLauncher.createShardConfig(config, shard, shardWebApps[shard], farm.shardJvmArgs[shard] ?: [])
+        launchers.add((DefaultLauncher) super.createLauncher(shardConfig))
+      }
+    new ShardedLauncher(config, launchers)
+  }
+
   @Override
   protected String getStopCommand() {
     "gradle farmStop${farmName}"
@@ -30,12 +30,21 @@ class GrettyExtension extends GrettyConfig {
 
   Closure webappCopy = {}
 
+  private final Closure defaultWebappCopy = webappCopy
+
   boolean autoConfigureRepositories = false
 
   void afterEvaluate(Closure closure) {
     afterEvaluate.add(closure)
   }
 
+  /**
+   * Returns true, if webappCopy was replaced by the build script, i.e. files might be filtered or renamed when copied.
+   */
+  boolean hasCustomWebappCopy() {
+    !webappCopy.is(defaultWebappCopy)
+  }
+
   void overlay(def newValue) {
     if(!(newValue instanceof String))
       throw new Exception("Overlay ${newValue?.toString()} should be a string")
@@ -416,6 +416,11 @@ class GrettyPlugin implements Plugin<Project> {
         description = 'Stops server after integration test.'
       }
 
+      project.tasks.register('grettyCdsArchive', CdsArchiveTask) {
+        group = 'gretty'
+        description = 'Does a training run of the server and dumps AppCDS archive of the runner JVM, used by next starts.'
+      }
+
       project.tasks.register('jettyRun', JettyStartTask) {
         group = 'gretty'
         description = 'Starts web-app inplace, in interactive mode.'
@@ -64,6 +64,7 @@ final class JettyScannerManager extends BaseScannerManager implements ScannerMan
     scanner = new Scanner()
     List<File> scanDirs = getEffectiveScanDirs()
     configureFastReload(scanDirs)
+    buildScanIndex()
     for(File f in scanDirs)
       log.info 'scanDir: {}', f
     log.info 'fastReloadMap={}', fastReloadMap
@@ -79,10 +80,7 @@ final class JettyScannerManager extends BaseScannerManager implements ScannerMan
       log.info 'Stopping scanner'
       scanner.stop()
       scanner = null
-      project = null
-      sconfig = null
-      webapps = null
-      fastReloadMap = null
     }
+    super.stopScanner()
   }
 }
@@ -12,7 +12,18 @@ import org.apache.commons.io.FileUtils
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
+
 /**
+ * Directory which content is synchronized with the added files.
+ * Added files are copied on cleanup, files which are already up-to-date are not copied again,
+ * files which were not added are deleted.
  *
  * @author akhikhl
  */
@@ -21,23 +32,46 @@ class ManagedDirectory {
   protected static final Logger log = LoggerFactory.getLogger(ManagedDirectory)
 
   final File baseDir
+  private final ExecutorService executor
   private final Set addedDirs = new HashSet()
   private final Set addedFiles = new HashSet()
+  // destination file -> source file, the last added source wins
+  private final Map<File, File> pendingCopies = new LinkedHashMap()
+
+  /**
+   * When true, destination file having the same size but different modification time
+   * is compared with the source by content, before it is overwritten.
+   */
+  boolean compareContent = false
+
+  private final AtomicLong copiedFiles = new AtomicLong()
+  private final AtomicLong copiedBytes = new AtomicLong()
+  private final AtomicLong skippedFiles = new AtomicLong()
+  private final AtomicLong skippedBytes = new AtomicLong()
+  private int deletedFiles
 
   ManagedDirectory(File baseDir) {
+    this(baseDir, null)
+  }
+
+  /**
+   * @param executor used for copying files in parallel, files are copied on the calling thread, when null
+   */
+  ManagedDirectory(File baseDir, ExecutorService executor) {
     this.baseDir = baseDir
+    this.executor = executor
     addedDirs.add(baseDir)
   }
-  
+
   void add(File srcFile) {
     add(srcFile, null)
   }
-  
+
   void add(File srcFile, String dstSubDir) {
     File dstFile = dstSubDir ? new File(new File(baseDir, dstSubDir), srcFile.name) : new File(baseDir, srcFile.name)
     add_(srcFile, dstFile)
   }
-  
+
   private void add_(File srcFile, File dstFile) {
     if(srcFile.isDirectory()) {
       dstFile.mkdirs()
@@ -46,15 +80,73 @@ class ManagedDirectory {
         add_(f, new File(dstFile, f.name))
     } else {
       dstFile.parentFile.mkdirs()
-      FileUtils.copyFile(srcFile, dstFile)
+      pendingCopies.put(dstFile, srcFile)
       registerAdded(dstFile)
     }
   }
-  
+
+  /**
+   * Copies the files added since the last call.
+   */
+  void sync() {
+    List<Map.Entry<File, File>> copies = new ArrayList<Map.Entry<File, File>>(pendingCopies.entrySet())
+    pendingCopies.clear()
+    if(executor == null || copies.size() < 2) {
+      for(Map.Entry<File, File> copy in copies)
+        copyIfChanged(copy.value, copy.key)
+      return
+    }
+    List<Future> futures = copies.collect { Map.Entry<File, File> copy ->
+      executor.submit({ copyIfChanged(copy.value, copy.key) } as Callable)
+    }
+    try {
+      for(Future future in futures)
+        future.get()
+    } catch(ExecutionException e) {
+      for(Future future in futures)
+        future.cancel(false)
+      throw e.cause
+    }
+  }
+
+  private void copyIfChanged(File srcFile, File dstFile) {
+    long size = srcFile.length()
+    if(dstFile.isFile() && dstFile.length() == size &&
+       (dstFile.lastModified() == srcFile.lastModified() ||
+        compareContent && FileUtils.contentEquals(srcFile, dstFile) && dstFile.setLastModified(srcFile.lastModified()))) {
+      skippedFiles.incrementAndGet()
+      skippedBytes.addAndGet(size)
+      return
+    }
+    Files.copy(srcFile.toPath(), dstFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES)
+    copiedFiles.incrementAndGet()
+    copiedBytes.addAndGet(size)
+  }
+
   void cleanup() {
+    long startTime = System.nanoTime()
+    sync()
     cleanupFiles(baseDir)
+    log.info '{}: copied {} files ({} bytes), skipped {} unchanged files ({} bytes), deleted {} in {} ms', baseDir.name,
+      copiedFiles.get(), copiedBytes.get(), skippedFiles.get(), skippedBytes.get(), deletedFiles, (System.nanoTime() - startTime).intdiv(1000000L)
+  }
+
+  long getCopiedFiles() {
+    copiedFiles.get()
+  }
+
+  long getCopiedBytes() {
+    copiedBytes.get()
   }
-  
+
+  long getSkippedFiles() {
+    skippedFiles.get()
+  }
+
+  long getSkippedBytes() {
+    skippedBytes.get()
+  }
+
   private void cleanupFiles(File dir) {
     if(addedDirs.contains(dir)) {
       for(File f in dir.listFiles()) {
@@ -62,6 +154,7 @@ class ManagedDirectory {
           if(!addedFiles.contains(f)) {
             log.debug 'deleting managed {}', f
             f.delete()
+            deletedFiles++
           }
         } else
           cleanupFiles(f)
@@ -69,9 +162,10 @@ class ManagedDirectory {
     } else {
       log.debug 'deleting managed {}', dir
       dir.deleteDir()
+      deletedFiles++
     }
   }
-  
+
   void registerAdded(File f) {
     if(f.isDirectory()) {
       while(f != baseDir) {
@@ -82,7 +176,7 @@ class ManagedDirectory {
     } else {
       registerAdded(f.parentFile)
       if(addedFiles.add(f))
-        log.debug 'added managed {}', f      
+        log.debug 'added managed {}', f
     }
   }
 }
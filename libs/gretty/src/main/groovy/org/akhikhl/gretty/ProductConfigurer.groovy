@@ -16,10 +16,16 @@ import groovy.transform.TypeCheckingMode
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
-
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+
+import org.gradle.api.GradleException
 import org.gradle.api.Project
 import org.gradle.api.file.FileCollection
-import org.gradle.api.tasks.bundling.Zip
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
@@ -45,6 +51,11 @@ class ProductConfigurer {
   protected jsonConfig
   protected Map launchScripts = [:]
 
+  // set while product is being built
+  private ExecutorService copyExecutor
+  private ExecutorService stageExecutor
+  private final List<Future> stages = []
+
   ProductConfigurer(Project project, File baseOutputDir, String productName, ProductExtension product) {
     this.project = project
     this.baseOutputDir = baseOutputDir
@@ -145,20 +156,13 @@ class ProductConfigurer {
 
       doLast {
         resolveConfig()
-        writeConfigFiles()
-        writeLaunchScripts()
-        writeTextFiles(createTextFiles(true))
-        copyWebappFiles()
-        copyAdditionalFiles()
-        copyStarter()
-        copyRunner()
-        copyServletContainer()
+        buildProduct()
       }
     }
 
     project.tasks.buildAllProducts.dependsOn buildProductTask
 
-    def archiveProductTask = project.task("archiveProduct${productName}", group: 'gretty', type: Zip) {
+    def archiveProductTask = project.task("archiveProduct${productName}", group: 'gretty', type: ChecksumZip) {
 
       description = "Archives gretty product${ productName ? ' ' + productName : '' }."
 
@@ -169,48 +173,102 @@ class ProductConfigurer {
       destinationDirectory = baseOutputDir
 
       from outputDir, { into outputDir.name }
-
-      doLast {
-        ant.checksum file: it.archiveFile.get().asFile
-      }
     }
 
     project.tasks.archiveAllProducts.dependsOn archiveProductTask
   }
 
+  /**
+   * Configurations are resolved on the task thread, in the order of the stages,
+   * while copying of the resolved files into the independent product directories runs concurrently.
+   */
+  protected void buildProduct() {
+    long startTime = System.nanoTime()
+    copyExecutor = Executors.newFixedThreadPool(Math.min(Runtime.runtime.availableProcessors(), 8), daemonThreadFactory('gretty-product-copy'))
+    stageExecutor = Executors.newCachedThreadPool(daemonThreadFactory('gretty-product-stage'))
+    try {
+      writeConfigFiles()
+      writeLaunchScripts()
+      writeTextFiles(createTextFiles(true))
+      copyWebappFiles()
+      copyStarter()
+      copyRunner()
+      copyServletContainer()
+      for(Future stage in stages)
+        stage.get()
+    } catch(ExecutionException e) {
+      throw e.cause
+    } finally {
+      stages.clear()
+      stageExecutor.shutdownNow()
+      copyExecutor.shutdownNow()
+      stageExecutor = null
+      copyExecutor = null
+    }
+    // additional files may go into managed directories, so they are copied after cleanup of these
+    copyAdditionalFiles()
+    if(product.cdsArchive)
+      createCdsArchive()
+    log.info 'Built product {} in {} ms', outputDir.name, (System.nanoTime() - startTime).intdiv(1000000L)
+  }
+
+  private static ThreadFactory daemonThreadFactory(String name) {
+    { Runnable r ->
+      Thread thread = new Thread(r, name)
+      thread.daemon = true
+      thread
+    } as ThreadFactory
+  }
+
+  protected ManagedDirectory createManagedDirectory(String name) {
+    ManagedDirectory dir = new ManagedDirectory(new File(outputDir, name), copyExecutor)
+    dir.compareContent = true
+    dir
+  }
+
+  /**
+   * Copies added files and deletes obsolete ones, on a separate thread when the product is being built.
+   */
+  protected void completeManagedDirectory(ManagedDirectory dir) {
+    if(stageExecutor == null)
+      dir.cleanup()
+    else
+      stages.add(stageExecutor.submit({ dir.cleanup() } as Callable))
+  }
+
   void copyRunner() {
 
-    ManagedDirectory dir = new ManagedDirectory(new File(outputDir, 'runner'))
+    ManagedDirectory dir = createManagedDirectory('runner')
 
     for(File file in getRunnerFileCollection().files)
       dir.add(file)
 
-    dir.cleanup()
+    completeManagedDirectory(dir)
   }
 
   void copyServletContainer() {
 
-    ManagedDirectory dir = new ManagedDirectory(new File(outputDir, 'servletContainer'))
+    ManagedDirectory dir = createManagedDirectory('servletContainer')
 
     for(File file in getServletContainerFileCollection().files)
       dir.add(file)
 
-    dir.cleanup()
+    completeManagedDirectory(dir)
   }
 
   void copyStarter() {
 
-    ManagedDirectory dir = new ManagedDirectory(new File(outputDir, 'starter'))
+    ManagedDirectory dir = createManagedDirectory('starter')
 
     for(File file in project.configurations.grettyStarter.files)
       dir.add(file)
 
-    dir.cleanup()
+    completeManagedDirectory(dir)
   }
 
   void copyWebappFiles() {
 
-    ManagedDirectory webappsDir = new ManagedDirectory(new File(outputDir, 'webapps'))
+    ManagedDirectory webappsDir = createManagedDirectory('webapps')
 
     for(WebAppConfig wconfig in wconfigs) {
       String appDir = ProjectUtils.getWebAppDestinationDirName(project, wconfig)
@@ -248,16 +306,16 @@ class ProductConfigurer {
       }
     }
 
-    webappsDir.cleanup()
+    completeManagedDirectory(webappsDir)
 
     if(wconfigs.find { it.extraResourceBases }) {
-      ManagedDirectory extraResourcesDir = new ManagedDirectory(new File(outputDir, 'extraResources'))
+      ManagedDirectory extraResourcesDir = createManagedDirectory('extraResources')
       for(WebAppConfig wconfig in wconfigs) {
         String appDir = ProjectUtils.getWebAppDestinationDirName(project, wconfig)
         for(def resBase in wconfig.extraResourceBases)
           extraResourcesDir.add(resBase, appDir)
       }
-      extraResourcesDir.cleanup()
+      completeManagedDirectory(extraResourcesDir)
     }
   }
 
@@ -272,12 +330,43 @@ class ProductConfigurer {
       'done\n' +
       'DIR="$( cd -P "$( dirname "$SOURCE" )" && pwd )"\n'
 
-    for(String cmd in ['run', 'start', 'stop', 'restart']) {
-      launchScripts[cmd + '.sh'] = shellResolveDir + 'java -Dfile.encoding=UTF8 -cp \"${DIR}/starter/*\" ' + mainClass + ' $@ ' + cmd
-      launchScripts[cmd + '.bat'] = '@java.exe -Dfile.encoding=UTF8 -cp \"%~dp0\\starter\\*;%~dp0\\starter\\logback-config\" ' + mainClass + ' %* ' + cmd
+    if(product.singleJvm && product.crac)
+      throw new GradleException("Product${ productName ? ' ' + productName : '' }: singleJvm and crac cannot be combined, CRaC checkpoints the runner JVM, which is not started in single JVM mode")
+
+    List<String> commands = ['run', 'start', 'stop', 'restart']
+    if(product.cdsArchive)
+      commands.add('cdsArchive')
+    if(product.crac)
+      commands.add('checkpoint')
+    for(String cmd in commands) {
+      // in single JVM mode the server runs in the starter JVM, so it gets the runner JVM arguments
+      List<String> jvmArgs = product.singleJvm && (cmd == 'run' || cmd == 'start') && sconfig.jvmArgs ? sconfig.jvmArgs.collect { it.toString() } : []
+      String shellJvmArgs = jvmArgs.collect { quoteShellArg(it) + ' ' }.join('')
+      String batchJvmArgs = jvmArgs.collect { quoteBatchArg(it) + ' ' }.join('')
+      launchScripts[cmd + '.sh'] = shellResolveDir + 'java ' + shellJvmArgs + '-Dfile.encoding=UTF8 -cp \"${DIR}/starter/*\" ' + mainClass + ' $@ ' + cmd
+      launchScripts[cmd + '.bat'] = '@java.exe ' + batchJvmArgs + '-Dfile.encoding=UTF8 -cp \"%~dp0\\starter\\*;%~dp0\\starter\\logback-config\" ' + mainClass + ' %* ' + cmd
     }
   }
 
+  /**
+   * Arguments with characters special to bash are single-quoted.
+   */
+  protected static String quoteShellArg(String arg) {
+    arg ==~ /[\w@%+=:,.\/-]+/ ? arg : "'" + arg.replace("'", "'\\''") + "'"
+  }
+
+  /**
+   * Arguments with characters special to cmd are double-quoted, escaped as java.exe parses them,
+   * percent signs are doubled in any case.
+   */
+  protected static String quoteBatchArg(String arg) {
+    String result = arg.replace('%', '%%')
+    if(result ==~ /[\w@%+=:,.\/\\-]+/)
+      return result
+    // backslashes are literal unless they precede a quote
+    '"' + result.replaceAll(/(\\*)"/, '$1$1\\\\"').replaceAll(/(\\+)$/, '$1$1') + '"'
+  }
+
   protected Map createTextFiles(boolean addTimeStamp) {
     String text = """Product: ${productName ?: project.name}
 Version: ${project.version}"""
@@ -340,7 +429,7 @@ Version: ${project.version}"""
       jsonConfig = writeConfigToJson()
     }
 
-    ManagedDirectory dir = new ManagedDirectory(new File(outputDir, 'conf'))
+    ManagedDirectory dir = createManagedDirectory('conf')
 
     File configFile = new File(dir.baseDir, 'server.json')
     configFile.parentFile.mkdirs()
@@ -367,7 +456,7 @@ Version: ${project.version}"""
         dir.add(wconfig.contextConfigFile, appDir)
     }
 
-    dir.cleanup()
+    completeManagedDirectory(dir)
   }
 
   protected writeConfigToJson() {
@@ -447,7 +536,27 @@ Version: ${project.version}"""
           enableNaming sconfig.enableNaming        
         if(sconfig.jvmArgs)
           jvmArgs sconfig.jvmArgs
+        if(sconfig.serviceProtocol)
+          serviceProtocol sconfig.serviceProtocol
+        if(sconfig.serviceTransport)
+          serviceTransport sconfig.serviceTransport
+        if(sconfig.restartMode)
+          restartMode sconfig.restartMode
+        if(sconfig.redeployMode == 'blueGreen') {
+          redeployMode sconfig.redeployMode
+          redeployDrainTimeout sconfig.redeployDrainTimeout
+        }
+        if(sconfig.contextStartupThreads != null && sconfig.contextStartupThreads > 1)
+          contextStartupThreads sconfig.contextStartupThreads
+        if(sconfig.learnJarSkipList)
+          learnJarSkipList true
+        if(sconfig.shareWebappLibs)
+          shareWebappLibs true
       }
+      if(self.product.crac)
+        crac true
+      if(self.product.singleJvm)
+        singleJvm true
       webApps wconfigs.collect { WebAppConfig wconfig ->
         { ->
           String webappDestName = ProjectUtils.getWebAppDestinationDirName(project, wconfig)
@@ -471,6 +580,10 @@ Version: ${project.version}"""
             springBoot true
           if(wconfig.springBootMainClass)
             springBootMainClass wconfig.springBootMainClass
+          if(wconfig.startupOrder != null)
+            startupOrder wconfig.startupOrder
+          if(wconfig.unsharedLibs)
+            unsharedLibs wconfig.unsharedLibs
         }
       }
     } // json
@@ -492,6 +605,25 @@ Version: ${project.version}"""
     }
   }
 
+  /**
+   * Training run of the built product with the same java as the launch scripts use,
+   * the archive is valid only at this location of the product and with this java.
+   */
+  protected void createCdsArchive() {
+    String classPath = new File(outputDir, 'starter').absolutePath + File.separator + '*' + File.pathSeparator + new File(outputDir, 'starter/logback-config').absolutePath
+    Process process = new ProcessBuilder('java', '-Dfile.encoding=UTF8', '-cp', classPath, mainClass, 'cdsArchive')
+      .directory(outputDir)
+      .redirectErrorStream(true)
+      .start()
+    process.outputStream.close()
+    process.inputStream.eachLine('UTF-8') { String line ->
+      log.info line
+    }
+    int exitCode = process.waitFor()
+    if(exitCode != 0)
+      throw new GradleException("Training run of product ${outputDir.name} failed with exit code ${exitCode}")
+  }
+
   protected void copyAdditionalFiles() {
     Path outputPath = outputDir.toPath()
     product.additionalFiles.each { source, target ->
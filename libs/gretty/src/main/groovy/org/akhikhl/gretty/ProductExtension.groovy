@@ -32,6 +32,26 @@ class ProductExtension {
    */
   Map additionalFiles = [:]
 
+  /**
+   * When true, buildProduct does a training run of the product, leaving AppCDS archive of the runner JVM
+   * in 'cds' directory, and adds cdsArchive script, recreating the archive after the product is moved or its JDK changes.
+   * Requires JDK 13 or newer.
+   */
+  boolean cdsArchive = false
+
+  /**
+   * When true, the product gets checkpoint script, saving CRaC checkpoint of the started runner JVM in 'crac' directory,
+   * and run/start restore the runner from the checkpoint, if there is one. Requires a JDK with CRaC support.
+   */
+  boolean crac = false
+
+  /**
+   * When true, run/start scripts run the server in the starter JVM instead of forking a runner JVM.
+   * JVM arguments of serverConfig are written into run/start scripts then, other runner JVM arguments,
+   * except system properties, are ignored. It cannot be combined with crac.
+   */
+  boolean singleJvm = false
+
   void webapp(Map options = [:], w) {
     if(w instanceof Project)
       w = w.path
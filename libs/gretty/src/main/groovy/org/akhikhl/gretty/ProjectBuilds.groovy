@@ -0,0 +1,98 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.gradle.api.Project
+import org.gradle.tooling.CancellationTokenSource
+import org.gradle.tooling.GradleConnector
+import org.gradle.tooling.ProjectConnection
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * Runs nested builds of webapp projects through tooling API.
+ * One connection per project directory is kept open between builds,
+ * so that every reload does not pay for connection setup.
+ * A build in progress can be cancelled when it is superseded by newer changes.
+ */
+@CompileStatic
+final class ProjectBuilds implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(ProjectBuilds)
+
+  private final Map<File, ProjectConnection> connections = new HashMap<>()
+  private CancellationTokenSource runningBuild
+  private String runningProjectPath
+
+  /**
+   * Throws org.gradle.tooling.BuildCancelledException when the build was cancelled.
+   */
+  void run(Project proj, String... tasks) {
+    ProjectConnection connection = getConnection(proj)
+    CancellationTokenSource tokenSource = GradleConnector.newCancellationTokenSource()
+    synchronized(this) {
+      runningBuild = tokenSource
+      runningProjectPath = proj.path
+    }
+    long startTime = System.nanoTime()
+    try {
+      connection.newBuild().forTasks(tasks).withCancellationToken(tokenSource.token()).run()
+      log.info 'Built {} in {} ms', tasks.join(' '), (System.nanoTime() - startTime).intdiv(1000000L)
+    } finally {
+      synchronized(this) {
+        if(runningBuild.is(tokenSource)) {
+          runningBuild = null
+          runningProjectPath = null
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns path of the project being built, null when no build is in progress.
+   */
+  synchronized String getRunningProjectPath() {
+    runningProjectPath
+  }
+
+  /**
+   * Cancels the build in progress, if it builds the given project. Returns true, if it was cancelled.
+   */
+  synchronized boolean cancelRunningBuild(String projectPath) {
+    if(runningBuild == null || runningProjectPath != projectPath)
+      return false
+    runningBuild.cancel()
+    true
+  }
+
+  private synchronized ProjectConnection getConnection(Project proj) {
+    ProjectConnection connection = connections.get(proj.projectDir)
+    if(connection == null) {
+      long startTime = System.nanoTime()
+      connection = GradleConnector.newConnector().useInstallation(proj.gradle.gradleHomeDir).forProjectDirectory(proj.projectDir).connect()
+      connections.put(proj.projectDir, connection)
+      log.debug 'Connected to {} in {} ms', proj.projectDir, (System.nanoTime() - startTime).intdiv(1000000L)
+    }
+    connection
+  }
+
+  @Override
+  synchronized void close() {
+    runningBuild?.cancel()
+    for(ProjectConnection connection in connections.values()) {
+      try {
+        connection.close()
+      } catch(Exception e) {
+        log.debug 'Error closing connection', e
+      }
+    }
+    connections.clear()
+  }
+}
@@ -18,6 +18,9 @@ import org.gradle.api.file.FileCollection
 import org.gradle.util.GradleVersion
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 /**
  *
  * @author akhikhl
@@ -337,6 +340,53 @@ final class ProjectUtils {
     }
   }
 
+  /**
+   * Applies only the given changed files (absolute paths of created, modified or deleted files)
+   * to ${buildDir}/inplaceWebapp of the project and of its overlays, with the same precedence as prepareInplaceWebAppFolder:
+   * files of the web-app override files of its overlays, later overlays override earlier ones.
+   * Returns false, when the change cannot be applied file by file (webappCopy is customized,
+   * a directory was changed or inplaceWebapp does not exist yet); full copy is needed then.
+   */
+  static boolean updateInplaceWebAppFolder(Project project, Collection<String> changedFiles) {
+    File targetDir = new File(project.buildDir, 'inplaceWebapp')
+    if(!targetDir.isDirectory() || project.gretty.hasCustomWebappCopy())
+      return false
+    // ATTENTION: overlay copy order is important!
+    List<File> sourceDirs = []
+    for(String overlay in project.gretty.overlays) {
+      Project overlayProject = project.project(overlay)
+      if(!updateInplaceWebAppFolder(overlayProject, changedFiles))
+        return false
+      sourceDirs.add(new File(overlayProject.buildDir, 'inplaceWebapp'))
+    }
+    sourceDirs.add(getWebAppDir(project))
+    sourceDirs = sourceDirs.reverse()
+    Set<String> relPaths = new LinkedHashSet()
+    for(File webAppDir in getWebAppDirs(project)) {
+      String prefix = webAppDir.absolutePath + File.separator
+      for(String f in changedFiles)
+        if(f.startsWith(prefix))
+          relPaths.add(f.substring(prefix.length()))
+    }
+    for(String relPath in relPaths) {
+      File source = sourceDirs.collect { new File(it, relPath) }.find { it.exists() }
+      if(source?.isDirectory())
+        return false
+      File target = new File(targetDir, relPath)
+      if(source == null) {
+        if(target.isFile()) {
+          log.debug 'deleting {}', target
+          target.delete()
+        }
+      } else if(!target.isFile() || target.length() != source.length() || target.lastModified() != source.lastModified()) {
+        log.debug 'copying {} to {}', source, target
+        target.parentFile.mkdirs()
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES)
+      }
+    }
+    true
+  }
+
   static void prepareToRun(Project project, WebAppConfig wconfig) {
     wconfig.prepareToRun()
     if(!wconfig.springBootMainClass && wconfig.projectPath && isSpringBootApp(project, wconfig))
@@ -22,5 +22,10 @@ interface ScannerManager {
   void registerRestartCallbacks(Closure before, Closure after)
   //
   void registerReloadCallbacks(Closure before, Closure after)
+
+  /**
+   * Persistent channel to the runner, null when running with the legacy service protocol.
+   */
+  void setServiceChannel(ServiceProtocol.Channel serviceChannel)
 }
 
@@ -0,0 +1,242 @@
+/*
+ * Gretty
+ *
+ * Copyright (C) 2013-2015 Andrey Hihlovskiy and contributors.
+ *
+ * See the file "LICENSE" for copying and usage permission.
+ * See the file "CONTRIBUTORS" for complete list of contributors.
+ */
+package org.akhikhl.gretty
+
+import groovy.transform.CompileStatic
+import org.gradle.api.Project
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * Runs webapps of a farm in several runner JVMs (shards), one launcher per shard.
+ * Shards are launched in parallel. Start info of the shards is aggregated: host and ports are those of the first shard,
+ * contexts and context start times are those of all shards, start info of every shard is in 'shards'.
+ */
+@CompileStatic
+class ShardedLauncher implements Launcher {
+
+  private static final Logger log = LoggerFactory.getLogger(ShardedLauncher)
+
+  private final LauncherConfig config
+  private final List<DefaultLauncher> launchers
+  private Map serverStartInfo
+
+  ShardedLauncher(LauncherConfig config, List<DefaultLauncher> launchers) {
+    this.config = config
+    this.launchers = launchers
+  }
+
+  /**
+   * Splits webapps to the given number of shards. Webapps with shard index go to that shard,
+   * others go to the shard with the least number of webapps.
+   */
+  static List<List<WebAppConfig>> assignShards(Iterable<WebAppConfig> webAppConfigs, int shards) {
+    List<List<WebAppConfig>> result = (0..<shards).collect { (List<WebAppConfig>) new ArrayList<WebAppConfig>() }
+    List<WebAppConfig> unassigned = []
+    for(WebAppConfig wconfig in webAppConfigs) {
+      if(wconfig.shard != null)
+        result[Math.floorMod(wconfig.shard, shards)].add(wconfig)
+      else
+        unassigned.add(wconfig)
+    }
+    for(WebAppConfig wconfig in unassigned)
+      result.min { List<WebAppConfig> shard -> shard.size() }.add(wconfig)
+    result
+  }
+
+  /**
+   * Creates config of the shard, which runs the given webapps. Shards after the first one
+   * get their own port properties file and base directory, http and https ports are shifted by the shard index.
+   */
+  static LauncherConfig createShardConfig(LauncherConfig config, int shard, List<WebAppConfig> webAppConfigs, List<String> jvmArgs) {
+    ServerConfig sconfig = new ServerConfig()
+    ConfigUtils.complementProperties(sconfig, config.serverConfig)
+    sconfig.jvmArgs = new ArrayList<String>(config.serverConfig.jvmArgs ?: []) + jvmArgs
+    if(shard > 0) {
+      // 8080 and 8443 are the runner defaults
+      sconfig.httpPort = shiftPort(sconfig.httpPort ?: 8080, shard)
+      sconfig.httpsPort = shiftPort(sconfig.httpsPort ?: 8443, shard)
+      sconfig.portPropertiesFileName = getShardPortPropertiesFileName(sconfig.portPropertiesFileName, shard)
+    }
+    // daemon runner files are per servlet container, shards would compete for them
+    sconfig.daemonRunner = false
+    new ShardConfig(config, shard, sconfig, webAppConfigs)
+  }
+
+  private static Integer shiftPort(int port, int shard) {
+    port == ServerConfig.RANDOM_FREE_PORT ? port : port + shard
+  }
+
+  static String getShardPortPropertiesFileName(String fileName, int shard) {
+    shard == 0 ? fileName : fileName.replaceFirst(/(\.properties)?$/, "_shard${shard}\$1")
+  }
+
+  static File getShardPortPropertiesFile(Project project, ServerConfig serverConfig, int shard) {
+    project.file("${project.buildDir}/${getShardPortPropertiesFileName(serverConfig.portPropertiesFileName, shard)}")
+  }
+
+  /**
+   * Returns start info of the shard running the given context, the given start info when it is not sharded.
+   */
+  static Map findShardStartInfo(Map serverStartInfo, String contextPath) {
+    List<Map> shards = (List<Map>) serverStartInfo.shards
+    shards?.find { Map shard -> ((List<Map>) shard.contexts)?.find { Map context -> context.contextPath == contextPath } } ?: serverStartInfo
+  }
+
+  private static class ShardConfig implements LauncherConfig {
+
+    private final LauncherConfig config
+    private final int shard
+    private final ServerConfig serverConfig
+    private final List<WebAppConfig> webAppConfigs
+
+    ShardConfig(LauncherConfig config, int shard, ServerConfig serverConfig, List<WebAppConfig> webAppConfigs) {
+      this.config = config
+      this.shard = shard
+      this.serverConfig = serverConfig
+      this.webAppConfigs = webAppConfigs
+    }
+
+    boolean getDebug() {
+      config.debug
+    }
+
+    int getDebugPort() {
+      config.debugPort + shard
+    }
+
+    boolean getDebugSuspend() {
+      config.debugSuspend
+    }
+
+    boolean getInteractive() {
+      config.interactive
+    }
+
+    boolean getManagedClassReload() {
+      config.managedClassReload
+    }
+
+    ServerConfig getServerConfig() {
+      serverConfig
+    }
+
+    String getStopCommand() {
+      config.stopCommand
+    }
+
+    File getBaseDir() {
+      shard == 0 ? config.baseDir : new File(config.baseDir.path + "_shard${shard}")
+    }
+
+    boolean getProductMode() {
+      config.productMode
+    }
+
+    WebAppClassPathResolver getWebAppClassPathResolver() {
+      config.webAppClassPathResolver
+    }
+
+    Iterable<WebAppConfig> getWebAppConfigs() {
+      webAppConfigs
+    }
+  }
+
+  @Override
+  void afterLaunch() {
+    for(DefaultLauncher launcher in launchers)
+      launcher.afterLaunch()
+  }
+
+  @Override
+  void beforeLaunch() {
+    for(DefaultLauncher launcher in launchers)
+      launcher.beforeLaunch()
+  }
+
+  @Override
+  void dispose() {
+    for(DefaultLauncher launcher in launchers)
+      launcher.dispose()
+  }
+
+  Map getServerStartInfo() {
+    serverStartInfo
+  }
+
+  @Override
+  void launch() {
+    beforeLaunch()
+    try {
+      Thread thread = launchThread()
+      if(config.getInteractive()) {
+        if(config.serverConfig.interactiveMode != 'stopOnKeyPress')
+          log.info 'interactiveMode {} is not supported by farm shards, any key stops the server', config.serverConfig.interactiveMode
+        System.out.println 'Press any key to stop the server.'
+        System.in.read()
+        stopServer()
+      } else
+        System.out.println "Run '${config.getStopCommand()}' to stop the server."
+      thread.join()
+    } finally {
+      afterLaunch()
+    }
+  }
+
+  @Override
+  Thread launchThread() {
+    int count = launchers.size()
+    Thread[] shardThreads = new Thread[count]
+    Throwable[] errors = new Throwable[count]
+    long startTime = System.nanoTime()
+    List<Thread> starters = (0..<count).collect { int i -> startShard(i, shardThreads, errors) }
+    for(Thread starter in starters)
+      starter.join()
+    Throwable error = errors.find { Throwable e -> e != null }
+    if(error != null) {
+      // farm does not run partially
+      for(int i = 0; i < count; i++)
+        if(shardThreads[i] != null) {
+          launchers[i].stopServer()
+          shardThreads[i].join()
+        }
+      throw error instanceof Exception ? (Exception) error : new RuntimeException(error)
+    }
+    List<Map> shardStartInfos = launchers.collect { DefaultLauncher launcher -> launcher.getServerStartInfo() }
+    serverStartInfo = new LinkedHashMap(shardStartInfos[0])
+    serverStartInfo.contexts = shardStartInfos.collectMany { Map info -> (List) info.contexts ?: [] }
+    Map contextStartTimes = [:]
+    for(Map info in shardStartInfos)
+      if(info.contextStartTimes)
+        contextStartTimes.putAll((Map) info.contextStartTimes)
+    serverStartInfo.contextStartTimes = contextStartTimes
+    serverStartInfo.shards = shardStartInfos
+    log.info '{} shards started in {} ms', count, (System.nanoTime() - startTime).intdiv(1000000L)
+    Thread.start('gretty-farm-shards') {
+      for(Thread thread in shardThreads)
+        thread.join()
+    }
+  }
+
+  private Thread startShard(int index, Thread[] shardThreads, Throwable[] errors) {
+    Thread.start("gretty-farm-shard-${index}".toString()) {
+      try {
+        shardThreads[index] = launchers[index].launchThread()
+      } catch(Throwable e) {
+        log.error 'Shard {} failed to start', index, e
+        errors[index] = e
+      }
+    }
+  }
+
+  void stopServer() {
+    for(DefaultLauncher launcher in launchers)
+      launcher.stopServer()
+  }
+}
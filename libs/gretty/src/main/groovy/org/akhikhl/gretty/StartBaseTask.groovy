@@ -11,6 +11,7 @@ package org.akhikhl.gretty
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
 import org.akhikhl.gretty.scanner.JDKScannerManager
+import org.akhikhl.gretty.scanner.WatchScannerManager
 import org.gradle.api.DefaultTask
 import org.gradle.api.Task
 import org.gradle.api.plugins.ExtensionAware
@@ -64,8 +65,7 @@ abstract class StartBaseTask extends DefaultTask {
   @TaskAction
   void action() {
     LauncherConfig config = getLauncherConfig()
-    Launcher launcher = new DefaultLauncher(project, config, execOperations)
-    launcher.scannerManager = createScannerManager(config)
+    Launcher launcher = createLauncher(config)
     if(getIntegrationTest()) {
       boolean result = false
       try {
@@ -97,6 +97,12 @@ abstract class StartBaseTask extends DefaultTask {
     serverStartInfo = launcher.getServerStartInfo()
   }
 
+  protected Launcher createLauncher(LauncherConfig config) {
+    DefaultLauncher launcher = new DefaultLauncher(project, config, execOperations)
+    launcher.scannerManager = createScannerManager(config)
+    launcher
+  }
+
   private ScannerManager createScannerManager(LauncherConfig config) {
     switch (config.serverConfig.scanner) {
       case 'jdk':
@@ -108,6 +114,8 @@ abstract class StartBaseTask extends DefaultTask {
         }
       case 'jetty':
         return new JettyScannerManager(project, config.serverConfig, config.webAppConfigs, config.managedClassReload)
+      case 'watch':
+        return new WatchScannerManager(project, config.serverConfig, config.webAppConfigs, config.managedClassReload)
       default:
         throw new IllegalArgumentException("Unknown scanner config: ${config.serverConfig.scanner}")
     }
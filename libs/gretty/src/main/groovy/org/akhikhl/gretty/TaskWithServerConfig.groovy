@@ -134,9 +134,36 @@ interface TaskWithServerConfig {
     @Optional @Input
     String getScanner()
 
+    @Optional @Input
+    Integer getScanDebounce()
+
+    @Optional @Input
+    Integer getScanMaxWatchedDirs()
+
     @Optional @Input
     String getPortPropertiesFileName()
 
+    @Optional @Input
+    String getServiceProtocol()
+
+    @Optional @Input
+    String getRestartMode()
+
+    @Optional @Input
+    Integer getContextStartupThreads()
+
+    @Optional @Input
+    String getServiceTransport()
+
+    @Optional @Input
+    Boolean getDaemonRunner()
+
+    @Optional @Input
+    Integer getDaemonRunnerIdleTimeout()
+
+    @Optional @Input
+    Boolean getLearnJarSkipList()
+
     @Internal
     int getRandomFreePort()
 }
@@ -98,4 +98,8 @@ interface TaskWithWebAppConfig {
     @Input
     @Optional
     String getSpringBootMainClass()
+
+    @Input
+    @Optional
+    Integer getStartupOrder()
 }
@@ -3,12 +3,15 @@ package org.akhikhl.gretty.scanner
 import org.akhikhl.gretty.*
 import org.gradle.api.GradleException
 import org.gradle.api.Project
-import org.gradle.tooling.GradleConnector
-import org.gradle.tooling.ProjectConnection
+import org.gradle.tooling.BuildCancelledException
+import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import groovy.transform.TypeCheckingMode
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 /**
  * @author timur.shakurov@dz.ru
  */
@@ -28,9 +31,29 @@ abstract class BaseScannerManager implements ScannerManager {
     protected List<WebAppConfig> webapps
     protected boolean managedClassReload
     private final Map<Project, Set<File>> projectScanDirs
+    // build directories of all projects, files written there during a reload build are its outputs
+    private final List<String> buildDirs
 
     protected Map fastReloadMap
 
+    protected ScanIndex scanIndex
+
+    protected ServiceProtocol.Channel serviceChannel
+
+    protected final ProjectBuilds projectBuilds = new ProjectBuilds()
+
+    // reloads run one at a time, changes arriving meanwhile are merged into the next one
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor({ Runnable r ->
+        Thread thread = new Thread(r, 'Gretty reload')
+        thread.daemon = true
+        thread
+    })
+    private final Map<String, Set<String>> pendingReloads = [:]
+    private final Set<WebAppConfig> pendingRestarts = new LinkedHashSet<>()
+    private final Set<String> pendingFastReloadFiles = new LinkedHashSet<>()
+    private long pendingSince
+    private boolean reloadScheduled
+
     protected Closure onBeforeFastReload
     protected Closure onFastReload
     //
@@ -58,6 +81,11 @@ abstract class BaseScannerManager implements ScannerManager {
         onReload = after
     }
 
+    @Override
+    void setServiceChannel(ServiceProtocol.Channel serviceChannel) {
+        this.serviceChannel = serviceChannel
+    }
+
     BaseScannerManager(Project project, ServerConfig sconfig, List<WebAppConfig> webapps, boolean managedClassReload) {
         this.project = project
         this.sconfig = sconfig
@@ -69,6 +97,7 @@ abstract class BaseScannerManager implements ScannerManager {
             collectScanDirs(scanDirs, webapp.scanDependencies, proj)
             [proj, scanDirs.findAll { it.exists() }]
         }
+        buildDirs = project.rootProject.allprojects.collect { it.buildDir.absolutePath + File.separator }
     }
 
     protected static void collectScanDirs(Collection<File> scanDirs, Boolean scanDependencies, Project proj) {
@@ -112,6 +141,33 @@ abstract class BaseScannerManager implements ScannerManager {
         }
     }
 
+    /**
+     * Snapshot of scan dirs, reload dirs and classpath artifacts of all webapps, used by scanFilesChanged.
+     * Called when scanner starts, after configureFastReload.
+     */
+    protected void buildScanIndex() {
+        long startTime = System.nanoTime()
+        ScanIndex index = new ScanIndex(webConfigFiles)
+        for(WebAppConfig webapp in webapps) {
+            if(!webapp.projectPath)
+                continue
+            def proj = project.project(webapp.projectPath)
+            for(File dir in getProjectScanDirs(webapp))
+                index.addDir(webapp, ScanIndex.SCAN_DIR, dir)
+            for(FileReloadSpec spec in fastReloadMap?.get(webapp.projectPath))
+                index.addFastReloadSpec(webapp, spec)
+            for(File dir in proj.sourceSets.main.allSource.srcDirs)
+                index.addDir(webapp, ScanIndex.SOURCE, dir)
+            for(File dir in proj.sourceSets.main.output.files)
+                index.addDir(webapp, ScanIndex.OUTPUT, dir)
+            index.addDir(webapp, ScanIndex.LIB, new File(ProjectUtils.getWebAppDir(proj), 'WEB-INF/lib'))
+            for(def artifact in proj.configurations.runtimeClasspath.resolvedConfiguration.resolvedArtifacts)
+                index.addArtifact(webapp, artifact.file)
+        }
+        scanIndex = index
+        log.debug 'scan index built in {} ms', (System.nanoTime() - startTime).intdiv(1000000L)
+    }
+
     protected List<File> getEffectiveScanDirs() {
         Set<File> scanDirs = new LinkedHashSet()
         for(WebAppConfig webapp in webapps) {
@@ -155,24 +211,31 @@ abstract class BaseScannerManager implements ScannerManager {
 
         Map<String, Set<String>> webAppProjectReloads = [:]
 
-        def reloadProject = { String projectPath, String reloadMode ->
+        // outputs of the reload build in progress do not call for another build
+        boolean building = projectBuilds.runningProjectPath != null
+        def reloadProject = { String changedFile, String projectPath, String reloadMode ->
+            if(reloadMode == 'compile' && building && buildDirs.any { changedFile.startsWith(it) }) {
+                log.debug 'file {} is output of the build in progress, {} is not recompiled', changedFile, projectPath
+                return
+            }
             if(webAppProjectReloads[projectPath] == null)
                 webAppProjectReloads[projectPath] = new HashSet<String>()
             webAppProjectReloads[projectPath] += reloadMode
         }
 
         Set<WebAppConfig> webAppConfigsToRestart = []
+        Set<String> fastReloadFiles = new LinkedHashSet<>()
+        if(scanIndex == null)
+            buildScanIndex()
+        long startTime = System.nanoTime()
         for(String f in changedFiles) {
             if(f.endsWith('.jar')) {
-                List<WebAppConfig> dependantWebAppProjects = webapps.findAll {
-                    it.projectPath && project.project(it.projectPath).configurations.runtimeClasspath.resolvedConfiguration.resolvedArtifacts.find {
-                        it.file.absolutePath == f }
-                }
+                List<WebAppConfig> dependantWebAppProjects = scanIndex.getDependantWebApps(f)
                 if(dependantWebAppProjects) {
                     for(WebAppConfig wconfig in dependantWebAppProjects) {
                         if(wconfig.recompileOnSourceChange) {
                             log.info 'changed file {} is dependency of {}, the latter will be recompiled', f, wconfig.projectPath
-                            reloadProject(wconfig.projectPath, 'compile')
+                            reloadProject(f, wconfig.projectPath, 'compile')
                             if(managedClassReload)
                                 webAppConfigsToRestart.add(wconfig)
                             // Otherwise there's no need to restart. When compilation finishes, scanner will wake up again and then restart.
@@ -181,22 +244,18 @@ abstract class BaseScannerManager implements ScannerManager {
                     continue
                 }
             }
-            webapps.findAll {
-                getProjectScanDirs(it).find {
-                    f.startsWith(it.absolutePath)
-                }
-            }.each { wconfig ->
+            scanIndex.classify(f).each { WebAppConfig wconfig, Integer category ->
                 log.info 'changed file {} affects project {}', f, wconfig.projectPath
-                def proj = project.project(wconfig.projectPath)
-                if(ProjectReloadUtils.satisfiesOneOfReloadSpecs(f, fastReloadMap[proj.path])) {
+                if(category == ScanIndex.FAST_RELOAD) {
                     log.info 'file {} is in fastReload directories', f
-                    reloadProject(wconfig.projectPath, 'fastReload')
-                } else if(proj.sourceSets.main.allSource.srcDirs.find { f.startsWith(it.absolutePath) }) {
+                    reloadProject(f, wconfig.projectPath, 'fastReload')
+                    fastReloadFiles.add(f)
+                } else if(category == ScanIndex.SOURCE) {
                     if(wconfig.recompileOnSourceChange) {
-                        reloadProject(wconfig.projectPath, 'compile')
+                        reloadProject(f, wconfig.projectPath, 'compile')
                         // restart is done when reacting to class change, not source change
                     }
-                } else if (proj.sourceSets.main.output.files.find { f.startsWith(it.absolutePath) }) {
+                } else if (category == ScanIndex.OUTPUT) {
                     if(wconfig.reloadOnClassChange) {
                         if(managedClassReload) {
                             if(wconfig.inplace)
@@ -210,44 +269,105 @@ abstract class BaseScannerManager implements ScannerManager {
                             webAppConfigsToRestart.add(wconfig)
                         }
                     }
-                } else if (isWebConfigFile(new File(f))) {
+                } else if (category == ScanIndex.CONFIG) {
                     if(wconfig.reloadOnConfigChange) {
                         log.info 'file {} is configuration file, servlet-container will be restarted', f
-                        reloadProject(wconfig.projectPath, 'compile')
+                        reloadProject(f, wconfig.projectPath, 'compile')
                         webAppConfigsToRestart.add(wconfig)
                     }
-                } else if(f.startsWith(new File(ProjectUtils.getWebAppDir(proj), 'WEB-INF/lib').absolutePath)) {
+                } else if(category == ScanIndex.LIB) {
                     if(wconfig.reloadOnLibChange) {
                         log.info 'file {} is in WEB-INF/lib, servlet-container will be restarted', f
-                        reloadProject(wconfig.projectPath, 'compile')
+                        reloadProject(f, wconfig.projectPath, 'compile')
                         webAppConfigsToRestart.add(wconfig)
                     }
                 } else {
                     log.info 'file {} is not in fastReload directories, switching to fullReload', f
-                    reloadProject(wconfig.projectPath, 'compile')
+                    reloadProject(f, wconfig.projectPath, 'compile')
                     webAppConfigsToRestart.add(wconfig)
                 }
             }
         }
+        log.debug 'classified {} changed files in {} ms', changedFiles.size(), (System.nanoTime() - startTime).intdiv(1000000L)
 
+        scheduleReload(webAppProjectReloads, webAppConfigsToRestart, fastReloadFiles, System.nanoTime())
+    }
+
+    /**
+     * Reload runs on its own thread. When it is still building a project and newer changes
+     * call for recompiling the same project, they cancel that build and are built together with the superseded ones.
+     */
+    protected synchronized void scheduleReload(Map<String, Set<String>> reloads, Set<WebAppConfig> restarts, Set<String> fastReloadFiles, long changeTime) {
+        if(!reloads && !restarts)
+            return
+        // no closure here: private fields are not visible to closures of subclass instances
+        for(Map.Entry<String, Set<String>> entry in reloads.entrySet()) {
+            Set<String> reloadModes = pendingReloads.get(entry.key)
+            if(reloadModes == null)
+                pendingReloads.put(entry.key, reloadModes = new HashSet<String>())
+            reloadModes.addAll(entry.value)
+        }
+        pendingRestarts.addAll(restarts)
+        pendingFastReloadFiles.addAll(fastReloadFiles)
+        if(pendingSince == 0 || changeTime < pendingSince)
+            pendingSince = changeTime
+        String buildingProject = projectBuilds.runningProjectPath
+        if(buildingProject != null && reloads[buildingProject]?.contains('compile') && projectBuilds.cancelRunningBuild(buildingProject))
+            log.info 'Cancelling build superseded by newer changes'
+        if(!reloadScheduled) {
+            reloadScheduled = true
+            reloadExecutor.execute { runReload() }
+        }
+    }
+
+    protected void runReload() {
+        Map<String, Set<String>> reloads
+        Set<WebAppConfig> restarts
+        Set<String> fastReloadFiles
+        long changeTime
+        synchronized(this) {
+            reloads = new LinkedHashMap<>(pendingReloads)
+            restarts = new LinkedHashSet<>(pendingRestarts)
+            fastReloadFiles = new LinkedHashSet<>(pendingFastReloadFiles)
+            changeTime = pendingSince
+            pendingReloads.clear()
+            pendingRestarts.clear()
+            pendingFastReloadFiles.clear()
+            pendingSince = 0
+            reloadScheduled = false
+        }
+        if(project == null)
+            return // scanner was stopped
+        try {
+            reload(reloads, restarts, fastReloadFiles, changeTime)
+        } catch(BuildCancelledException e) {
+            log.info 'Build was cancelled, rebuilding with newer changes'
+            scheduleReload(reloads, restarts, fastReloadFiles, changeTime)
+        } catch(Exception e) {
+            log.error 'Reload failed', e
+        }
+    }
+
+    /**
+     * @param fastReloadFiles changed files in fastReload directories, only these are copied on fast reload
+     */
+    protected void reload(Map<String, Set<String>> webAppProjectReloads, Set<WebAppConfig> webAppConfigsToRestart, Set<String> fastReloadFiles, long changeTime) {
         webAppProjectReloads.each { String projectPath, Set reloadModes ->
             Project proj = project.project(projectPath)
             if(reloadModes.contains('compile')) {
                 log.info 'Recompiling {}', (projectPath == ':' ? proj.name : projectPath)
                 WebAppConfig wconfig = webapps.find { it.projectPath == projectPath }
-                ProjectConnection connection = GradleConnector.newConnector().useInstallation(proj.gradle.gradleHomeDir).forProjectDirectory(proj.projectDir).connect()
-                try {
-                    connection.newBuild().forTasks(wconfig.inplace ? 'prepareInplaceWebApp' : 'prepareArchiveWebApp').run()
-                } finally {
-                    connection.close()
-                }
+                projectBuilds.run(proj, wconfig.inplace ? 'prepareInplaceWebApp' : 'prepareArchiveWebApp')
             } else if(reloadModes.contains('fastReload')) {
                 log.info 'Fast-reloading {}', (projectPath == ':' ? proj.name : projectPath)
                 onBeforeFastReload?.call()
                 WebAppConfig wconfig = webapps.find { it.projectPath == projectPath }
                 // TODO: maybe we should disable fastReload at all?
                 if(!(wconfig.inplace && wconfig.inplaceMode == 'hard')) {
-                    ProjectUtils.prepareInplaceWebAppFolder(proj)
+                    if(!ProjectUtils.updateInplaceWebAppFolder(proj, fastReloadFiles)) {
+                        log.info 'Changed files cannot be copied one by one, copying whole web-app folder of {}', (projectPath == ':' ? proj.name : projectPath)
+                        ProjectUtils.prepareInplaceWebAppFolder(proj)
+                    }
                 }
                 onFastReload?.call()
             }
@@ -261,27 +381,61 @@ abstract class BaseScannerManager implements ScannerManager {
             portPropertiesFile.withReader 'UTF-8', {
                 portProps.load(it)
             }
-            int servicePort = portProps.servicePort as int
+            String serviceAddress = ServiceProtocol.loadAddress(portProps, 'service')
             if(sconfig.redeployMode == 'restart') {
                 onBeforeRestart?.call()
-                ServiceProtocol.createWriter(servicePort).write('restartWithEvent')
+                sendServiceCommand(serviceAddress, 'restartWithEvent', changeTime)
                 onRestart?.call()
-            } else if(sconfig.redeployMode == 'redeploy') {
+            } else if(sconfig.redeployMode == 'redeploy' || sconfig.redeployMode == 'blueGreen') {
                 onBeforeReload?.call()
-                ServiceProtocol.createWriter(servicePort).write("redeploy ${webAppConfigsToRestart.collect {it.contextPath}.toSet().join(' ')}")
+                sendServiceCommand(serviceAddress, "redeploy ${webAppConfigsToRestart.collect {it.contextPath}.toSet().join(' ')}", changeTime)
                 onReload?.call()
             } else {
                 throw new IllegalStateException("Unknown redeployMode: ${sconfig.redeployMode}")
             }
+        } else if(webAppProjectReloads.values().find { it.contains('fastReload') })
+            log.info 'Fast reload took {} ms from change to serving', (System.nanoTime() - changeTime).intdiv(1000000L)
+    }
+
+    /**
+     * @param changeTime nanoTime of the earliest file change handled by this command, 0 if not known
+     */
+    protected void sendServiceCommand(String serviceAddress, String command, long changeTime = 0) {
+        ServiceProtocol.Channel channel = serviceChannel
+        if(channel != null && channel.address == serviceAddress) {
+            long startTime = System.nanoTime()
+            String commandName = command.split(' ')[0]
+            channel.request(command).whenComplete { String reply, Throwable error ->
+                if(error)
+                    log.warn 'Command {} failed: {}', commandName, error.toString()
+                else {
+                    log.info '{} round trip took {} ms (framed protocol)', commandName, (System.nanoTime() - startTime).intdiv(1000000L)
+                    if(reply?.startsWith('{')) {
+                        Map startInfo = (Map) new JsonSlurper().parseText(reply)
+                        if(startInfo.startDuration != null)
+                            log.info '{} took {} ms on the server', startInfo.startMode, startInfo.startDuration
+                    }
+                    if(changeTime)
+                        log.info 'Reload took {} ms from change to serving', (System.nanoTime() - changeTime).intdiv(1000000L)
+                }
+            }
+        } else {
+            ServiceProtocol.createWriter(serviceAddress).write(command)
+            if(changeTime)
+                log.info 'Reload took {} ms from change to sending {}', (System.nanoTime() - changeTime).intdiv(1000000L), command.split(' ')[0]
         }
     }
 
     @Override
     void stopScanner() {
+        reloadExecutor.shutdownNow()
+        projectBuilds.close()
         project = null
         sconfig = null
         webapps = null
         fastReloadMap = null
+        scanIndex = null
+        serviceChannel = null
     }
 }
 
@@ -3,22 +3,47 @@ package org.akhikhl.gretty.scanner
 import groovy.transform.CompileStatic
 import org.akhikhl.gretty.ServerConfig
 import org.akhikhl.gretty.WebAppConfig
+import org.eclipse.jetty.util.Scanner
+import org.eclipse.jetty.util.Scanner.BulkListener
 import org.gradle.api.Project
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
+ * Scanner based on JDK WatchService.
+ * <p>
+ * Directories are registered on the polling thread, in parallel, so that startup is not delayed.
+ * Scan dirs, which would exceed scanMaxWatchedDirs or the inotify limit, are polled with jetty scanner instead.
+ *
  * @author timur.shakurov@dz.ru
  */
 @CompileStatic
 final class JDKScannerManager extends BaseScannerManager {
     private static final Logger logger = LoggerFactory.getLogger(JDKScannerManager)
     private static final WatchEvent.Kind[] KINDS = [StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY]
+    // registration requests are batched by the watch service, several threads keep it busy
+    private static final int REGISTRATION_THREADS = 4
+    // file systems with coarse timestamps
+    private static final long MTIME_GRANULARITY = 2000
+
     private WatchService watcherService
     private Thread pollingThread
+    private Scanner fallbackScanner
+    private int watchLimit
+    private final AtomicInteger watchCount = new AtomicInteger()
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>()
+    private long lastBatchTime
+    // parents of single watched files (e.g. jars), which are not part of any watched tree
+    private final Set<Path> fileOnlyDirs = ConcurrentHashMap.newKeySet()
 
     Map<Path, Set<Path>> interestingFiles = [:]
 
@@ -39,66 +64,31 @@ final class JDKScannerManager extends BaseScannerManager {
     void startScanner() {
         List<File> scanDirs = getEffectiveScanDirs()
         configureFastReload(scanDirs)
+        buildScanIndex()
         for(File f in scanDirs) {
-            logger.info 'scanDir: {}'
+            logger.info 'scanDir: {}', f
         }
         configureScanner(scanDirs)
     }
 
     private void configureScanner(List<File> scanDirs) {
         watcherService = FileSystems.default.newWatchService()
+        watchLimit = getWatchLimit()
         //
-        List<File> dirs = []
+        List<Path> dirs = []
         scanDirs.each {
+            Path path = it.toPath().toAbsolutePath()
             if(it.isFile()) {
-                interestingFiles.get(it.parentFile.toPath(), [] as Set).add(it.toPath())
-            } else {
-                dirs.add(it)
-            }
-        }
-
-
-        dirs.each {
-            if(!it.exists()) {
-                return
+                interestingFiles.get(path.parent, [] as Set).add(path)
+            } else if(it.exists()) {
+                dirs.add(path)
             }
-            it.toPath().register(watcherService, KINDS)
-            it.eachDirRecurse {
-                it.toPath().register(watcherService, KINDS)
-            }
-        }
-        //
-        interestingFiles.keySet().each {
-            it.register(watcherService, KINDS)
         }
         //
         pollingThread = Thread.start {
             try {
-                watch: for (;;) {
-                    WatchKey key = watcherService.take()
-                    List<String> fileNames = []
-                    fileNames.addAll(getFileNames(key))
-
-                    if (!key.reset()) {
-                        scanFilesChanged(fileNames)
-                        logger.info "key is not valid anymore"
-                        break
-                    }
-                    // Waiting for next batch
-                    for(;;) {
-                        WatchKey key2 = watcherService.poll(100, TimeUnit.MILLISECONDS)
-                        if(!key2) {
-                            break
-                        }
-                        fileNames.addAll(getFileNames(key2))
-                        if(!key2.reset()) {
-                            scanFilesChanged(fileNames)
-                            logger.info 'key is not valid anymore'
-                            break watch
-                        }
-                    }
-                    scanFilesChanged(fileNames)
-                }
+                registerScanDirs(dirs)
+                watchLoop()
             } catch (InterruptedException ex) {
                 logger.info "Thread stopped"
                 Thread.currentThread().interrupt()
@@ -109,26 +99,246 @@ final class JDKScannerManager extends BaseScannerManager {
         pollingThread.name = 'Polling thread'
     }
 
+    private void registerScanDirs(List<Path> roots) {
+        long startTime = System.nanoTime()
+        lastBatchTime = System.currentTimeMillis()
+        Map<Path, List<Path>> trees = new LinkedHashMap<>()
+        List<File> polledRoots = []
+        int dirCount = interestingFiles.size()
+        for(Path root in roots) {
+            List<Path> tree = collectDirectories(root, watchLimit - dirCount)
+            if(tree == null) {
+                polledRoots.add(root.toFile())
+                continue
+            }
+            trees.put(root, tree)
+            dirCount += tree.size()
+        }
+        //
+        Set<Path> failedRoots = ConcurrentHashMap.newKeySet()
+        ExecutorService executor = Executors.newFixedThreadPool(REGISTRATION_THREADS)
+        try {
+            List<Callable<Object>> tasks = []
+            for(int t = 0; t < REGISTRATION_THREADS; t++) {
+                int offset = t
+                tasks.add({ ->
+                    int i = 0
+                    for(Map.Entry<Path, List<Path>> tree in trees.entrySet()) {
+                        for(Path dir in tree.value) {
+                            if(i++ % REGISTRATION_THREADS == offset && !failedRoots.contains(tree.key) && !register(dir))
+                                failedRoots.add(tree.key)
+                        }
+                    }
+                    null
+                } as Callable<Object>)
+            }
+            executor.invokeAll(tasks)
+        } finally {
+            executor.shutdown()
+        }
+        Set<Path> treeDirs = new HashSet<>()
+        for(List<Path> tree in trees.values())
+            treeDirs.addAll(tree)
+        for(Path dir in interestingFiles.keySet()) {
+            if(!treeDirs.contains(dir)) {
+                fileOnlyDirs.add(dir)
+                register(dir)
+            }
+        }
+        //
+        if(failedRoots) {
+            // most likely inotify limit was reached, watching these partially would miss changes
+            for(Map.Entry<WatchKey, Path> entry in new ArrayList<Map.Entry<WatchKey, Path>>(watchedDirs.entrySet())) {
+                if(failedRoots.find { Path root -> entry.value.startsWith(root) } && !fileOnlyDirs.contains(entry.value)) {
+                    entry.key.cancel()
+                    watchedDirs.remove(entry.key)
+                }
+            }
+            polledRoots.addAll(failedRoots.collect { it.toFile() })
+        }
+        watchCount.set(watchedDirs.size())
+        logger.info 'Watching {} directories, registered in {} ms', watchedDirs.size(), (System.nanoTime() - startTime).intdiv(1000000L)
+        if(polledRoots)
+            startFallbackScanner(polledRoots)
+    }
+
+    /**
+     * Returns directories of the tree, null when there are more than limit of them.
+     */
+    private static List<Path> collectDirectories(Path root, int limit) {
+        List<Path> dirs = []
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                dirs.add(dir)
+                dirs.size() > limit ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE
+            }
+
+            @Override
+            FileVisitResult visitFileFailed(Path file, IOException exc) {
+                FileVisitResult.CONTINUE
+            }
+        })
+        dirs.size() > limit ? null : dirs
+    }
+
+    private boolean register(Path dir) {
+        try {
+            watchedDirs.put(dir.register(watcherService, KINDS), dir)
+            return true
+        } catch (NoSuchFileException e) {
+            return true // deleted in the meantime
+        } catch (IOException e) {
+            logger.warn 'Cannot watch {}: {}', dir, e.toString()
+            return false
+        }
+    }
+
+    private int getWatchLimit() {
+        int limit = sconfig.scanMaxWatchedDirs ?: Integer.MAX_VALUE
+        // inotify watches are shared by all processes of the user, leave some for the others
+        File maxUserWatches = new File('/proc/sys/fs/inotify/max_user_watches')
+        if(maxUserWatches.canRead()) {
+            try {
+                limit = Math.min(limit, (maxUserWatches.text.trim() as int).intdiv(2).intValue())
+            } catch (Exception e) {
+                logger.debug 'Cannot read {}: {}', maxUserWatches, e.toString()
+            }
+        }
+        limit
+    }
+
+    private void startFallbackScanner(List<File> roots) {
+        int interval = sconfig.scanInterval ?: 1
+        for(File root in roots)
+            logger.warn 'scanDir {} has too many directories to watch, polling it every {} second(s)', root, interval
+        Scanner scanner = new Scanner()
+        scanner.reportExistingFilesOnStartup = false
+        scanner.scanInterval = interval
+        scanner.reportDirs = true
+        scanner.scanDepth = Scanner.MAX_SCAN_DEPTH
+        scanner.scanDirs = roots.collect { it.toPath() }
+        scanner.addListener(new BulkListener() {
+            @Override
+            void filesChanged(Set<String> filenames) {
+                scanFilesChanged(filenames)
+            }
+        })
+        scanner.start()
+        fallbackScanner = scanner
+    }
+
+    private void watchLoop() {
+        for (;;) {
+            WatchKey key = watcherService.take()
+            Set<String> fileNames = new LinkedHashSet<>()
+            long batchTime = System.currentTimeMillis()
+            fileNames.addAll(getFileNames(key))
+            // Waiting for next batch
+            for(;;) {
+                WatchKey key2 = watcherService.poll(100, TimeUnit.MILLISECONDS)
+                if(!key2) {
+                    break
+                }
+                fileNames.addAll(getFileNames(key2))
+            }
+            lastBatchTime = batchTime
+            if(fileNames)
+                scanFilesChanged(fileNames)
+        }
+    }
+
     private List<String> getFileNames(WatchKey key) {
-        Path path = key.watchable() as Path
+        Path dir = watchedDirs.get(key)
         List<WatchEvent<?>> events = key.pollEvents()
-        return events.collect {
-            def kind = it.kind()
-            if (kind == StandardWatchEventKinds.OVERFLOW) {
-                return null
-            }
-            Path filename = (Path) it.context()
-            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                if (filename.toFile().isDirectory()) {
-                    filename.register(watcherService, KINDS)
+        if(!key.reset()) {
+            // directory was deleted, its parent reports that
+            watchedDirs.remove(key)
+            watchCount.decrementAndGet()
+        }
+        if(dir == null)
+            return []
+        Set<String> result = new LinkedHashSet<>()
+        if(fileOnlyDirs.contains(dir)) {
+            Set<Path> files = interestingFiles.get(dir)
+            for(WatchEvent<?> event in events) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    result.addAll(files.collect { it.toString() })
+                    continue
                 }
+                Path path = dir.resolve((Path) event.context())
+                // We wanted to watch file events, not directory
+                if (files.contains(path))
+                    result.add(path.toString())
             }
-            // We wanted to watch file events, not directory
-            if (interestingFiles.containsKey(filename.parent) && !interestingFiles.get(filename.parent).contains(filename)) {
-                return null
+            return result as List
+        }
+        for(WatchEvent<?> event in events) {
+            def kind = event.kind()
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                rescan(dir, result)
+                continue
+            }
+            Path path = dir.resolve((Path) event.context())
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                registerNewTree(path, result)
+                continue
             }
-            return filename
-        }.findAll { it != null }.unique().collect { path.resolve(it).toAbsolutePath().toString() }
+            result.add(path.toString())
+        }
+        return result as List
+    }
+
+    /**
+     * New directory may already contain files and subdirectories, created before it was registered.
+     */
+    private void registerNewTree(Path root, Set<String> fileNames) {
+        walkTree(root, fileNames, 0)
+    }
+
+    /**
+     * Events were lost: registers directories, which appeared in the meantime,
+     * and reports files modified since the previous batch.
+     * Deleted files cannot be detected, the directory itself is reported then.
+     */
+    private void rescan(Path root, Set<String> fileNames) {
+        logger.info 'Events were lost in {}, rescanning it', root
+        int found = fileNames.size()
+        walkTree(root, fileNames, lastBatchTime - MTIME_GRANULARITY)
+        if(fileNames.size() == found)
+            fileNames.add(root.toString())
+    }
+
+    private void walkTree(Path root, Set<String> fileNames, long modifiedSince) {
+        Set<Path> watched = new HashSet<>(watchedDirs.values())
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if(!watched.contains(dir)) {
+                        if(watchCount.get() >= watchLimit)
+                            logger.warn 'Not watching {}, scanMaxWatchedDirs reached', dir
+                        else if(register(dir))
+                            watchCount.incrementAndGet()
+                    }
+                    FileVisitResult.CONTINUE
+                }
+
+                @Override
+                FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.lastModifiedTime().toMillis() >= modifiedSince)
+                        fileNames.add(file.toString())
+                    FileVisitResult.CONTINUE
+                }
+
+                @Override
+                FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    FileVisitResult.CONTINUE
+                }
+            })
+        } catch (IOException e) {
+            logger.warn 'Cannot scan {}: {}', root, e.toString()
+        }
     }
 
     @Override
@@ -136,6 +346,10 @@ final class JDKScannerManager extends BaseScannerManager {
         // No need to interrupt thread as it will exit
         watcherService?.close()
         pollingThread = null
+        if(fallbackScanner != null) {
+            fallbackScanner.stop()
+            fallbackScanner = null
+        }
         super.stopScanner()
     }
 }
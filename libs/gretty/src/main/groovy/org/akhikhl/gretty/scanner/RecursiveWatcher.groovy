@@ -0,0 +1,337 @@
+package org.akhikhl.gretty.scanner
+
+import groovy.transform.CompileStatic
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.TimeUnit
+
+/**
+ * Watches directory trees with native file system events and reports changed files in batches.
+ * <p>
+ * Keeps an in-memory index of size and modification time of every watched file.
+ * Events arriving within the debounce window are coalesced into one batch,
+ * then only the directories which reported events are listed again and compared with the index,
+ * so nothing is walked while the file system is idle.
+ * Single files (e.g. jars of the runtime classpath) are watched through their parent directory.
+ * Roots which do not exist, e.g. build/classes before compilation or after clean, are watched through
+ * their nearest existing ancestor and registered as soon as they appear.
+ */
+@CompileStatic
+final class RecursiveWatcher {
+    private static final Logger log = LoggerFactory.getLogger(RecursiveWatcher)
+    private static final WatchEvent.Kind[] KINDS = [StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY]
+
+    private final List<Path> roots
+    private final long debounceMillis
+    private final Closure onFilesChanged
+
+    private WatchService watchService
+    private Thread watchThread
+    private volatile boolean stopped
+
+    // all fields below are owned by the watch thread once it is started
+    private final Map<WatchKey, Path> keyDirs = new HashMap<>()
+    private final Map<Path, WatchKey> dirKeys = new HashMap<>()
+    // directories whose whole subtree is watched, as opposed to parents of single watched files
+    private final Set<Path> treeDirs = new HashSet<>()
+    private final Map<Path, Set<Path>> watchedFiles = new HashMap<>()
+    // directory -> (file -> stamp)
+    private final Map<Path, Map<Path, Stamp>> index = new HashMap<>()
+
+    /**
+     * @param onFilesChanged called on the watch thread with collection of absolute paths of changed, added and deleted files
+     */
+    RecursiveWatcher(Collection<File> roots, long debounceMillis, Closure onFilesChanged) {
+        this.roots = roots.collect { it.toPath().toAbsolutePath().normalize() }
+        this.debounceMillis = debounceMillis
+        this.onFilesChanged = onFilesChanged
+    }
+
+    void start() {
+        watchService = FileSystems.default.newWatchService()
+        long startTime = System.nanoTime()
+        for(Path root in roots) {
+            if(Files.isDirectory(root))
+                registerTree(root, null)
+            else if(Files.isRegularFile(root))
+                addWatchedFile(root)
+        }
+        for(Path dir in watchedFiles.keySet()) {
+            if(!treeDirs.contains(dir)) {
+                register(dir)
+                indexDirectory(dir)
+            }
+        }
+        watchMissingRoots(null)
+        int fileCount = 0
+        for(Map<Path, Stamp> files in index.values())
+            fileCount += files.size()
+        log.info 'Watching {} directories, {} files indexed in {} ms', dirKeys.size(), fileCount, (System.nanoTime() - startTime).intdiv(1000000L)
+        watchThread = new Thread({ watchLoop() } as Runnable, 'Gretty watch scanner')
+        watchThread.daemon = true
+        watchThread.start()
+    }
+
+    void stop() {
+        stopped = true
+        watchService?.close()
+        watchThread = null
+    }
+
+    private void watchLoop() {
+        try {
+            while(!stopped) {
+                Set<Path> dirtyDirs = new LinkedHashSet<>()
+                Set<Path> overflowDirs = new LinkedHashSet<>()
+                collectEvents(watchService.take(), dirtyDirs, overflowDirs)
+                // coalescing burst of events, e.g. compiler writing many class files
+                WatchKey key
+                while((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+                    collectEvents(key, dirtyDirs, overflowDirs)
+                long startTime = System.nanoTime()
+                Set<String> changedFiles = new LinkedHashSet<>()
+                for(Path dir in overflowDirs)
+                    rescanDirectory(dir, true, changedFiles)
+                for(Path dir in dirtyDirs)
+                    if(!overflowDirs.contains(dir))
+                        rescanDirectory(dir, false, changedFiles)
+                watchMissingRoots(changedFiles)
+                log.debug 'rescanned {} directories in {} ms, {} files changed', dirtyDirs.size() + overflowDirs.size(), (System.nanoTime() - startTime).intdiv(1000000L), changedFiles.size()
+                if(changedFiles && !stopped) {
+                    try {
+                        onFilesChanged.call(changedFiles)
+                    } catch(Exception e) {
+                        log.error 'Error handling changed files', e
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt()
+        } catch(ClosedWatchServiceException e) {
+            log.debug 'Watch service was closed'
+        }
+    }
+
+    private void collectEvents(WatchKey key, Set<Path> dirtyDirs, Set<Path> overflowDirs) {
+        Path dir = keyDirs.get(key)
+        List<WatchEvent<?>> events = key.pollEvents()
+        if(dir == null)
+            return
+        for(WatchEvent<?> event in events) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+                overflowDirs.add(dir)
+            else
+                dirtyDirs.add(dir)
+        }
+        if(!key.reset()) {
+            // directory itself was deleted, its parent reports it as well
+            keyDirs.remove(key)
+            dirKeys.remove(dir)
+            dirtyDirs.add(dir)
+        }
+    }
+
+    /**
+     * Registers roots, which appeared, reporting their files as changed.
+     * Roots still missing, also those deleted since, are watched through their nearest existing ancestor.
+     */
+    private void watchMissingRoots(Set<String> changedFiles) {
+        for(Path root in roots) {
+            if(isWatched(root))
+                continue
+            if(Files.isDirectory(root)) {
+                log.debug 'scan root {} appeared', root
+                registerTree(root, changedFiles)
+            } else if(Files.isRegularFile(root) || (watchedFiles.get(root.parent)?.contains(root) && Files.isDirectory(root.parent))) {
+                addWatchedFile(root)
+                Path dir = root.parent
+                register(dir)
+                Map<Path, Stamp> files = index.get(dir)
+                if(files == null)
+                    index.put(dir, files = new HashMap<Path, Stamp>())
+                BasicFileAttributes attrs = readAttributes(root)
+                if(attrs != null) {
+                    files.put(root, new Stamp(attrs))
+                    changedFiles?.add(root.toString())
+                }
+            } else {
+                Path ancestor = root.parent
+                while(ancestor != null && !Files.isDirectory(ancestor))
+                    ancestor = ancestor.parent
+                if(ancestor != null && !dirKeys.containsKey(ancestor)) {
+                    log.debug 'scan root {} does not exist, watching {} until it appears', root, ancestor
+                    register(ancestor)
+                }
+            }
+        }
+    }
+
+    private boolean isWatched(Path root) {
+        if(treeDirs.contains(root))
+            return dirKeys.containsKey(root)
+        watchedFiles.get(root.parent)?.contains(root) && dirKeys.containsKey(root.parent)
+    }
+
+    private void addWatchedFile(Path file) {
+        Path dir = file.parent
+        Set<Path> files = watchedFiles.get(dir)
+        if(files == null)
+            watchedFiles.put(dir, files = new HashSet<Path>())
+        files.add(file)
+    }
+
+    private void rescanDirectory(Path dir, boolean recursive, Set<String> changedFiles) {
+        if(!Files.isDirectory(dir)) {
+            forgetTree(dir, changedFiles)
+            return
+        }
+        boolean tree = treeDirs.contains(dir)
+        Set<Path> interesting = watchedFiles.get(dir)
+        Map<Path, Stamp> oldFiles = index.get(dir) ?: Collections.<Path, Stamp>emptyMap()
+        Map<Path, Stamp> newFiles = new HashMap<>()
+        List<Path> subDirs = []
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir)
+            try {
+                for(Path child in stream) {
+                    BasicFileAttributes attrs = readAttributes(child)
+                    if(attrs == null)
+                        continue
+                    if(attrs.isDirectory()) {
+                        if(tree)
+                            subDirs.add(child)
+                    } else if(tree || interesting?.contains(child)) {
+                        Stamp stamp = new Stamp(attrs)
+                        newFiles.put(child, stamp)
+                        if(stamp != oldFiles.get(child))
+                            changedFiles.add(child.toString())
+                    }
+                }
+            } finally {
+                stream.close()
+            }
+        } catch(IOException e) {
+            log.debug 'Cannot list {}: {}', dir, e.toString()
+            return
+        }
+        for(Path file in oldFiles.keySet())
+            if(!newFiles.containsKey(file))
+                changedFiles.add(file.toString())
+        index.put(dir, newFiles)
+        if(!tree)
+            return
+        for(Path subDir in subDirs) {
+            if(!dirKeys.containsKey(subDir))
+                registerTree(subDir, changedFiles) // new directory, everything in it is new
+            else if(recursive)
+                rescanDirectory(subDir, true, changedFiles)
+        }
+        // subdirectories deleted together with their contents
+        for(Path watchedDir in new ArrayList<Path>(treeDirs))
+            if(watchedDir.parent == dir && !subDirs.contains(watchedDir))
+                forgetTree(watchedDir, changedFiles)
+    }
+
+    private void registerTree(Path root, Set<String> changedFiles) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    register(dir)
+                    treeDirs.add(dir)
+                    index.put(dir, new HashMap<Path, Stamp>())
+                    FileVisitResult.CONTINUE
+                }
+
+                @Override
+                FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(!attrs.isDirectory()) {
+                        Map<Path, Stamp> files = index.get(file.parent)
+                        if(files != null)
+                            files.put(file, new Stamp(attrs))
+                        changedFiles?.add(file.toString())
+                    }
+                    FileVisitResult.CONTINUE
+                }
+
+                @Override
+                FileVisitResult visitFileFailed(Path file, IOException e) {
+                    FileVisitResult.CONTINUE
+                }
+            })
+        } catch(IOException e) {
+            log.warn 'Cannot watch {}: {}', root, e.toString()
+        }
+    }
+
+    private void indexDirectory(Path dir) {
+        Map<Path, Stamp> files = new HashMap<>()
+        for(Path file in watchedFiles.get(dir)) {
+            BasicFileAttributes attrs = readAttributes(file)
+            if(attrs != null)
+                files.put(file, new Stamp(attrs))
+        }
+        index.put(dir, files)
+    }
+
+    private void register(Path dir) {
+        if(dirKeys.containsKey(dir))
+            return
+        try {
+            WatchKey key = dir.register(watchService, KINDS)
+            keyDirs.put(key, dir)
+            dirKeys.put(dir, key)
+        } catch(IOException e) {
+            log.warn 'Cannot watch {}: {}', dir, e.toString()
+        }
+    }
+
+    /**
+     * Drops deleted directory and its subdirectories, reporting files they contained.
+     */
+    private void forgetTree(Path root, Set<String> changedFiles) {
+        for(Path dir in new ArrayList<Path>(index.keySet())) {
+            if(!dir.startsWith(root))
+                continue
+            for(Path file in index.remove(dir).keySet())
+                changedFiles.add(file.toString())
+            treeDirs.remove(dir)
+            WatchKey key = dirKeys.remove(dir)
+            if(key != null) {
+                keyDirs.remove(key)
+                key.cancel()
+            }
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            Files.readAttributes(path, BasicFileAttributes, LinkOption.NOFOLLOW_LINKS)
+        } catch(IOException e) {
+            null // deleted in the meantime
+        }
+    }
+
+    private static final class Stamp {
+        final long size
+        final long lastModified
+
+        Stamp(BasicFileAttributes attrs) {
+            size = attrs.size()
+            lastModified = attrs.lastModifiedTime().toMillis()
+        }
+
+        @Override
+        boolean equals(Object o) {
+            o instanceof Stamp && ((Stamp) o).size == size && ((Stamp) o).lastModified == lastModified
+        }
+
+        @Override
+        int hashCode() {
+            31 * Long.hashCode(size) + Long.hashCode(lastModified)
+        }
+    }
+}
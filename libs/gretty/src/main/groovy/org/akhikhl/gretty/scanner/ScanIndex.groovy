@@ -0,0 +1,163 @@
+package org.akhikhl.gretty.scanner
+
+import groovy.transform.CompileStatic
+import org.akhikhl.gretty.FileReloadSpec
+import org.akhikhl.gretty.WebAppConfig
+
+import java.util.regex.Pattern
+
+/**
+ * Classifies changed files by webapp and reload category.
+ * <p>
+ * Scan dirs, fastReload dirs, source dirs, output dirs and WEB-INF/lib dirs of all webapps
+ * are kept in a trie of path segments, so that classification of a file is one walk over its path,
+ * without access to gradle model. Built once when scanner starts.
+ */
+@CompileStatic
+final class ScanIndex {
+
+    // categories, in the order of precedence
+    static final int FAST_RELOAD = 0
+    static final int SOURCE = 1
+    static final int OUTPUT = 2
+    static final int CONFIG = 3
+    static final int LIB = 4
+    static final int OTHER = 5
+
+    static final int SCAN_DIR = 6
+
+    private static final char SEPARATOR = File.separatorChar
+
+    private final List<WebAppConfig> webapps = []
+    private final Map<WebAppConfig, Integer> webappIndexes = new HashMap<>()
+    private final Node root = new Node()
+    private final Map<String, List<WebAppConfig>> artifactWebApps = new HashMap<>()
+    private final Set<String> webConfigFiles
+
+    ScanIndex(Collection<String> webConfigFiles) {
+        this.webConfigFiles = new HashSet<>(webConfigFiles)
+    }
+
+    void addDir(WebAppConfig webapp, int kind, File dir) {
+        addEntry(dir, new Entry(indexOf(webapp), kind, dir.absolutePath.length(), null, null))
+    }
+
+    void addFastReloadSpec(WebAppConfig webapp, FileReloadSpec spec) {
+        addEntry(spec.baseDir, new Entry(indexOf(webapp), FAST_RELOAD, spec.baseDir.absolutePath.length(), compile(spec.pattern), compile(spec.excludesPattern)))
+    }
+
+    void addArtifact(WebAppConfig webapp, File artifact) {
+        List<WebAppConfig> list = artifactWebApps.get(artifact.absolutePath)
+        if(list == null)
+            artifactWebApps.put(artifact.absolutePath, list = new ArrayList<WebAppConfig>(1))
+        if(!list.contains(webapp))
+            list.add(webapp)
+    }
+
+    /**
+     * Returns webapps having the given file among resolved runtime classpath artifacts.
+     */
+    List<WebAppConfig> getDependantWebApps(String filePath) {
+        artifactWebApps.get(filePath) ?: Collections.<WebAppConfig>emptyList()
+    }
+
+    /**
+     * Returns category of the file for every affected webapp (webapp, which has scan dir containing the file),
+     * in the order webapps were added.
+     */
+    Map<WebAppConfig, Integer> classify(String filePath) {
+        int n = webapps.size()
+        boolean[] affected = new boolean[n]
+        int[] best = new int[n]
+        Arrays.fill(best, OTHER)
+        Node node = root
+        int start = 0
+        while(node != null) {
+            for(Entry entry in node.entries) {
+                if(entry.kind == SCAN_DIR)
+                    affected[entry.webapp] = true
+                else if(entry.kind < best[entry.webapp] && (entry.kind != FAST_RELOAD || entry.matches(filePath)))
+                    best[entry.webapp] = entry.kind
+            }
+            if(start > filePath.length())
+                break
+            int end = filePath.indexOf((int) SEPARATOR, start)
+            if(end < 0)
+                end = filePath.length()
+            node = node.children.get(filePath.substring(start, end))
+            start = end + 1
+        }
+        Map<WebAppConfig, Integer> result = new LinkedHashMap<>()
+        for(int i = 0; i < n; i++) {
+            if(!affected[i])
+                continue
+            int category = best[i]
+            if(category > OUTPUT && isWebConfigFile(filePath))
+                category = CONFIG
+            result.put(webapps.get(i), category)
+        }
+        result
+    }
+
+    private boolean isWebConfigFile(String filePath) {
+        webConfigFiles.contains(filePath.substring(filePath.lastIndexOf((int) SEPARATOR) + 1))
+    }
+
+    private int indexOf(WebAppConfig webapp) {
+        Integer index = webappIndexes.get(webapp)
+        if(index == null) {
+            index = webapps.size()
+            webapps.add(webapp)
+            webappIndexes.put(webapp, index)
+        }
+        index
+    }
+
+    private void addEntry(File dir, Entry entry) {
+        Node node = root
+        for(String segment in dir.absolutePath.split(Pattern.quote(File.separator), -1))
+            node = node.child(segment)
+        node.entries.add(entry)
+    }
+
+    private static Pattern compile(pattern) {
+        if(pattern == null || pattern instanceof Pattern)
+            return (Pattern) pattern
+        Pattern.compile(pattern.toString())
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>()
+        final List<Entry> entries = []
+
+        Node child(String segment) {
+            Node node = children.get(segment)
+            if(node == null)
+                children.put(segment, node = new Node())
+            node
+        }
+    }
+
+    private static final class Entry {
+        final int webapp
+        final int kind
+        final int baseDirLength
+        final Pattern pattern
+        final Pattern excludesPattern
+
+        Entry(int webapp, int kind, int baseDirLength, Pattern pattern, Pattern excludesPattern) {
+            this.webapp = webapp
+            this.kind = kind
+            this.baseDirLength = baseDirLength
+            this.pattern = pattern
+            this.excludesPattern = excludesPattern
+        }
+
+        boolean matches(String filePath) {
+            if(pattern == null && excludesPattern == null)
+                return true
+            String relPath = filePath.length() > baseDirLength ? filePath.substring(baseDirLength + 1) : ''
+            (pattern == null || pattern.matcher(relPath).find()) && (excludesPattern == null || !excludesPattern.matcher(relPath).find())
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.akhikhl.gretty.scanner
+
+import groovy.transform.CompileStatic
+import org.akhikhl.gretty.ServerConfig
+import org.akhikhl.gretty.WebAppConfig
+import org.gradle.api.Project
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * Scanner reacting to native file system events instead of walking scan dirs every scanInterval.
+ * Bursts of events are coalesced within scanDebounce milliseconds.
+ */
+@CompileStatic
+final class WatchScannerManager extends BaseScannerManager {
+    private static final Logger log = LoggerFactory.getLogger(WatchScannerManager)
+
+    private RecursiveWatcher watcher
+
+    WatchScannerManager(Project project, ServerConfig sconfig, List<WebAppConfig> webapps, boolean managedClassReload) {
+        super(project, sconfig, webapps, managedClassReload)
+    }
+
+    @Override
+    void startScanner() {
+        if(!sconfig.scanInterval) {
+            if(sconfig.scanInterval == null)
+                log.info 'scanInterval not specified, hot deployment disabled'
+            else if(sconfig.scanInterval == 0)
+                log.info 'scanInterval is zero, hot deployment disabled'
+            return
+        }
+        List<File> scanDirs = getEffectiveScanDirs()
+        configureFastReload(scanDirs)
+        buildScanIndex()
+        for(File f in scanDirs)
+            log.info 'scanDir: {}', f
+        log.info 'fastReloadMap={}', fastReloadMap
+        long debounce = sconfig.scanDebounce ?: 200
+        int cycle = 0
+        watcher = new RecursiveWatcher(scanDirs, debounce, { Collection<String> changedFiles ->
+            sconfig.onScan*.call(++cycle)
+            scanFilesChanged(changedFiles)
+        })
+        watcher.start()
+        log.info 'Enabling hot deployment on file system events, debounce {} ms', debounce
+    }
+
+    @Override
+    void stopScanner() {
+        if(watcher != null) {
+            log.info 'Stopping scanner'
+            watcher.stop()
+            watcher = null
+        }
+        super.stopScanner()
+    }
+}